@@ -3,22 +3,37 @@ package DataStruct;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * 邻接矩阵存储的带权有向图，顶点编号从1开始，权重为0表示没有边
+ * 遍历一个顶点的邻居需要扫描整行（O(n)），出度单独维护
+ */
 public class AdjWeightedDigraph implements Graph {
 
     private int[][] matrix;
+    private int[] degrees;
 
     public AdjWeightedDigraph(int n) {
         matrix = new int[n][n];
+        degrees = new int[n];
     }
 
     @Override
     public void addEdge(int from, int to, int weight) {
+        int old = matrix[from - 1][to - 1];
         matrix[from - 1][to - 1] = weight;
+        if (old == 0 && weight != 0) {
+            degrees[from - 1]++;
+        } else if (old != 0 && weight == 0) {
+            degrees[from - 1]--;
+        }
     }
 
     @Override
     public void removeEdge(int from, int to) {
-        matrix[from - 1][to - 1] = 0;
+        if (matrix[from - 1][to - 1] != 0) {
+            matrix[from - 1][to - 1] = 0;
+            degrees[from - 1]--;
+        }
     }
 
     @Override
@@ -35,18 +50,69 @@ public class AdjWeightedDigraph implements Graph {
     }
 
     public List<Edge> neighbors(int v) {
-        List<Edge> res = new ArrayList<>();
-        for (int i = 0; i < matrix[v].length; i++) {
-            if (matrix[v][i] != 0) {
-                res.add(new Edge(i, matrix[v][i]));
+        int[] row = matrix[v - 1];
+        List<Edge> res = new ArrayList<>(degrees[v - 1]);
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] != 0) {
+                res.add(new Edge(row[i], i + 1));
             }
         }
         return res;
     }
 
+    @Override
+    public void forEachNeighbor(int v, IntIntConsumer action) {
+        int[] row = matrix[v - 1];
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] != 0) {
+                action.accept(i + 1, row[i]);
+            }
+        }
+    }
+
+    @Override
+    public NeighborCursor cursor() {
+        return new NeighborCursor() {
+            private int[] row = new int[0];
+            private int i;
+
+            @Override
+            public NeighborCursor reset(int v) {
+                row = matrix[v - 1];
+                i = -1;
+                return this;
+            }
+
+            @Override
+            public boolean next() {
+                while (++i < row.length) {
+                    if (row[i] != 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public int to() {
+                return i + 1;
+            }
+
+            @Override
+            public int weight() {
+                return row[i];
+            }
+        };
+    }
+
+    @Override
+    public int degree(int v) {
+        return degrees[v - 1];
+    }
+
     @Override
     public int size() {
-        return 0;
+        return matrix.length;
     }
 
     public static void main(String[] args) {
@@ -59,11 +125,11 @@ public class AdjWeightedDigraph implements Graph {
         System.out.println(graph.hasEdge(1, 2)); // true
         System.out.println(graph.hasEdge(2, 1)); // false
 
-        graph.neighbors(2).forEach(edge -> {
-            System.out.println(2 + " -> " + edge.to + ", wight: " + edge.weight);
+        graph.forEachNeighbor(3, (to, weight) -> {
+            System.out.println(3 + " -> " + to + ", wight: " + weight);
         });
-        // 2 -> 0, wight: 3
-        // 2 -> 1, wight: 4
+        // 3 -> 1, wight: 3
+        // 3 -> 2, wight: 4
 
         graph.removeEdge(1, 2);
         System.out.println(graph.hasEdge(1, 2)); // false
@@ -0,0 +1,242 @@
+package DataStruct;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 压缩稀疏行（CSR）存储的不可变带权有向图，顶点编号从0开始
+ * 顶点 v 的出边是 targets/weights 的 [offsets[v], offsets[v + 1]) 区间，按终点升序排列，
+ * 因此 hasEdge/weight 在该区间内二分查找，扫描邻居是顺序读两个连续数组
+ * 每条边占8字节（终点、权重各一个 int），另外每个顶点4字节，没有逐条边的对象
+ * 通过 Builder 批量加入边后一次性构建；构建后 addEdge/removeEdge 抛出 UnsupportedOperationException
+ */
+public final class CsrGraph implements Graph {
+    private final int n;
+    private final int[] offsets;
+    private final int[] targets;
+    private final int[] weights;
+
+    private CsrGraph(int n, int[] offsets, int[] targets, int[] weights) {
+        this.n = n;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    public static Builder builder(int n) {
+        return new Builder(n, 16);
+    }
+
+    /*
+    expectedEdges 只用于预分配
+     */
+    public static Builder builder(int n, int expectedEdges) {
+        return new Builder(n, expectedEdges);
+    }
+
+    @Override
+    public void addEdge(int from, int to, int weight) {
+        throw new UnsupportedOperationException("CsrGraph is immutable");
+    }
+
+    @Override
+    public void removeEdge(int from, int to) {
+        throw new UnsupportedOperationException("CsrGraph is immutable");
+    }
+
+    @Override
+    public boolean hasEdge(int from, int to) {
+        return indexOf(from, to) >= 0;
+    }
+
+    @Override
+    public int weight(int from, int to) {
+        int i = indexOf(from, to);
+        if (i < 0) {
+            throw new IllegalArgumentException("no such edge");
+        }
+        return weights[i];
+    }
+
+    private int indexOf(int from, int to) {
+        int i = Arrays.binarySearch(targets, offsets[from], offsets[from + 1], to);
+        return i >= 0 ? i : -1;
+    }
+
+    /*
+    每次调用都创建新的列表和 Edge，遍历时应使用 forEachNeighbor 或 cursor
+     */
+    @Override
+    public List<Edge> neighbors(int v) {
+        int start = offsets[v];
+        int end = offsets[v + 1];
+        List<Edge> res = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            res.add(new Edge(weights[i], targets[i]));
+        }
+        return res;
+    }
+
+    @Override
+    public void forEachNeighbor(int v, IntIntConsumer action) {
+        for (int i = offsets[v], end = offsets[v + 1]; i < end; i++) {
+            action.accept(targets[i], weights[i]);
+        }
+    }
+
+    @Override
+    public NeighborCursor cursor() {
+        return new NeighborCursor() {
+            private int i;
+            private int end;
+
+            @Override
+            public NeighborCursor reset(int v) {
+                i = offsets[v] - 1;
+                end = offsets[v + 1];
+                return this;
+            }
+
+            @Override
+            public boolean next() {
+                return ++i < end;
+            }
+
+            @Override
+            public int to() {
+                return targets[i];
+            }
+
+            @Override
+            public int weight() {
+                return weights[i];
+            }
+        };
+    }
+
+    @Override
+    public int degree(int v) {
+        return offsets[v + 1] - offsets[v];
+    }
+
+    @Override
+    public int size() {
+        return n;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /*
+    三个数组占用的字节数（不含对象头）
+     */
+    public long memoryBytes() {
+        return 4L * offsets.length + 4L * targets.length + 4L * weights.length;
+    }
+
+    /**
+     * 边先追加到三个并行的 int 数组（每条边12字节），build 时按起点计数排序分桶，再在每个顶点内按终点排序
+     * 同一条边加入多次时保留最后一次的权重；build 之后 Builder 不能再使用
+     */
+    public static final class Builder {
+        private final int n;
+        private int[] from;
+        private int[] to;
+        private int[] weight;
+        private int size;
+
+        private Builder(int n, int expectedEdges) {
+            if (n < 0 || expectedEdges < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.n = n;
+            int capacity = Math.max(16, expectedEdges);
+            this.from = new int[capacity];
+            this.to = new int[capacity];
+            this.weight = new int[capacity];
+        }
+
+        public Builder addEdge(int from, int to, int weight) {
+            if (this.from == null) {
+                throw new IllegalStateException("already built");
+            }
+            if (from < 0 || from >= n || to < 0 || to >= n) {
+                throw new IndexOutOfBoundsException("edge " + from + "->" + to + " out of [0, " + n + ")");
+            }
+            if (size == this.from.length) {
+                int capacity = size + (size >> 1);
+                this.from = Arrays.copyOf(this.from, capacity);
+                this.to = Arrays.copyOf(this.to, capacity);
+                this.weight = Arrays.copyOf(this.weight, capacity);
+            }
+            this.from[size] = from;
+            this.to[size] = to;
+            this.weight[size] = weight;
+            size++;
+            return this;
+        }
+
+        public CsrGraph build() {
+            if (from == null) {
+                throw new IllegalStateException("already built");
+            }
+            int m = size;
+            // 计数排序按起点分桶，同一起点内保持加入顺序
+            int[] offsets = new int[n + 1];
+            for (int i = 0; i < m; i++) {
+                offsets[from[i] + 1]++;
+            }
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] += offsets[v];
+            }
+            int[] next = Arrays.copyOf(offsets, n);
+            int[] targets = new int[m];
+            int[] weights = new int[m];
+            for (int i = 0; i < m; i++) {
+                int p = next[from[i]]++;
+                targets[p] = to[i];
+                weights[p] = weight[i];
+            }
+            from = null;
+            to = null;
+            weight = null;
+            next = null;
+
+            // 每个顶点内按（终点，加入顺序）排序，重复的边只保留最后加入的一条，结果向前紧凑
+            int maxDegree = 0;
+            for (int v = 0; v < n; v++) {
+                maxDegree = Math.max(maxDegree, offsets[v + 1] - offsets[v]);
+            }
+            long[] keys = new long[maxDegree];
+            int[] rangeWeights = new int[maxDegree];
+            int w = 0;
+            for (int v = 0; v < n; v++) {
+                int start = offsets[v];
+                int len = offsets[v + 1] - start;
+                offsets[v] = w;
+                for (int i = 0; i < len; i++) {
+                    keys[i] = (long) targets[start + i] << 32 | i;
+                    rangeWeights[i] = weights[start + i];
+                }
+                Arrays.sort(keys, 0, len);
+                for (int i = 0; i < len; i++) {
+                    int target = (int) (keys[i] >>> 32);
+                    if (i + 1 < len && (int) (keys[i + 1] >>> 32) == target) {
+                        continue;
+                    }
+                    targets[w] = target;
+                    weights[w] = rangeWeights[(int) keys[i]];
+                    w++;
+                }
+            }
+            offsets[n] = w;
+            if (w < m) {
+                targets = Arrays.copyOf(targets, w);
+                weights = Arrays.copyOf(weights, w);
+            }
+            return new CsrGraph(n, offsets, targets, weights);
+        }
+    }
+}
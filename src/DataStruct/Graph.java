@@ -13,6 +13,27 @@ public interface Graph {
         }
     }
 
+    /**
+     * 接收一条出边的终点与权重，避免为每条边创建 Edge
+     */
+    interface IntIntConsumer {
+        void accept(int to, int weight);
+    }
+
+    /**
+     * 可复用的邻居游标：reset 到某个顶点后反复调用 next，每次定位到下一条出边
+     * 同一个游标可以依次用于任意多个顶点，遍历过程中不分配对象；非线程安全，遍历期间不要修改图
+     */
+    interface NeighborCursor {
+        NeighborCursor reset(int v);
+
+        boolean next();
+
+        int to();
+
+        int weight();
+    }
+
     void addEdge(int from, int to, int weight);
 
     void removeEdge(int from, int to);
@@ -21,7 +42,61 @@ public interface Graph {
 
     int weight(int from, int to);
 
+    /*
+    每次调用都会创建列表与 Edge，遍历时应使用 forEachNeighbor 或 cursor
+     */
     List<Edge> neighbors(int v);
 
+    /*
+    按 neighbors 的顺序对 v 的每条出边调用 action，实现不应分配对象
+     */
+    default void forEachNeighbor(int v, IntIntConsumer action) {
+        for (Edge e : neighbors(v)) {
+            action.accept(e.to, e.weight);
+        }
+    }
+
+    /*
+    返回一个新的游标，之后 reset 到不同顶点反复使用
+     */
+    default NeighborCursor cursor() {
+        return new NeighborCursor() {
+            private List<Edge> edges = List.of();
+            private int i = -1;
+
+            @Override
+            public NeighborCursor reset(int v) {
+                edges = neighbors(v);
+                i = -1;
+                return this;
+            }
+
+            @Override
+            public boolean next() {
+                return ++i < edges.size();
+            }
+
+            @Override
+            public int to() {
+                return edges.get(i).to;
+            }
+
+            @Override
+            public int weight() {
+                return edges.get(i).weight;
+            }
+        };
+    }
+
+    /*
+    v 的出边数
+     */
+    default int degree(int v) {
+        return neighbors(v).size();
+    }
+
+    /*
+    顶点数
+     */
     int size();
 }
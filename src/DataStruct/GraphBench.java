@@ -0,0 +1,202 @@
+package DataStruct;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Graph 各实现的内存与查询压测
+ * 用法: java DataStruct.GraphBench [csr [edges] | scan [edges]]
+ */
+public class GraphBench {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "csr";
+        switch (mode) {
+            case "csr":
+                csr(args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000);
+                break;
+            case "scan":
+                scan(args.length > 1 ? Integer.parseInt(args[1]) : 8_000_000);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+    }
+
+    /*
+    CSR：小图上与参照结果核对（含重复边），大图上的构建耗时、每条边的内存与随机查询延迟，
+    以及同样的边放在邻接表（每条边一个 Edge 对象）中的内存
+     */
+    static void csr(int edges) throws Exception {
+        Random random = new Random(1);
+        final int small = 1000;
+        CsrGraph.Builder sb = CsrGraph.builder(small);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            int from = random.nextInt(small);
+            int to = random.nextInt(small);
+            int weight = random.nextInt(100);
+            sb.addEdge(from, to, weight);
+            expected.put((long) from * small + to, weight);
+        }
+        CsrGraph g = sb.build();
+        int wrong = g.edgeCount() == expected.size() ? 0 : 1;
+        for (int from = 0; from < small; from++) {
+            for (int to = 0; to < small; to++) {
+                Integer w = expected.get((long) from * small + to);
+                if (g.hasEdge(from, to) != (w != null) || (w != null && g.weight(from, to) != w)) {
+                    wrong++;
+                }
+            }
+        }
+        System.out.println("check against reference: " + (wrong == 0 ? "OK" : wrong + " WRONG")
+                + " (" + g.edgeCount() + " distinct edges)");
+
+        final int n = Math.max(1, edges / 16);
+        Runtime rt = Runtime.getRuntime();
+        long before = usedHeap(rt);
+        long start = System.nanoTime();
+        CsrGraph.Builder builder = CsrGraph.builder(n, edges);
+        for (int i = 0; i < edges; i++) {
+            builder.addEdge(random.nextInt(n), random.nextInt(n), random.nextInt(1000));
+        }
+        long loaded = System.nanoTime();
+        CsrGraph csr = builder.build();
+        long built = System.nanoTime();
+        builder = null;
+        long csrHeap = usedHeap(rt) - before;
+        System.out.printf("csr: %d vertices, %d edges, load %d ms, build %d ms, %.1f bytes/edge (heap %.1f)%n",
+                n, csr.edgeCount(), (loaded - start) / 1_000_000, (built - loaded) / 1_000_000,
+                csr.memoryBytes() / (double) csr.edgeCount(), csrHeap / (double) csr.edgeCount());
+
+        final int queries = 1_000_000;
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            if (csr.hasEdge(random.nextInt(n), random.nextInt(n))) {
+                hits++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("csr hasEdge: %.0f ns/query (%d hits)%n", elapsed / (double) queries, hits);
+        csr = null;
+
+        // 邻接表只放一部分边，避免撑满堆
+        int listEdges = Math.min(edges, 5_000_000);
+        int listN = Math.max(1, listEdges / 16);
+        before = usedHeap(rt);
+        ListWeightedDigraph list = new ListWeightedDigraph(listN);
+        for (int i = 0; i < listEdges; i++) {
+            list.addEdge(random.nextInt(listN), random.nextInt(listN), random.nextInt(1000));
+        }
+        long listHeap = usedHeap(rt) - before;
+        System.out.printf("adjacency list: %d edges, %.1f bytes/edge (heap)%n", listEdges,
+                listHeap / (double) listEdges);
+        System.out.println(list.hasEdge(0, 1) ? "" : "done");
+    }
+
+    /*
+    全图扫描（累加所有边的终点与权重）：neighbors() 返回 Edge 列表（改动前唯一的遍历方式），
+    对比 forEachNeighbor 与复用的 cursor，输出每条边的耗时与每次扫描分配的字节数
+     */
+    static void scan(int edges) {
+        Random random = new Random(2);
+        // 邻接矩阵：4000 个顶点，约 10% 的位置有边，顶点从1开始
+        int adjN = 4000;
+        AdjWeightedDigraph adj = new AdjWeightedDigraph(adjN);
+        for (int i = 0; i < adjN * adjN / 10; i++) {
+            adj.addEdge(random.nextInt(adjN) + 1, random.nextInt(adjN) + 1, random.nextInt(1000) + 1);
+        }
+        scan("adjacency matrix", adj, 1);
+
+        int listEdges = Math.min(edges, 2_000_000);
+        int listN = Math.max(1, listEdges / 16);
+        ListWeightedDigraph list = new ListWeightedDigraph(listN);
+        for (int i = 0; i < listEdges; i++) {
+            list.addEdge(random.nextInt(listN), random.nextInt(listN), random.nextInt(1000));
+        }
+        scan("adjacency list", list, 0);
+        list = null;
+
+        int n = Math.max(1, edges / 16);
+        CsrGraph.Builder builder = CsrGraph.builder(n, edges);
+        for (int i = 0; i < edges; i++) {
+            builder.addEdge(random.nextInt(n), random.nextInt(n), random.nextInt(1000));
+        }
+        scan("csr", builder.build(), 0);
+    }
+
+    private static void scan(String name, Graph g, int base) {
+        int n = g.size();
+        long edges = 0;
+        for (int v = base; v < base + n; v++) {
+            edges += g.degree(v);
+        }
+        System.out.println(name + ": " + n + " vertices, " + edges + " edges");
+        SumVisitor visitor = new SumVisitor();
+        Graph.NeighborCursor cursor = g.cursor();
+        long expected = 0;
+        for (int mode = 0; mode < 3; mode++) {
+            long best = Long.MAX_VALUE;
+            long allocated = 0;
+            long sum = 0;
+            for (int round = 0; round < 5; round++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                sum = 0;
+                if (mode == 0) {
+                    for (int v = base; v < base + n; v++) {
+                        for (Graph.Edge e : g.neighbors(v)) {
+                            sum += e.to + e.weight;
+                        }
+                    }
+                } else if (mode == 1) {
+                    visitor.sum = 0;
+                    for (int v = base; v < base + n; v++) {
+                        g.forEachNeighbor(v, visitor);
+                    }
+                    sum = visitor.sum;
+                } else {
+                    for (int v = base; v < base + n; v++) {
+                        cursor.reset(v);
+                        while (cursor.next()) {
+                            sum += cursor.to() + cursor.weight();
+                        }
+                    }
+                }
+                best = Math.min(best, System.nanoTime() - start);
+                allocated = allocatedBytes() - bytes;
+            }
+            if (mode == 0) {
+                expected = sum;
+            }
+            System.out.printf("  %-15s %6.2f ns/edge, %,d bytes allocated per scan%s%n",
+                    mode == 0 ? "neighbors()" : mode == 1 ? "forEachNeighbor" : "cursor",
+                    best / (double) Math.max(1, edges), allocated, sum == expected ? "" : " MISMATCH");
+        }
+    }
+
+    private static final class SumVisitor implements Graph.IntIntConsumer {
+        long sum;
+
+        @Override
+        public void accept(int to, int weight) {
+            sum += to + weight;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long usedHeap(Runtime rt) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
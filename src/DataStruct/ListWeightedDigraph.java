@@ -15,7 +15,7 @@ class ListWeightedDigraph implements Graph {
     }
 
     public void addEdge(int from, int to, int weight) {
-        graph[from].add(new Edge(to, weight));
+        graph[from].add(new Edge(weight, to));
     }
 
     public void removeEdge(int from, int to) {
@@ -49,9 +49,58 @@ class ListWeightedDigraph implements Graph {
         return graph[v];
     }
 
+    @Override
+    public void forEachNeighbor(int v, IntIntConsumer action) {
+        List<Edge> edges = graph[v];
+        for (int i = 0, n = edges.size(); i < n; i++) {
+            Edge e = edges.get(i);
+            action.accept(e.to, e.weight);
+        }
+    }
+
+    @Override
+    public NeighborCursor cursor() {
+        return new NeighborCursor() {
+            private List<Edge> edges = graph.length == 0 ? new ArrayList<>() : graph[0];
+            private Edge edge;
+            private int i;
+
+            @Override
+            public NeighborCursor reset(int v) {
+                edges = graph[v];
+                i = 0;
+                return this;
+            }
+
+            @Override
+            public boolean next() {
+                if (i >= edges.size()) {
+                    return false;
+                }
+                edge = edges.get(i++);
+                return true;
+            }
+
+            @Override
+            public int to() {
+                return edge.to;
+            }
+
+            @Override
+            public int weight() {
+                return edge.weight;
+            }
+        };
+    }
+
+    @Override
+    public int degree(int v) {
+        return graph[v].size();
+    }
+
     @Override
     public int size() {
-        return 0;
+        return graph.length;
     }
 
     void traverse(Graph graph, int s, boolean[] visited) {
@@ -65,23 +114,21 @@ class ListWeightedDigraph implements Graph {
 
         visited[s] = true;
         System.out.println("visit: " + s);
-        for (Edge e : graph.neighbors(s)) {
-            traverse(graph, e.to, visited);
-        }
+        graph.forEachNeighbor(s, (to, weight) -> traverse(graph, to, visited));
     }
 
     void traverseEdges(Graph graph, int s, boolean[][] visited) {
         if (s < 0 || s >= graph.size()) {
             return;
         }
-        for (Edge e : graph.neighbors(s)) {
-            if (visited[s][e.to]) {
-                continue;
+        graph.forEachNeighbor(s, (to, weight) -> {
+            if (visited[s][to]) {
+                return;
             }
-            visited[s][e.to] = true;
-            System.out.println("visit edge: " + s + "->" + e.to);
-            traverseEdges(graph, e.to, visited);
-        }
+            visited[s][to] = true;
+            System.out.println("visit edge: " + s + "->" + to);
+            traverseEdges(graph, to, visited);
+        });
     }
 
     public static void main(String[] args) {
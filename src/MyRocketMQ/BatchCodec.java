@@ -0,0 +1,64 @@
+package MyRocketMQ;
+
+/**
+ * 批消息（MessageBatch）的压缩算法；编号写入批次头部，解压时按编号查找，自定义实现需在两端用 MessageBatch.register 登记
+ * 实现必须线程安全
+ */
+public interface BatchCodec {
+    /*
+    不压缩，只把多条消息合并为一条记录
+     */
+    BatchCodec NONE = new BatchCodec() {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public byte[] compress(byte[] src, int length, int headroom) {
+            byte[] out = new byte[headroom + length];
+            System.arraycopy(src, 0, out, headroom, length);
+            return out;
+        }
+
+        @Override
+        public void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength) {
+            if (length != rawLength) {
+                throw new IllegalArgumentException("expected " + rawLength + " bytes, got " + length);
+            }
+            System.arraycopy(src, offset, dst, 0, length);
+        }
+
+        @Override
+        public String toString() {
+            return "none";
+        }
+    };
+
+    /*
+    JDK 自带的 Deflate，最快档；重复度高的 JSON 类消息体通常能压到原来的几分之一
+     */
+    BatchCodec DEFLATE = new DeflateCodec(java.util.zip.Deflater.BEST_SPEED);
+
+    /*
+    指定压缩级别（1~9）的 Deflate，与 DEFLATE 编号相同，解压不区分级别
+     */
+    static BatchCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    /*
+    0~127，0 与 1 已被 NONE 与 DEFLATE 使用
+     */
+    int id();
+
+    /*
+    压缩 src[0, length)，返回的数组前 headroom 字节留给调用方写批次头部，其后全部是压缩数据
+     */
+    byte[] compress(byte[] src, int length, int headroom);
+
+    /*
+    把 src[offset, offset + length) 解压到 dst[0, rawLength)，数据损坏或长度不符时抛出 IllegalArgumentException
+     */
+    void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength);
+}
@@ -0,0 +1,431 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 独立进程中的 Broker：托管一组 MessageQueue，通过非阻塞 NIO 为远程的生产者（RemoteProducer）和消费者（RemoteConsumer）服务
+ * 协议见 RemotingProtocol。所有连接与所有请求都在一个 I/O 线程上处理：
+ * 队列的写入只发生在这个线程上，因此有消息写入时可以直接唤醒挂起在该队列上的长轮询，不需要额外的通知机制
+ * 队列必须是无界的（内存双端队列或 CommitLog），否则写满时会阻塞 I/O 线程
+ * 拉取即出队：消息写入响应后即从队列移除，连接在此之后断开的消息会丢失；一个队列同一时刻只应有一个消费者，否则无法保证顺序
+ * 一次拉取按条数（MAX_PULL）和字节数（MAX_PULL_BYTES）同时截断，响应帧不会超过 MAX_FRAME；
+ * 经 SEND 写入的消息一定放得进一个响应帧，本进程内直接写入队列的单条消息不应超过 MAX_PULL_BYTES
+ * 用法: java MyRocketMQ.Broker [port] [queueCount] [dataDir]，给出 dataDir 时消息持久化到该目录下的提交日志
+ */
+public class Broker implements AutoCloseable {
+    public static final int DEFAULT_PORT = 9876;
+
+    private final List<MessageQueue> queues;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread ioThread;
+    // 每个队列上按到达顺序挂起的长轮询，以及按超时时间排序的全部长轮询；只在 I/O 线程访问
+    private final ArrayDeque<PendingPull>[] waiting;
+    private final PriorityQueue<PendingPull> deadlines = new PriorityQueue<>(Comparator.comparingLong(p -> p.deadline));
+    private final BufferPool pool = new BufferPool(1 << 20, 64);
+    // 本轮有新响应待写出的连接，下一次 select 之前统一写出
+    private final ArrayList<Connection> dirty = new ArrayList<>();
+    private volatile boolean closed;
+    private volatile long receivedFrames;
+    private volatile long receivedMessages;
+    // 写入计数，未设置时为 null
+    private volatile MessageMetrics metrics;
+
+    /*
+    只监听本机回环地址；port 为0时由系统分配，见 getPort
+     */
+    public Broker(int port, List<MessageQueue> queues) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), queues);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Broker(InetSocketAddress address, List<MessageQueue> queues) throws IOException {
+        if (queues.isEmpty()) {
+            throw new IllegalArgumentException("no queues");
+        }
+        this.queues = List.copyOf(queues);
+        this.waiting = new ArrayDeque[queues.size()];
+        for (int i = 0; i < waiting.length; i++) {
+            waiting[i] = new ArrayDeque<>();
+        }
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.ioThread = new Thread(this::run, "broker-io");
+        ioThread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public long getReceivedFrames() {
+        return receivedFrames;
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    /*
+    记录各队列写入的消息数并登记队列深度；消费指标由远程消费者各自记录
+     */
+    public void setMetrics(MessageMetrics metrics) {
+        if (metrics != null) {
+            for (MessageQueue mq : queues) {
+                metrics.registerQueue(mq);
+            }
+        }
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long timeout = expirePulls();
+                // 写出上一轮处理请求与本次超时产生的响应
+                flushDirty();
+                selector.select(timeout);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.flush();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Object attachment = key.attachment();
+                        if (attachment instanceof Connection) {
+                            ((Connection) attachment).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Broker] selector failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /*
+    一轮中同一连接的多个响应（流水线请求、被唤醒的长轮询）合并为一次写出
+     */
+    private void flushDirty() {
+        for (Connection conn : dirty) {
+            try {
+                conn.flush();
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+        dirty.clear();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    /*
+    对超时的长轮询返回空结果，返回距下一个超时的毫秒数（0表示没有挂起的长轮询）
+     */
+    private long expirePulls() {
+        long now = System.nanoTime();
+        PendingPull p;
+        while ((p = deadlines.peek()) != null && p.deadline - now <= 0) {
+            deadlines.poll();
+            if (!p.done) {
+                p.done = true;
+                waiting[p.queueId].remove(p);
+                p.conn.respondMessages(p.requestId, Collections.emptyList());
+            }
+        }
+        if (p == null) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(p.deadline - now + 999_999));
+    }
+
+    private void handle(Connection conn, byte type, long requestId, ByteBuffer body) {
+        receivedFrames++;
+        switch (type) {
+            case RemotingProtocol.SEND: {
+                int queueId = body.getInt(0);
+                int count = body.getInt(4);
+                if (!validQueue(conn, requestId, queueId)) {
+                    return;
+                }
+                List<Message> messages = RemotingProtocol.readMessages(body, 8, count);
+                try {
+                    queues.get(queueId).putAll(messages);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    conn.respondError(requestId, "interrupted");
+                    return;
+                }
+                receivedMessages += count;
+                MessageMetrics m = metrics;
+                if (m != null) {
+                    m.queue(queueId).produced(messages);
+                }
+                conn.respond(requestId, RemotingProtocol.OK, null);
+                servePulls(queueId);
+                break;
+            }
+            case RemotingProtocol.PULL: {
+                int queueId = body.getInt(0);
+                int max = Math.min(body.getInt(4), RemotingProtocol.MAX_PULL);
+                int timeoutMillis = body.getInt(8);
+                if (!validQueue(conn, requestId, queueId)) {
+                    return;
+                }
+                if (max <= 0) {
+                    conn.respondError(requestId, "maxMessages must be positive");
+                    return;
+                }
+                List<Message> messages = new ArrayList<>();
+                // 已有挂起的长轮询时排在它们之后，保证同一队列的拉取按到达顺序得到消息
+                if (waiting[queueId].isEmpty()) {
+                    queues.get(queueId).drainTo(messages, max, RemotingProtocol.MAX_PULL_BYTES);
+                }
+                if (!messages.isEmpty() || timeoutMillis <= 0) {
+                    conn.respondMessages(requestId, messages);
+                    return;
+                }
+                PendingPull p = new PendingPull(conn, requestId, queueId, max,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                waiting[queueId].addLast(p);
+                deadlines.add(p);
+                break;
+            }
+            case RemotingProtocol.QUEUES:
+                conn.respond(requestId, RemotingProtocol.OK, ByteBuffer.allocate(4).putInt(0, queues.size()));
+                break;
+            default:
+                conn.respondError(requestId, "unknown request type " + type);
+        }
+    }
+
+    private boolean validQueue(Connection conn, long requestId, int queueId) {
+        if (queueId < 0 || queueId >= queues.size()) {
+            conn.respondError(requestId, "no such queue " + queueId);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    队列有新消息时按到达顺序唤醒挂起的长轮询
+     */
+    private void servePulls(int queueId) {
+        MessageQueue mq = queues.get(queueId);
+        ArrayDeque<PendingPull> q = waiting[queueId];
+        while (!q.isEmpty() && mq.size() > 0) {
+            PendingPull p = q.pollFirst();
+            if (p.done || p.conn.closed) {
+                continue;
+            }
+            p.done = true;
+            List<Message> messages = new ArrayList<>();
+            mq.drainTo(messages, p.max, RemotingProtocol.MAX_PULL_BYTES);
+            p.conn.respondMessages(p.requestId, messages);
+        }
+    }
+
+    private static final class PendingPull {
+        final Connection conn;
+        final long requestId;
+        final int queueId;
+        final int max;
+        final long deadline;
+        boolean done;
+
+        PendingPull(Connection conn, long requestId, int queueId, int max, long deadline) {
+            this.conn = conn;
+            this.requestId = requestId;
+            this.queueId = queueId;
+            this.max = max;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 一个客户端连接：读缓冲区中可能有多个流水线请求，逐个处理；响应排队后用一次 gathering write 尽量一起写出
+     */
+    private final class Connection implements RemotingProtocol.FrameHandler {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            in = RemotingProtocol.readFrames(in, this);
+        }
+
+        @Override
+        public void onFrame(byte type, long requestId, ByteBuffer body) {
+            handle(this, type, requestId, body);
+        }
+
+        void respondMessages(long requestId, List<Message> messages) {
+            int size = 4 + RemotingProtocol.messagesSize(messages);
+            ByteBuffer buf = pool.acquire(RemotingProtocol.FRAME_HEADER + size);
+            RemotingProtocol.writeHeader(buf, size, RemotingProtocol.MESSAGES, requestId);
+            buf.putInt(messages.size());
+            RemotingProtocol.writeMessages(buf, messages);
+            enqueue(buf);
+        }
+
+        void respondError(long requestId, String error) {
+            respond(requestId, RemotingProtocol.ERROR, ByteBuffer.wrap(error.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /*
+        body 从0到 limit 整体写入
+         */
+        void respond(long requestId, byte type, ByteBuffer body) {
+            int size = body == null ? 0 : body.limit();
+            ByteBuffer buf = pool.acquire(RemotingProtocol.FRAME_HEADER + size);
+            RemotingProtocol.writeHeader(buf, size, type, requestId);
+            if (body != null) {
+                buf.put(body.position(0));
+            }
+            enqueue(buf);
+        }
+
+        /*
+        只排队不立即写，下一次 select 之前由 flushDirty 统一写出
+         */
+        private void enqueue(ByteBuffer buf) {
+            if (closed) {
+                pool.release(buf);
+                return;
+            }
+            buf.flip();
+            out.addLast(buf);
+            if (out.size() == 1) {
+                dirty.add(this);
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            while (!out.isEmpty()) {
+                ByteBuffer[] batch = new ByteBuffer[Math.min(out.size(), 64)];
+                Iterator<ByteBuffer> it = out.iterator();
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = it.next();
+                }
+                channel.write(batch);
+                while (!out.isEmpty() && !out.peekFirst().hasRemaining()) {
+                    pool.release(out.pollFirst());
+                }
+                if (!out.isEmpty() && out.peekFirst().hasRemaining()) {
+                    // 对端接收窗口已满，等可写时再继续
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            for (ByteBuffer buf : out) {
+                pool.release(buf);
+            }
+            out.clear();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int queueCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        CommitLog commitLog = args.length > 2 ? new CommitLog(Paths.get(args[2])) : null;
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(commitLog == null ? new MessageQueue(i) : new MessageQueue(i, commitLog));
+        }
+        Broker broker = new Broker(port, queues);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            broker.close();
+            if (commitLog != null) {
+                commitLog.close();
+            }
+        }));
+        System.out.println("[Broker] listening on 127.0.0.1:" + broker.getPort() + " with " + queueCount + " queues"
+                + (commitLog == null ? "" : ", commit log in " + commitLog.getDirectory()));
+    }
+}
@@ -0,0 +1,347 @@
+package MyRocketMQ;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 到 Broker 的一条连接，RemoteProducer 与 RemoteConsumer 共用
+ * 请求先进入 outbound 队列，由写线程一次写出当时排队的全部请求（合并写）：
+ * 同一队列的多条待发消息合并为一个 SEND 帧，多个帧合并为一次 write；写线程忙于写出时新到的请求自然攒成下一批
+ * 调用线程不等待响应，多个请求可以同时在途（流水线）
+ * 响应由一个读线程按 requestId 分发，完成对应的 future；future 的回调在读线程上执行，应当尽量轻量
+ */
+final class BrokerClient implements AutoCloseable {
+    // 一次合并写出的上限，超出的请求留给下一轮
+    private static final int MAX_WRITE = 1 << 20;
+
+    private final SocketChannel channel;
+    private final Thread reader;
+    private final Thread writer;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, Call> calls = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Call> outbound = new LinkedBlockingQueue<>();
+    // 只在写线程访问
+    private ByteBuffer writeBuf = ByteBuffer.allocateDirect(64 << 10);
+    private Call carried;
+    private volatile IOException failure;
+
+    BrokerClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.reader = new Thread(this::readLoop, "broker-client-reader");
+        reader.setDaemon(true);
+        this.writer = new Thread(this::writeLoop, "broker-client-writer");
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    CompletableFuture<Void> send(int queueId, Message message) {
+        SendCall call = new SendCall(queueId, message);
+        if (call.size > RemotingProtocol.MAX_SEND_BYTES) {
+            call.future.completeExceptionally(new IllegalArgumentException("message too large: " + call.size));
+            return call.future;
+        }
+        submit(call);
+        return call.future;
+    }
+
+    CompletableFuture<List<Message>> pull(int queueId, int maxMessages, int timeoutMillis) {
+        PullCall call = new PullCall(queueId, maxMessages, timeoutMillis);
+        submit(call);
+        return call.future;
+    }
+
+    CompletableFuture<Integer> queueCount() {
+        QueuesCall call = new QueuesCall();
+        submit(call);
+        return call.future;
+    }
+
+    private void submit(Call call) {
+        IOException e = failure;
+        if (e != null) {
+            call.fail(e);
+            return;
+        }
+        outbound.add(call);
+        if (failure != null) {
+            // 失败发生在加入队列之后，队列里的请求不会再被写出
+            failAll(failure);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (failure == null) {
+                if (carried == null) {
+                    carried = outbound.take();
+                }
+                writePending();
+            }
+        } catch (InterruptedException e) {
+            // close 时中断
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            if (carried != null) {
+                carried.fail(failure != null ? failure : new IOException("client closed"));
+                carried = null;
+            }
+        }
+    }
+
+    private void writePending() throws IOException {
+        // 本轮每个队列一个 SEND 帧，帧内保持入队顺序
+        Map<Integer, SendFrame> sends = new LinkedHashMap<>();
+        List<Call> others = new ArrayList<>();
+        int bytes = 0;
+        Call c = carried;
+        carried = null;
+        for (; c != null && bytes < MAX_WRITE; c = outbound.poll()) {
+            if (c instanceof SendCall) {
+                SendCall s = (SendCall) c;
+                SendFrame frame = sends.get(s.queueId);
+                if (frame != null && frame.size + s.size > RemotingProtocol.MAX_SEND_BYTES) {
+                    // 该队列的帧已放不下：本轮到此为止，这条请求及之后的留到下一轮，保持发送顺序
+                    break;
+                }
+                if (frame == null) {
+                    frame = new SendFrame(s.queueId);
+                    sends.put(s.queueId, frame);
+                    bytes += RemotingProtocol.FRAME_HEADER + 8;
+                }
+                frame.calls.add(s);
+                frame.size += s.size;
+                bytes += s.size;
+            } else {
+                others.add(c);
+                bytes += RemotingProtocol.FRAME_HEADER + 12;
+            }
+        }
+        // 超出上限时最后取出的请求留到下一轮
+        carried = c;
+        if (writeBuf.capacity() < bytes) {
+            writeBuf = ByteBuffer.allocateDirect(Math.max(bytes, writeBuf.capacity() * 2));
+        }
+        writeBuf.clear();
+        for (SendFrame frame : sends.values()) {
+            register(frame);
+            RemotingProtocol.writeHeader(writeBuf, 8 + frame.size, RemotingProtocol.SEND, frame.id);
+            writeBuf.putInt(frame.queueId);
+            writeBuf.putInt(frame.calls.size());
+            for (SendCall s : frame.calls) {
+                int n = MessageCodec.encode(s.message, writeBuf, writeBuf.position());
+                writeBuf.position(writeBuf.position() + n);
+            }
+        }
+        for (Call call : others) {
+            register(call);
+            call.write(writeBuf);
+        }
+        writeBuf.flip();
+        while (writeBuf.hasRemaining()) {
+            channel.write(writeBuf);
+        }
+    }
+
+    private void register(Call call) {
+        call.id = nextId.incrementAndGet();
+        calls.put(call.id, call);
+    }
+
+    private void readLoop() {
+        ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        try {
+            while (true) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("broker closed the connection");
+                }
+                in = RemotingProtocol.readFrames(in, (type, requestId, body) -> {
+                    Call call = calls.remove(requestId);
+                    if (call == null) {
+                        return;
+                    }
+                    if (type == RemotingProtocol.ERROR) {
+                        byte[] bytes = new byte[body.remaining()];
+                        body.get(bytes);
+                        call.fail(new IOException("broker error: " + new String(bytes, StandardCharsets.UTF_8)));
+                    } else {
+                        call.complete(body);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("bad response from broker", e));
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        // 唤醒阻塞在 outbound 上的写线程使其退出
+        writer.interrupt();
+        failAll(failure);
+    }
+
+    private void failAll(IOException e) {
+        Call c;
+        while ((c = outbound.poll()) != null) {
+            c.fail(e);
+        }
+        for (Long id : calls.keySet()) {
+            Call call = calls.remove(id);
+            if (call != null) {
+                call.fail(e);
+            }
+        }
+    }
+
+    boolean isOpen() {
+        return failure == null;
+    }
+
+    /*
+    关闭连接，尚未得到响应的请求以 IOException 失败
+     */
+    @Override
+    public void close() {
+        fail(new IOException("client closed"));
+        try {
+            writer.join();
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract static class Call {
+        long id;
+
+        /*
+        写出整个请求帧（SEND 帧由 writePending 合并写出，不走这里）
+         */
+        void write(ByteBuffer buf) {
+            throw new UnsupportedOperationException();
+        }
+
+        abstract void complete(ByteBuffer body);
+
+        abstract void fail(Throwable e);
+    }
+
+    private static final class SendCall extends Call {
+        final int queueId;
+        final Message message;
+        final int size;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        SendCall(int queueId, Message message) {
+            this.queueId = queueId;
+            this.message = message;
+            this.size = MessageCodec.encodedSize(message);
+        }
+
+        @Override
+        void complete(ByteBuffer body) {
+            future.complete(null);
+        }
+
+        @Override
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 合并后的 SEND 帧，响应时完成其中每条消息的 future
+     */
+    private static final class SendFrame extends Call {
+        final int queueId;
+        final List<SendCall> calls = new ArrayList<>();
+        int size;
+
+        SendFrame(int queueId) {
+            this.queueId = queueId;
+        }
+
+        @Override
+        void complete(ByteBuffer body) {
+            for (SendCall c : calls) {
+                c.future.complete(null);
+            }
+        }
+
+        @Override
+        void fail(Throwable e) {
+            for (SendCall c : calls) {
+                c.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class PullCall extends Call {
+        final int queueId;
+        final int maxMessages;
+        final int timeoutMillis;
+        final CompletableFuture<List<Message>> future = new CompletableFuture<>();
+
+        PullCall(int queueId, int maxMessages, int timeoutMillis) {
+            this.queueId = queueId;
+            this.maxMessages = maxMessages;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        void write(ByteBuffer buf) {
+            RemotingProtocol.writeHeader(buf, 12, RemotingProtocol.PULL, id);
+            buf.putInt(queueId);
+            buf.putInt(maxMessages);
+            buf.putInt(timeoutMillis);
+        }
+
+        @Override
+        void complete(ByteBuffer body) {
+            future.complete(RemotingProtocol.readMessages(body, 4, body.getInt(0)));
+        }
+
+        @Override
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static final class QueuesCall extends Call {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        @Override
+        void write(ByteBuffer buf) {
+            RemotingProtocol.writeHeader(buf, 0, RemotingProtocol.QUEUES, id);
+        }
+
+        @Override
+        void complete(ByteBuffer body) {
+            future.complete(body.getInt(0));
+        }
+
+        @Override
+        void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
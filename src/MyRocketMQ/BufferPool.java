@@ -0,0 +1,99 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接内存缓冲区池
+ * 按2的幂划分大小档（最小64字节），每档最多缓存 buffersPerClass 个空闲缓冲区；
+ * 超过 maxBufferSize 的请求直接分配、不回收。直接内存分配和回收都很昂贵，编码消息时应从池中借用
+ * 每个线程在每个大小档上另有一个私有槽位，同一线程借出又归还时不经过共享队列的锁
+ */
+public final class BufferPool {
+    private static final int MIN_SHIFT = 6;
+
+    public static final BufferPool DEFAULT = new BufferPool(1 << 20, 256);
+
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final int maxBufferSize;
+    private final ThreadLocal<ByteBuffer[]> local;
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxBufferSize, int buffersPerClass) {
+        if (maxBufferSize < (1 << MIN_SHIFT) || Integer.bitCount(maxBufferSize) != 1 || buffersPerClass <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxBufferSize = maxBufferSize;
+        int n = Integer.numberOfTrailingZeros(maxBufferSize) - MIN_SHIFT + 1;
+        this.classes = new ArrayBlockingQueue[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new ArrayBlockingQueue<>(buffersPerClass);
+        }
+        this.local = ThreadLocal.withInitial(() -> new ByteBuffer[n]);
+    }
+
+    /*
+    返回容量不小于 capacity 的缓冲区，position=0，limit=capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (capacity > maxBufferSize) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        int index = classOf(capacity);
+        ByteBuffer[] slots = local.get();
+        ByteBuffer buf = slots[index];
+        if (buf != null) {
+            slots[index] = null;
+        } else {
+            buf = classes[index].poll();
+        }
+        if (buf == null) {
+            allocated.increment();
+            buf = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        } else {
+            reused.increment();
+        }
+        buf.clear().limit(capacity);
+        return buf;
+    }
+
+    /*
+    归还缓冲区；不属于任何大小档或该档已满时直接丢弃，由 GC 回收
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        int cap = buf.capacity();
+        if (cap > maxBufferSize || cap < (1 << MIN_SHIFT) || Integer.bitCount(cap) != 1) {
+            return;
+        }
+        int index = classOf(cap);
+        ByteBuffer[] slots = local.get();
+        if (slots[index] == null) {
+            slots[index] = buf.clear();
+        } else {
+            classes[index].offer(buf);
+        }
+    }
+
+    private static int classOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    public long getAllocatedCount() {
+        return allocated.sum();
+    }
+
+    public long getReusedCount() {
+        return reused.sum();
+    }
+}
@@ -0,0 +1,574 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写的提交日志（参考 RocketMQ 的 CommitLog）
+ * 所有队列的消息按到达顺序写入同一组固定大小的内存映射段文件（commitlog/），每个队列另有一个只存偏移的消费队列（consumequeue/队列号/）
+ * 写入只是对映射内存的顺序 put，因此生产路径接近纯内存队列；积压量只受磁盘限制，不占用堆
+ * 刷盘方式见 FlushMode；重启时扫描最后一个段确定有效末尾，再从检查点开始重放日志补齐消费队列
+ * 消息在日志中一直保留，各消费组在 offsets/组名/ 下保存自己的消费偏移，共享同一份数据（见 GroupConsumer）
+ * 追加时同时登记 orderId 索引（index/，见 MessageIndex），queryByOrderId 按订单和时间范围直接定位消息；
+ * 批消息按其中每条消息的 orderId 与创建时间登记到批的偏移上，查询时解压该批，只返回匹配的消息
+ *
+ * 记录格式：
+ * totalSize(4) magic(4) crc(4) queueId(4) queueOffset(8) 之后是 MessageCodec 编码的消息，crc 覆盖编码后的消息
+ * 段尾放不下下一条记录时写入 BLANK 标记并切换到新段
+ */
+public class CommitLog implements AutoCloseable {
+    public enum FlushMode {
+        /*
+        同步刷盘：put 返回前数据已落盘，并发写入者共享同一次 force（组提交）
+         */
+        SYNC,
+        /*
+        异步组提交：后台线程按固定间隔把这段时间内的所有写入一次刷盘
+         */
+        ASYNC,
+        /*
+        由操作系统决定何时回写脏页，只在 close 时刷盘
+         */
+        OS
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    public static final int DEFAULT_CONSUME_QUEUE_ENTRIES = 300_000;
+    // 每个索引文件约400MB（稀疏文件，按实际写入占用磁盘），写满时平均每条链表4个条目
+    public static final int DEFAULT_INDEX_SLOTS = 4_000_000;
+    public static final int DEFAULT_INDEX_ENTRIES = 16_000_000;
+
+    static final int MAGIC_MESSAGE = 0xAABBCCDD;
+    static final int MAGIC_BLANK = 0xBBCCDDEE;
+    static final int HEADER_SIZE = 24;
+    private static final int POS_CRC = 8;
+    private static final int POS_QUEUE_ID = 12;
+    private static final int POS_QUEUE_OFFSET = 16;
+
+    private final Path dir;
+    private final Path commitLogDir;
+    private final Path consumeQueueDir;
+    private final Path offsetsDir;
+    private final int segmentSize;
+    private final int consumeQueueEntries;
+    private final FlushMode flushMode;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final CRC32 crc = new CRC32(); // 只在 putLock 内使用
+    // 登记批消息索引时解压用，只在 putLock 内或构造时的恢复中使用
+    private final MessageBatch.Reader indexReader = new MessageBatch.Reader();
+    private final MessageView indexView = new MessageView();
+    private volatile MappedFile[] segments;
+    private MappedFile current; // 只在 putLock 内访问
+    private volatile long maxOffset;
+    private volatile long flushedOffset;
+    private final Object flushLock = new Object();
+
+    private final ConcurrentHashMap<Integer, ConsumeQueue> consumeQueues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, OffsetStore> offsetStores = new ConcurrentHashMap<>();
+    private final MappedFile checkpoint;
+    private final MessageIndex index;
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    public CommitLog(Path dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, FlushMode.ASYNC, 500, TimeUnit.MILLISECONDS);
+    }
+
+    public CommitLog(Path dir, int segmentSize, FlushMode flushMode, long flushInterval, TimeUnit unit) {
+        this(dir, segmentSize, DEFAULT_CONSUME_QUEUE_ENTRIES, flushMode, flushInterval, unit);
+    }
+
+    public CommitLog(Path dir, int segmentSize, int consumeQueueEntries, FlushMode flushMode,
+                     long flushInterval, TimeUnit unit) {
+        if (segmentSize <= HEADER_SIZE + MessageCodec.HEADER_SIZE || consumeQueueEntries <= 0 || flushInterval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        if (dir == null || flushMode == null || unit == null) {
+            throw new NullPointerException();
+        }
+        this.dir = dir;
+        this.commitLogDir = dir.resolve("commitlog");
+        this.consumeQueueDir = dir.resolve("consumequeue");
+        this.offsetsDir = dir.resolve("offsets");
+        this.segmentSize = segmentSize;
+        this.consumeQueueEntries = consumeQueueEntries;
+        this.flushMode = flushMode;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        try {
+            Files.createDirectories(commitLogDir);
+            Files.createDirectories(consumeQueueDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.checkpoint = MappedFile.openFile(dir.resolve("checkpoint"), Long.BYTES);
+        this.index = new MessageIndex(dir.resolve("index"), DEFAULT_INDEX_SLOTS, DEFAULT_INDEX_ENTRIES);
+        recover();
+
+        if (flushMode != FlushMode.OS) {
+            flusher = new Thread(this::flushLoop, "commitlog-flush");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /*
+    重启恢复：
+    1. 加载所有日志段，只扫描最后一个段找到最后一条完整且校验通过的记录
+    2. 加载已有的消费队列，丢弃指向有效末尾之后的条目
+    3. 从检查点（消费队列已落盘的日志位置）开始重放日志，补齐消费队列；索引落后于检查点时从索引末尾开始，补齐索引
+     */
+    private void recover() {
+        List<MappedFile> loaded = MappedFile.loadAll(commitLogDir, segmentSize);
+        segments = loaded.toArray(new MappedFile[0]);
+        if (!loaded.isEmpty()) {
+            current = loaded.get(loaded.size() - 1);
+            current.writePos = scanSegment(current);
+            maxOffset = current.start + current.writePos;
+        }
+        flushedOffset = maxOffset;
+
+        try (var stream = Files.list(consumeQueueDir)) {
+            stream.filter(p -> p.getFileName().toString().matches("\\d+"))
+                    .forEach(p -> consumeQueue(Integer.parseInt(p.getFileName().toString())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (ConsumeQueue cq : consumeQueues.values()) {
+            cq.truncate(maxOffset);
+        }
+
+        long indexed = index.getEndOffset();
+        long from = Math.min(Math.min(checkpoint.buffer.getLong(0), indexed), maxOffset);
+        if (segments.length > 0) {
+            from = Math.max(from, segments[0].start);
+        }
+        while (from < maxOffset) {
+            MappedFile seg = segmentFor(from);
+            int pos = (int) (from - seg.start);
+            MappedByteBuffer b = seg.buffer;
+            if (pos + 8 > segmentSize || b.getInt(pos + 4) == MAGIC_BLANK) {
+                from = seg.start + segmentSize;
+                continue;
+            }
+            int size = b.getInt(pos);
+            if (size <= 0) {
+                from = seg.start + segmentSize;
+                continue;
+            }
+            ConsumeQueue cq = consumeQueue(b.getInt(pos + POS_QUEUE_ID));
+            long queueOffset = b.getLong(pos + POS_QUEUE_OFFSET);
+            if (queueOffset >= cq.entries()) {
+                cq.appendEntry(queueOffset, from, size);
+            }
+            if (from >= indexed) {
+                int body = pos + HEADER_SIZE;
+                if ((b.getInt(body + MessageCodec.POS_FLAGS) & Message.FLAG_BATCH) != 0) {
+                    indexRecord(MessageCodec.decode(b, body), from, size);
+                } else {
+                    index.put(b.getLong(body + MessageCodec.POS_ORDER_ID), b.getLong(body + MessageCodec.POS_TIMESTAMP),
+                            from, size);
+                }
+            }
+            from += size;
+        }
+    }
+
+    /*
+    返回段内最后一条有效记录的末尾位置
+     */
+    private int scanSegment(MappedFile seg) {
+        MappedByteBuffer b = seg.buffer;
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        while (pos + 8 <= segmentSize) {
+            int size = b.getInt(pos);
+            int magic = b.getInt(pos + 4);
+            if (magic == MAGIC_BLANK) {
+                return segmentSize;
+            }
+            if (magic != MAGIC_MESSAGE || size < HEADER_SIZE + MessageCodec.V1_HEADER_SIZE || size > segmentSize - pos) {
+                break;
+            }
+            int bodyLen = size - HEADER_SIZE;
+            if (b.getInt(pos + HEADER_SIZE) != bodyLen) {
+                break;
+            }
+            crc.reset();
+            crc.update(b.slice(pos + HEADER_SIZE, bodyLen));
+            if ((int) crc.getValue() != b.getInt(pos + POS_CRC)) {
+                break;
+            }
+            pos += size;
+        }
+        return pos;
+    }
+
+    ConsumeQueue consumeQueue(int queueId) {
+        ConsumeQueue cq = consumeQueues.get(queueId);
+        if (cq != null) {
+            return cq;
+        }
+        return consumeQueues.computeIfAbsent(queueId,
+                id -> new ConsumeQueue(this, id, consumeQueueDir.resolve(String.valueOf(id)), consumeQueueEntries));
+    }
+
+    /*
+    消费组的偏移存储；组名用作目录名，只允许字母、数字、'_'、'-'、'.'
+     */
+    OffsetStore offsetStore(String group) {
+        OffsetStore store = offsetStores.get(group);
+        if (store != null) {
+            return store;
+        }
+        if (!group.matches("[A-Za-z0-9_.-]+") || group.equals(".") || group.equals("..")) {
+            throw new IllegalArgumentException("bad consumer group name: " + group);
+        }
+        return offsetStores.computeIfAbsent(group, g -> new OffsetStore(g, offsetsDir.resolve(g)));
+    }
+
+    /*
+    追加一条消息并登记到对应队列的消费队列，返回记录在日志中的偏移
+     */
+    long append(int queueId, Message message) {
+        int size = recordSize(message);
+        ConsumeQueue cq = consumeQueue(queueId);
+
+        long offset;
+        long end;
+        putLock.lock();
+        try {
+            checkOpen();
+            offset = writeRecord(cq, queueId, message, size);
+            end = maxOffset;
+        } finally {
+            putLock.unlock();
+        }
+        cq.signalWaiters();
+        if (flushMode == FlushMode.SYNC) {
+            flush(end);
+        }
+        return offset;
+    }
+
+    /*
+    批量追加到同一个队列：记录长度在锁外算好，一次加锁写入全部记录，只唤醒一次消费者、只刷一次盘
+     */
+    void appendAll(int queueId, List<Message> messages) {
+        int n = messages.size();
+        if (n == 0) {
+            return;
+        }
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = recordSize(messages.get(i));
+        }
+        ConsumeQueue cq = consumeQueue(queueId);
+
+        long end;
+        putLock.lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < n; i++) {
+                writeRecord(cq, queueId, messages.get(i), sizes[i]);
+            }
+            end = maxOffset;
+        } finally {
+            putLock.unlock();
+        }
+        cq.signalWaiters();
+        if (flushMode == FlushMode.SYNC) {
+            flush(end);
+        }
+    }
+
+    private int recordSize(Message message) {
+        int size = HEADER_SIZE + MessageCodec.encodedSize(message);
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("message of " + size + " bytes exceeds segment size " + segmentSize);
+        }
+        return size;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("commit log is closed");
+        }
+    }
+
+    /*
+    在当前段末尾写入一条记录并登记到消费队列，调用方持有 putLock
+    消息直接编码进映射内存，校验和也直接在映射内存上计算
+     */
+    private long writeRecord(ConsumeQueue cq, int queueId, Message message, int size) {
+        MappedFile seg = current;
+        if (seg == null || seg.remaining() < size) {
+            seg = roll(seg);
+        }
+        int pos = seg.writePos;
+        long offset = seg.start + pos;
+        long queueOffset = cq.entries();
+        MappedByteBuffer b = seg.buffer;
+        MessageCodec.encode(message, b, pos + HEADER_SIZE);
+        crc.reset();
+        crc.update(b.slice(pos + HEADER_SIZE, size - HEADER_SIZE));
+        b.putInt(pos, size);
+        b.putInt(pos + 4, MAGIC_MESSAGE);
+        b.putInt(pos + POS_CRC, (int) crc.getValue());
+        b.putInt(pos + POS_QUEUE_ID, queueId);
+        b.putLong(pos + POS_QUEUE_OFFSET, queueOffset);
+        seg.writePos = pos + size;
+        cq.appendEntry(queueOffset, offset, size);
+        indexRecord(message, offset, size);
+        maxOffset = offset + size;
+        return offset;
+    }
+
+    /*
+    登记一条记录的 orderId 索引；批消息解压后按其中每条消息登记到批的偏移上，相邻且 orderId 与创建时间都相同的只登记一次
+     */
+    private void indexRecord(Message message, long offset, int size) {
+        if (!MessageBatch.isBatch(message)) {
+            index.put(message.getOrderId(), message.getTimestamp(), offset, size);
+            return;
+        }
+        MessageView view = indexView;
+        indexReader.open(message);
+        boolean first = true;
+        long lastOrderId = 0;
+        long lastTimestamp = 0;
+        while (indexReader.next(view)) {
+            long orderId = view.orderId();
+            long timestamp = view.timestamp();
+            if (first || orderId != lastOrderId || timestamp != lastTimestamp) {
+                index.put(orderId, timestamp, offset, size);
+                first = false;
+                lastOrderId = orderId;
+                lastTimestamp = timestamp;
+            }
+        }
+    }
+
+    /*
+    切换到下一个段；旧段剩余空间足够时写入 BLANK 标记，恢复扫描遇到它即跳到下一段
+     */
+    private MappedFile roll(MappedFile seg) {
+        long start = 0;
+        if (seg != null) {
+            if (seg.remaining() >= 8) {
+                seg.buffer.putInt(seg.writePos, seg.remaining());
+                seg.buffer.putInt(seg.writePos + 4, MAGIC_BLANK);
+            }
+            start = seg.start + segmentSize;
+            seg.writePos = segmentSize;
+        }
+        MappedFile next = MappedFile.open(commitLogDir, start, segmentSize);
+        MappedFile[] segs = segments;
+        MappedFile[] grown = Arrays.copyOf(segs, segs.length + 1);
+        grown[segs.length] = next;
+        segments = grown;
+        current = next;
+        return next;
+    }
+
+    private MappedFile segmentFor(long offset) {
+        MappedFile[] segs = segments;
+        int i = (int) ((offset - segs[0].start) / segmentSize);
+        return segs[i];
+    }
+
+    Message read(long offset, int size) {
+        MappedFile seg = segmentFor(offset);
+        return MessageCodec.decode(seg.buffer, (int) (offset - seg.start) + HEADER_SIZE);
+    }
+
+    /*
+    按 orderId 查询创建时间在 [fromTs, toTs]（毫秒，含两端）内的消息，按写入顺序返回
+     */
+    public List<Message> queryByOrderId(long orderId, long fromTs, long toTs) {
+        return queryByOrderId(orderId, fromTs, toTs, Integer.MAX_VALUE);
+    }
+
+    /*
+    超过 maxResults 条时只返回最新的 maxResults 条；批消息中匹配的消息单独返回，按批内顺序排列
+     */
+    public List<Message> queryByOrderId(long orderId, long fromTs, long toTs, int maxResults) {
+        long[] offsets = index.query(orderId, fromTs, toTs, maxResults).toArray();
+        // 日志偏移的顺序就是写入顺序；恢复后可能有重复条目，或指向被截断后重写的位置，逐条按日志核对
+        Arrays.sort(offsets);
+        long end = maxOffset;
+        List<Message> result = new ArrayList<>(offsets.length);
+        MessageBatch.Reader reader = null;
+        MessageView view = null;
+        for (int i = 0; i < offsets.length; i++) {
+            long offset = offsets[i];
+            if ((i > 0 && offset == offsets[i - 1]) || offset + HEADER_SIZE > end) {
+                continue;
+            }
+            MappedFile seg = segmentFor(offset);
+            int pos = (int) (offset - seg.start);
+            if (seg.buffer.getInt(pos + 4) != MAGIC_MESSAGE) {
+                continue;
+            }
+            int body = pos + HEADER_SIZE;
+            if ((seg.buffer.getInt(body + MessageCodec.POS_FLAGS) & Message.FLAG_BATCH) != 0) {
+                if (reader == null) {
+                    reader = new MessageBatch.Reader();
+                    view = new MessageView();
+                }
+                reader.open(MessageCodec.decode(seg.buffer, body));
+                while (reader.next(view)) {
+                    if (view.orderId() == orderId && view.timestamp() >= fromTs && view.timestamp() <= toTs) {
+                        result.add(view.toMessage());
+                    }
+                }
+            } else if (seg.buffer.getLong(body + MessageCodec.POS_ORDER_ID) == orderId) {
+                result.add(MessageCodec.decode(seg.buffer, body));
+            }
+        }
+        if (result.size() > maxResults) {
+            return new ArrayList<>(result.subList(result.size() - maxResults, result.size()));
+        }
+        return result;
+    }
+
+    /*
+    只读取记录中消息的创建时间，不解码
+     */
+    long timestampAt(long offset) {
+        MappedFile seg = segmentFor(offset);
+        return seg.buffer.getLong((int) (offset - seg.start) + HEADER_SIZE + MessageCodec.POS_TIMESTAMP);
+    }
+
+    /*
+    把 view 定位到指定记录中的消息上，不解码消息体
+     */
+    MessageView view(long offset, MessageView view) {
+        MappedFile seg = segmentFor(offset);
+        return view.wrap(seg.buffer, (int) (offset - seg.start) + HEADER_SIZE);
+    }
+
+    /*
+    把当前已写入的全部数据刷盘
+     */
+    public void flush() {
+        flush(maxOffset);
+    }
+
+    /*
+    组提交：已被其他线程刷过的范围直接返回，否则一次性刷到当前写入末尾
+     */
+    private void flush(long upTo) {
+        if (flushedOffset >= upTo) {
+            return;
+        }
+        synchronized (flushLock) {
+            long from = flushedOffset;
+            if (from >= upTo) {
+                return;
+            }
+            long to = maxOffset;
+            for (MappedFile seg : segments) {
+                long segEnd = seg.start + segmentSize;
+                if (segEnd <= from || seg.start >= to) {
+                    continue;
+                }
+                seg.force((int) (Math.max(from, seg.start) - seg.start), (int) (Math.min(to, segEnd) - seg.start));
+            }
+            flushedOffset = to;
+        }
+    }
+
+    /*
+    消费队列落盘后记录对应的日志位置，重启时只需从这里开始重放；各消费组的偏移在这里批量落盘
+     */
+    private void checkpoint() {
+        long dispatched = maxOffset;
+        for (ConsumeQueue cq : consumeQueues.values()) {
+            cq.flush();
+        }
+        for (OffsetStore store : offsetStores.values()) {
+            store.flush();
+        }
+        index.flush();
+        checkpoint.buffer.putLong(0, dispatched);
+        checkpoint.force(0, Long.BYTES);
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            if (closed) {
+                break;
+            }
+            if (flushMode == FlushMode.ASYNC) {
+                flush();
+            }
+            checkpoint();
+        }
+    }
+
+    /*
+    日志中最后一条记录的末尾偏移
+     */
+    public long getMaxOffset() {
+        return maxOffset;
+    }
+
+    int indexFileCount() {
+        return index.fileCount();
+    }
+
+    public long getFlushedOffset() {
+        return flushedOffset;
+    }
+
+    public FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /*
+    停止后台刷盘并把日志、消费队列和消费进度全部落盘
+     */
+    @Override
+    public void close() {
+        putLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            putLock.unlock();
+        }
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        checkpoint();
+    }
+}
@@ -0,0 +1,96 @@
+package MyRocketMQ;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一致性哈希路由：每个队列按 id 在哈希环上放 virtualNodes 个虚拟节点，orderId 落到顺时针方向的第一个节点
+ * 增加或移除一个队列时只有约 1/n 的订单换队列，其余订单的路由不变
+ * 环按队列列表缓存（按引用比较），最近用过的两个列表各保留一份，重平衡期间新旧路由交替查询不会反复重建
+ */
+public final class ConsistentHashSelector implements QueueSelector {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private volatile Ring recent;
+    private volatile Ring older;
+
+    public ConsistentHashSelector() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashSelector(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    @Override
+    public MessageQueue select(long orderId, List<MessageQueue> queues) {
+        return ringFor(queues).select(mix(orderId));
+    }
+
+    private Ring ringFor(List<MessageQueue> queues) {
+        Ring r = recent;
+        if (r != null && r.queues == queues) {
+            return r;
+        }
+        Ring o = older;
+        if (o != null && o.queues == queues) {
+            return o;
+        }
+        Ring built = new Ring(queues, virtualNodes);
+        older = r;
+        recent = built;
+        return built;
+    }
+
+    /*
+    SplitMix64 的混合函数，连续的 orderId 和队列 id 也能均匀散开
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class Ring {
+        final List<MessageQueue> queues;
+        final long[] points;
+        final MessageQueue[] owners;
+
+        Ring(List<MessageQueue> queues, int virtualNodes) {
+            if (queues.isEmpty()) {
+                throw new IllegalArgumentException("no queues");
+            }
+            this.queues = queues;
+            TreeMap<Long, MessageQueue> ring = new TreeMap<>();
+            for (MessageQueue mq : queues) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    ring.put(mix(((long) mq.getId() << 32) | i), mq);
+                }
+            }
+            this.points = new long[ring.size()];
+            this.owners = new MessageQueue[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, MessageQueue> e : ring.entrySet()) {
+                points[i] = e.getKey();
+                owners[i++] = e.getValue();
+            }
+        }
+
+        MessageQueue select(long hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+                if (i == points.length) {
+                    i = 0;
+                }
+            }
+            return owners[i];
+        }
+    }
+}
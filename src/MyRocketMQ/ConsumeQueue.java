@@ -0,0 +1,369 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单个队列的消费队列：按队列内序号保存消息在提交日志中的位置
+ * 每个条目固定12字节（8字节日志偏移 + 4字节记录长度），同样切分为内存映射段文件
+ * 条目只由 CommitLog 在写锁内追加，entries 的 volatile 写保证读线程看到条目时日志内容也已写入
+ * 消费进度（下一条要 take 的序号）保存在同目录的 consumed 文件中，重启后从该位置继续消费
+ * 条目不会因 take 而删除，read/awaitEntries 按序号非破坏地读取，供各消费组（GroupConsumer）按各自的偏移消费
+ */
+final class ConsumeQueue implements MessageQueue.Storage {
+    static final int ENTRY_SIZE = 12;
+
+    private final CommitLog commitLog;
+    private final int queueId;
+    private final Path dir;
+    private final int segmentSize;
+    private volatile MappedFile[] segments;
+    private volatile long entries;
+    private long flushedEntries;
+
+    private final MappedFile consumedFile;
+    private volatile long consumed; // 只在 lock 内修改
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile int waiters;
+
+    ConsumeQueue(CommitLog commitLog, int queueId, Path dir, int entriesPerSegment) {
+        this.commitLog = commitLog;
+        this.queueId = queueId;
+        this.dir = dir;
+        this.segmentSize = entriesPerSegment * ENTRY_SIZE;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<MappedFile> loaded = MappedFile.loadAll(dir, segmentSize);
+        this.segments = loaded.toArray(new MappedFile[0]);
+        long count = 0;
+        if (!loaded.isEmpty()) {
+            // 只有最后一个段可能没写满，长度为0的条目即为末尾
+            MappedFile last = loaded.get(loaded.size() - 1);
+            int n = 0;
+            while (n < entriesPerSegment && last.buffer.getInt(n * ENTRY_SIZE + 8) != 0) {
+                n++;
+            }
+            count = last.start / ENTRY_SIZE + n;
+        }
+        this.entries = count;
+        this.flushedEntries = count;
+        this.consumedFile = MappedFile.openFile(dir.resolve("consumed"), Long.BYTES);
+        this.consumed = Math.min(consumedFile.buffer.getLong(0), count);
+    }
+
+    int getQueueId() {
+        return queueId;
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    /*
+    追加一个条目，调用方持有 CommitLog 的写锁
+     */
+    void appendEntry(long index, long offset, int size) {
+        long pos = index * ENTRY_SIZE;
+        MappedFile seg = segmentFor(pos, true);
+        int p = (int) (pos - seg.start);
+        seg.buffer.putLong(p, offset);
+        seg.buffer.putInt(p + 8, size);
+        entries = index + 1;
+    }
+
+    long offsetAt(long index) {
+        long pos = index * ENTRY_SIZE;
+        MappedFile seg = segmentFor(pos, false);
+        return seg.buffer.getLong((int) (pos - seg.start));
+    }
+
+    int sizeAt(long index) {
+        long pos = index * ENTRY_SIZE;
+        MappedFile seg = segmentFor(pos, false);
+        return seg.buffer.getInt((int) (pos - seg.start) + 8);
+    }
+
+    private MappedFile segmentFor(long pos, boolean create) {
+        MappedFile[] segs = segments;
+        int i = segs.length == 0 ? 0 : (int) ((pos - segs[0].start) / segmentSize);
+        if (i < segs.length) {
+            return segs[i];
+        }
+        if (!create) {
+            throw new IllegalStateException("queue " + queueId + " has no entry at byte " + pos);
+        }
+        long start = segs.length == 0 ? pos - pos % segmentSize : segs[segs.length - 1].start + segmentSize;
+        MappedFile[] grown = Arrays.copyOf(segs, segs.length + 1);
+        grown[segs.length] = MappedFile.open(dir, start, segmentSize);
+        segments = grown;
+        return segmentFor(pos, true);
+    }
+
+    /*
+    恢复时丢弃指向提交日志有效末尾之后的条目（日志尾部在崩溃中丢失的情况）
+     */
+    void truncate(long maxPhyOffset) {
+        long n = entries;
+        while (n > 0 && offsetAt(n - 1) + sizeAt(n - 1) > maxPhyOffset) {
+            long pos = (n - 1) * ENTRY_SIZE;
+            MappedFile seg = segmentFor(pos, false);
+            int p = (int) (pos - seg.start);
+            seg.buffer.putLong(p, 0L);
+            seg.buffer.putInt(p + 8, 0);
+            n--;
+        }
+        entries = n;
+        flushedEntries = Math.min(flushedEntries, n);
+        if (consumed > n) {
+            consumed = n;
+            consumedFile.buffer.putLong(0, n);
+        }
+    }
+
+    /*
+    有消费者阻塞等待时才加锁唤醒，生产路径上通常只有一次 volatile 读
+     */
+    void signalWaiters() {
+        if (waiters > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+    把新追加的条目和消费进度刷到磁盘，由 CommitLog 的检查点调用
+     */
+    void flush() {
+        long end = entries;
+        long from = flushedEntries * ENTRY_SIZE;
+        long to = end * ENTRY_SIZE;
+        for (MappedFile seg : segments) {
+            long segEnd = seg.start + segmentSize;
+            if (segEnd <= from || seg.start >= to) {
+                continue;
+            }
+            seg.force((int) (Math.max(from, seg.start) - seg.start), (int) (Math.min(to, segEnd) - seg.start));
+        }
+        flushedEntries = end;
+        consumedFile.force(0, Long.BYTES);
+    }
+
+    /*
+    非破坏地读取从序号 from 开始的最多 maxElements 条消息，按队列顺序加入 c，返回读取的条数；不影响 take 的进度
+     */
+    int read(long from, int maxElements, Collection<? super Message> c) {
+        int n = (int) Math.max(0, Math.min(maxElements, entries - from));
+        for (long i = from; i < from + n; i++) {
+            c.add(commitLog.read(offsetAt(i), sizeAt(i)));
+        }
+        return n;
+    }
+
+    /*
+    等待序号 index 处的条目写入，至多等待 nanos，返回条目是否已存在
+     */
+    boolean awaitEntries(long index, long nanos) throws InterruptedException {
+        if (entries > index) {
+            return true;
+        }
+        lock.lockInterruptibly();
+        try {
+            // 先登记等待者再检查条目，与追加方"先写条目再读 waiters"配合，不会错过唤醒
+            waiters++;
+            try {
+                while (entries <= index) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    第一条创建时间不早于 timestamp 的消息序号，没有则返回 entries
+    按创建时间在队列内递增二分查找；多个生产者的时钟交错时结果在边界附近是近似的
+     */
+    long indexOfTimestamp(long timestamp) {
+        long lo = 0;
+        long hi = entries;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (commitLog.timestampAt(offsetAt(mid)) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public void put(Message message) throws InterruptedException {
+        commitLog.append(queueId, message);
+    }
+
+    @Override
+    public void putAll(List<Message> messages) throws InterruptedException {
+        commitLog.appendAll(queueId, messages);
+    }
+
+    @Override
+    public Message take() throws InterruptedException {
+        return poll(-1);
+    }
+
+    @Override
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /*
+    nanos 为负数时一直等待
+     */
+    private Message poll(long nanos) throws InterruptedException {
+        long index;
+        lock.lockInterruptibly();
+        try {
+            while (consumed >= entries) {
+                if (nanos == 0) {
+                    return null;
+                }
+                waiters++;
+                try {
+                    if (nanos < 0) {
+                        notEmpty.await();
+                    } else {
+                        nanos = Math.max(0, notEmpty.awaitNanos(nanos));
+                    }
+                } finally {
+                    waiters--;
+                }
+            }
+            index = consumed;
+            consumed = index + 1;
+            consumedFile.buffer.putLong(0, index + 1);
+        } finally {
+            lock.unlock();
+        }
+        return commitLog.read(offsetAt(index), sizeAt(index));
+    }
+
+    @Override
+    public int drainTo(Collection<? super Message> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        long from;
+        int n;
+        lock.lock();
+        try {
+            from = consumed;
+            n = (int) Math.max(0, Math.min(maxElements, entries - from));
+            if (n == 0) {
+                return 0;
+            }
+            consumed = from + n;
+            consumedFile.buffer.putLong(0, from + n);
+        } finally {
+            lock.unlock();
+        }
+        for (long i = from; i < from + n; i++) {
+            c.add(commitLog.read(offsetAt(i), sizeAt(i)));
+        }
+        return n;
+    }
+
+    /*
+    条目中记录了每条消息在日志中的长度，在一次加锁内按长度累加确定取走的条数
+     */
+    @Override
+    public int drainTo(Collection<? super Message> c, int maxElements, long maxBytes) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        long from;
+        int n;
+        lock.lock();
+        try {
+            from = consumed;
+            int limit = (int) Math.max(0, Math.min(maxElements, entries - from));
+            long bytes = 0;
+            n = 0;
+            while (n < limit) {
+                int size = sizeAt(from + n) - CommitLog.HEADER_SIZE;
+                if (n > 0 && bytes + size > maxBytes) {
+                    break;
+                }
+                bytes += size;
+                n++;
+            }
+            if (n == 0) {
+                return 0;
+            }
+            consumed = from + n;
+            consumedFile.buffer.putLong(0, from + n);
+        } finally {
+            lock.unlock();
+        }
+        for (long i = from; i < from + n; i++) {
+            c.add(commitLog.read(offsetAt(i), sizeAt(i)));
+        }
+        return n;
+    }
+
+    /*
+    从消费位置起读取最多 maxElements 条消息但不取走，处理完后用 skip 确认；只适用于单个消费者
+    确认前进程退出时这些消息在重启后仍会被读到（至少一次）
+     */
+    int peekTo(Collection<? super Message> c, int maxElements) {
+        return read(consumed, maxElements, c);
+    }
+
+    /*
+    确认队首的 n 条消息已处理，推进并记录消费位置
+     */
+    void skip(int n) {
+        lock.lock();
+        try {
+            long next = Math.min(entries, consumed + n);
+            consumed = next;
+            consumedFile.buffer.putLong(0, next);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message peek() {
+        long index = consumed;
+        return index < entries ? commitLog.read(offsetAt(index), sizeAt(index)) : null;
+    }
+
+    @Override
+    public long size() {
+        return entries - consumed;
+    }
+}
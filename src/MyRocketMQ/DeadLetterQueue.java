@@ -0,0 +1,106 @@
+package MyRocketMQ;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * 死信队列：重试次数用尽（或消费者关闭时仍在等待重试）的消息，连同来源队列、尝试次数和最后一次的异常保存在这里
+ * 可以随时查看（list），问题修复后通过 Producer 重新投递（replay）；重新投递的消息排在该订单此后消息的后面
+ * 只保存在内存中
+ */
+public class DeadLetterQueue {
+    public static final class DeadLetter {
+        private final Message message;
+        private final int queueId;
+        private final int attempts;
+        private final String error;
+        private final long timestamp;
+
+        DeadLetter(Message message, int queueId, int attempts, String error) {
+            this.message = message;
+            this.queueId = queueId;
+            this.attempts = attempts;
+            this.error = error;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public int getQueueId() {
+            return queueId;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /*
+        进入死信队列的时间（毫秒）
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "[Queue=" + queueId + ", Attempts=" + attempts + ", Error=" + error + ", Message=" + message + "]";
+        }
+    }
+
+    private final List<DeadLetter> letters = new ArrayList<>();
+
+    synchronized void add(DeadLetter letter) {
+        letters.add(letter);
+    }
+
+    public synchronized int size() {
+        return letters.size();
+    }
+
+    /*
+    按进入顺序返回当前全部死信的快照
+     */
+    public synchronized List<DeadLetter> list() {
+        return new ArrayList<>(letters);
+    }
+
+    public int replay(Producer producer) throws InterruptedException {
+        return replay(letter -> true, producer);
+    }
+
+    /*
+    把满足 filter 的死信按进入顺序重新发送并从死信队列移除，返回重新发送的条数
+    发送失败时这批死信留在队列中
+     */
+    public int replay(Predicate<DeadLetter> filter, Producer producer) throws InterruptedException {
+        List<DeadLetter> selected = new ArrayList<>();
+        synchronized (this) {
+            for (DeadLetter letter : letters) {
+                if (filter.test(letter)) {
+                    selected.add(letter);
+                }
+            }
+        }
+        if (selected.isEmpty()) {
+            return 0;
+        }
+        List<Message> messages = new ArrayList<>(selected.size());
+        for (DeadLetter letter : selected) {
+            messages.add(letter.message);
+        }
+        producer.sendBatch(messages);
+        // DeadLetter 没有重写 equals，按引用移除
+        Set<DeadLetter> sent = Collections.newSetFromMap(new IdentityHashMap<>());
+        sent.addAll(selected);
+        synchronized (this) {
+            letters.removeAll(sent);
+        }
+        return selected.size();
+    }
+}
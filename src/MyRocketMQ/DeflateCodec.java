@@ -0,0 +1,78 @@
+package MyRocketMQ;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 基于 java.util.zip 的 Deflate（不带 zlib 头尾，校验由批次头部的 CRC 负责）
+ * Deflater/Inflater 分配本地内存，每个线程各复用一个，连同压缩输出的暂存数组
+ */
+final class DeflateCodec implements BatchCodec {
+    static final int ID = 1;
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final ThreadLocal<byte[][]> scratch = ThreadLocal.withInitial(() -> new byte[][]{new byte[64 << 10]});
+
+    DeflateCodec(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("deflate level " + level);
+        }
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int length, int headroom) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        byte[][] holder = scratch.get();
+        byte[] out = holder[0];
+        int n = headroom;
+        while (!deflater.finished()) {
+            if (n == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+                holder[0] = out;
+            }
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst, int rawLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int r = inflater.inflate(dst, n, rawLength - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != rawLength || !inflater.finished()) {
+                throw new IllegalArgumentException("corrupt deflate batch: " + n + " of " + rawLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt deflate batch", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "deflate(" + level + ")";
+    }
+}
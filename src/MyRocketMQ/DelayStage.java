@@ -0,0 +1,305 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 延时投递阶段：放在 MessageQueue（或 Producer）之前，消息到达投递时间后才交给目标
+ * 四层分层时间轮，每层512格，最底层一格为 tickMillis：
+ * 消息按距离到期的格数放入对应层，上层的格子在下层转完一圈时整体下移一层（cascade），
+ * 因此每条消息最多被搬动三次，每个 tick 只处理到期的一格，不扫描其他暂存的消息
+ * 暂存的消息以 MessageCodec 编码后连续存放在每格的字节数组中，不为每条消息保留对象，百万级积压的内存和 GC 开销都很小
+ * 投递精度为一个 tick：消息在其投递时间向上取整到 tick 的时刻释放，同一时刻释放的消息按 schedule 的先后顺序交给目标，
+ * 因此同一 orderId 的消息按（取整后的投递时间，发送顺序）有序；立即投递的消息不经过本阶段
+ * 只在内存中暂存，close 时已到期的消息先交给目标，尚未到期的消息被丢弃；目标抛出异常或被中断的一批消息计入 getDroppedCount()
+ */
+public class DelayStage implements AutoCloseable {
+    public interface Target {
+        void putAll(List<Message> messages) throws InterruptedException;
+    }
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    private static final int WHEEL_BITS = 9;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    // 每条暂存消息前的 schedule 序号
+    private static final int ENTRY_HEADER = 8;
+
+    private final Target target;
+    private final long tickMillis;
+    private final Bucket[][] wheels = new Bucket[LEVELS][WHEEL_SIZE];
+    // wheels/currentTick/sequence 只在锁内访问
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick;
+    private long sequence;
+    private volatile long held;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+    private final Thread ticker;
+
+    public DelayStage(Target target) {
+        this(target, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public DelayStage(Target target, long tick, TimeUnit unit) {
+        if (target == null) {
+            throw new NullPointerException();
+        }
+        this.tickMillis = unit.toMillis(tick);
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be at least 1ms");
+        }
+        this.target = target;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.ticker = new Thread(this::run, "delay-stage-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /*
+    暂存到 msg.getDeliverAt() 再投递；投递时间已过的消息在下一个 tick 投递
+     */
+    public void schedule(Message msg) {
+        int size = MessageCodec.encodedSize(msg);
+        long slot = Math.floorDiv(msg.getDeliverAt() + tickMillis - 1, tickMillis);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("delay stage is closed");
+            }
+            ByteBuffer chunk = bucketFor(Math.max(slot, currentTick)).reserve(ENTRY_HEADER + size);
+            int pos = chunk.position() - ENTRY_HEADER - size;
+            chunk.putLong(pos, sequence++);
+            MessageCodec.encode(msg, chunk, pos + ENTRY_HEADER);
+            held++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    尚未交给目标的消息数，包括正在交给目标的一批
+     */
+    public long size() {
+        return held;
+    }
+
+    /*
+    交给目标失败（目标抛出异常，或 close 的调用者被中断）而丢失的消息数
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /*
+    停止时间轮：等待已到期的消息交给目标后返回，尚未到期的消息被丢弃，丢弃的条数见 size()
+    等待期间调用者被中断时，中断时间轮线程，正在交给目标的一批计入 getDroppedCount()
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+        boolean interrupted = false;
+        while (ticker.isAlive()) {
+            try {
+                ticker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                ticker.interrupt();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Bucket bucketFor(long slot) {
+        long delta = slot - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((slot >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Bucket b = wheels[level][index];
+        if (b == null) {
+            b = new Bucket();
+            wheels[level][index] = b;
+        }
+        return b;
+    }
+
+    /*
+    处理 currentTick 这一格：底层转完一圈时先把上层对应的格子下移，返回到期的格子（可能为 null）
+     */
+    private Bucket advance() {
+        int index = (int) (currentTick & WHEEL_MASK);
+        if (index == 0) {
+            for (int level = 1; level < LEVELS; level++) {
+                int upper = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                Bucket b = wheels[level][upper];
+                wheels[level][upper] = null;
+                if (b != null) {
+                    cascade(b);
+                }
+                if (upper != 0) {
+                    break;
+                }
+            }
+        }
+        Bucket due = wheels[0][index];
+        wheels[0][index] = null;
+        currentTick++;
+        return due;
+    }
+
+    /*
+    按字节原样搬到更低的层，不解码
+     */
+    private void cascade(Bucket from) {
+        for (ByteBuffer src : from.chunks) {
+            int pos = 0;
+            while (pos < src.position()) {
+                int len = ENTRY_HEADER + src.getInt(pos + ENTRY_HEADER + MessageCodec.POS_LENGTH);
+                long deliverAt = src.getLong(pos + ENTRY_HEADER + MessageCodec.POS_DELIVER_AT);
+                long slot = Math.floorDiv(deliverAt + tickMillis - 1, tickMillis);
+                ByteBuffer dst = bucketFor(Math.max(slot, currentTick)).reserve(len);
+                dst.put(dst.position() - len, src, pos, len);
+                pos += len;
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            Bucket due = null;
+            long wait = 0;
+            lock.lock();
+            try {
+                if (currentTick <= now / tickMillis) {
+                    due = advance();
+                } else {
+                    wait = currentTick * tickMillis - now;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (due != null) {
+                deliver(due, Long.MAX_VALUE);
+            } else if (wait > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+            }
+        }
+        // close 之后 schedule 不再写入，把含有已到期消息的格子交给目标；最后一格中尚未到期的消息不提前释放，留在 size() 中
+        long now = System.currentTimeMillis();
+        long last = Math.floorDiv(now + tickMillis - 1, tickMillis);
+        for (; ; ) {
+            Bucket due;
+            lock.lock();
+            try {
+                if (currentTick > last) {
+                    break;
+                }
+                due = advance();
+            } finally {
+                lock.unlock();
+            }
+            if (due != null) {
+                deliver(due, now);
+            }
+        }
+    }
+
+    /*
+    解码一格并按 schedule 顺序交给目标；下移来的消息可能排在直接放入的消息之后，必要时按序号重排
+    只交出投递时间不晚于 cutoff 的消息（close 时为当前时间，平时不限），其余的不交出、仍计入 held
+    交给目标之后才从 held 中扣除，失败的一批计入 dropped（目标可能已写入其中一部分）
+     */
+    private void deliver(Bucket due, long cutoff) {
+        long[] seqs = new long[due.count];
+        Message[] messages = new Message[due.count];
+        boolean sorted = true;
+        int i = 0;
+        for (ByteBuffer src : due.chunks) {
+            int pos = 0;
+            while (pos < src.position()) {
+                if (src.getLong(pos + ENTRY_HEADER + MessageCodec.POS_DELIVER_AT) <= cutoff) {
+                    seqs[i] = src.getLong(pos);
+                    messages[i] = MessageCodec.decode(src, pos + ENTRY_HEADER);
+                    sorted &= i == 0 || seqs[i - 1] < seqs[i];
+                    i++;
+                }
+                pos += ENTRY_HEADER + src.getInt(pos + ENTRY_HEADER + MessageCodec.POS_LENGTH);
+            }
+        }
+        final int n = i;
+        if (n == 0) {
+            return;
+        }
+        List<Message> batch;
+        if (sorted) {
+            batch = Arrays.asList(messages).subList(0, n);
+        } else {
+            Integer[] order = new Integer[n];
+            for (int k = 0; k < order.length; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, Comparator.comparingLong(k -> seqs[k]));
+            batch = new ArrayList<>(order.length);
+            for (Integer k : order) {
+                batch.add(messages[k]);
+            }
+        }
+        try {
+            target.putAll(batch);
+        } catch (InterruptedException | RuntimeException e) {
+            // 只有 close 的调用者被中断时才会中断时间轮线程
+            dropped.add(batch.size());
+        } finally {
+            // held 与 schedule 中的自增在同一把锁内修改
+            lock.lock();
+            try {
+                held -= n;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 一格中的消息：[seq(8) 编码后的消息] 首尾相接地写在若干块中，每块的 position 是已写入的长度
+     * 块从256字节起翻倍到8KB为止，之后每块8KB，一条消息不跨块；分块而不是整体翻倍，空闲空间最多一块
+     */
+    private static final class Bucket {
+        private static final int FIRST_CHUNK = 256;
+        private static final int MAX_CHUNK = 8192;
+
+        final ArrayList<ByteBuffer> chunks = new ArrayList<>(1);
+        int count;
+
+        /*
+        预留 len 字节，返回所在的块，预留的区域是块的 [position - len, position)
+         */
+        ByteBuffer reserve(int len) {
+            ByteBuffer tail = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (tail == null || tail.remaining() < len) {
+                int capacity = tail == null ? FIRST_CHUNK : Math.min(MAX_CHUNK, tail.capacity() * 2);
+                tail = ByteBuffer.allocate(Math.max(capacity, len));
+                chunks.add(tail);
+            }
+            tail.position(tail.position() + len);
+            count++;
+            return tail;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package MyRocketMQ;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按偏移消费的消费组：消息保留在提交日志中，每个消费组在每个队列上记录自己的消费偏移（下一条要消费的序号）
+ * 多个消费组（如计费、分析）各自从同一个消费队列读取，不复制数据，互不影响；与 MessageQueue 的 take 也互不影响
+ * 每个队列一个线程，按队列顺序批量回调；回调返回后才提交偏移，提交只写映射内存，由 CommitLog 的检查点批量落盘，
+ * 因此进程在回调中途崩溃时，重启后从上次提交的位置重新消费（至少一次），重复的最多是一批
+ * 回调抛出异常时这一批不提交偏移：enableRetry 之后按重试策略在消费线程上重试失败的部分（阻塞该队列以保持顺序），
+ * 用尽后移入死信队列再提交；未开启重试时计入 getFailedCount()，等待 FAILURE_BACKOFF_NANOS 后从原偏移重新消费
+ * 可以随时把某个队列的偏移重置到指定序号或时间点（seek/seekToTimestamp）重放历史消息
+ * 同一消费组同一时刻只应有一个 GroupConsumer 实例；setMetrics 后快照中包含本组在各队列上的积压
+ */
+public class GroupConsumer {
+    // 没有新消息时每次等待的时长，期间有消息写入会立即唤醒
+    private static final long AWAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // 未开启重试时，一批回调失败后到重新消费前的等待时长
+    private static final long FAILURE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final CommitLog commitLog;
+    private final OffsetStore offsets;
+    private final List<Integer> queueIds;
+    private final OrderlyConsumer.BatchMessageListener listener;
+    private final int batchSize;
+    private final ExecutorService executor;
+    // 各队列待生效的重置偏移，-1表示没有
+    private final Map<Integer, AtomicLong> seeks = new HashMap<>();
+    private final LongAdder failed = new LongAdder();
+    // 回调指标，未设置时为 null；重试策略与死信队列未开启时为 null；都只在 start 之前设置
+    private MessageMetrics metrics;
+    private OrderlyConsumer.RetryPolicy retryPolicy;
+    private DeadLetterQueue deadLetters;
+
+    public GroupConsumer(CommitLog commitLog, String group, List<Integer> queueIds,
+                         OrderlyConsumer.BatchMessageListener listener, int batchSize) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (queueIds.isEmpty() || batchSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.commitLog = commitLog;
+        this.offsets = commitLog.offsetStore(group);
+        this.queueIds = List.copyOf(queueIds);
+        this.listener = listener;
+        this.batchSize = batchSize;
+        for (int queueId : this.queueIds) {
+            seeks.put(queueId, new AtomicLong(-1));
+        }
+        this.executor = Executors.newFixedThreadPool(this.queueIds.size());
+    }
+
+    /*
+    逐条回调的便捷形式
+     */
+    public GroupConsumer(CommitLog commitLog, String group, List<Integer> queueIds,
+                         OrderlyConsumer.MessageListener listener) {
+        this(commitLog, group, queueIds, (queueId, messages) -> {
+            for (Message m : messages) {
+                listener.consume(queueId, m);
+            }
+        }, 256);
+    }
+
+    public String getGroup() {
+        return offsets.getGroup();
+    }
+
+    public List<Integer> getQueueIds() {
+        return queueIds;
+    }
+
+    /*
+    记录回调指标并登记本组的积压，必须在 start 之前调用
+     */
+    public GroupConsumer setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.registerGroup(this);
+        }
+        return this;
+    }
+
+    /*
+    开启失败重试，必须在 start 之前调用
+     */
+    public GroupConsumer enableRetry(OrderlyConsumer.RetryPolicy policy, DeadLetterQueue deadLetters) {
+        if (policy == null || deadLetters == null) {
+            throw new NullPointerException();
+        }
+        this.retryPolicy = policy;
+        this.deadLetters = deadLetters;
+        return this;
+    }
+
+    /*
+    未开启重试时回调失败的消息数；失败的一批重新消费时再次失败会重复计入
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public void start() {
+        for (int queueId : queueIds) {
+            executor.submit(() -> consume(queueId));
+        }
+    }
+
+    private void consume(int queueId) {
+        ConsumeQueue cq = commitLog.consumeQueue(queueId);
+        AtomicLong seek = seeks.get(queueId);
+        // 恢复时日志尾部可能被截断，提交的偏移不能超过现有条目
+        long offset = Math.min(offsets.get(queueId), cq.entries());
+        List<Message> batch = new ArrayList<>(Math.min(batchSize, 1024));
+        MessageBatch.Reader reader = new MessageBatch.Reader();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long s = seek.getAndSet(-1);
+                if (s >= 0) {
+                    offset = s;
+                }
+                batch.clear();
+                if (cq.read(offset, batchSize, batch) == 0) {
+                    cq.awaitEntries(offset, AWAIT_NANOS);
+                    continue;
+                }
+                // 偏移按消费队列的条目计，一条批消息只占一个偏移
+                if (!deliverBatch(queueId, MessageBatch.expand(batch, reader))) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // 回调被中断，这一批不提交，下次启动时重新消费
+                        break;
+                    }
+                    // 回调失败，这一批不提交，稍后从原偏移重新消费（已成功的部分会重复回调）
+                    TimeUnit.NANOSECONDS.sleep(FAILURE_BACKOFF_NANOS);
+                    continue;
+                }
+                offset += batch.size();
+                if (seek.get() < 0) {
+                    offsets.commit(queueId, offset);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+    与 OrderlyConsumer 的批量模式相同：按屏障切开，屏障前的部分回调完成后再确认屏障；
+    返回整批是否处理完（回调成功或移入死信队列），失败或被中断时停在失败的部分，之后的屏障不确认
+     */
+    private boolean deliverBatch(int queueId, List<Message> batch) {
+        int from = 0;
+        for (int i = 0, n = batch.size(); i <= n; i++) {
+            if (i < n && !RebalanceBarrier.isBarrier(batch.get(i))) {
+                continue;
+            }
+            if (i > from && !process(queueId, from == 0 && i == n ? batch : batch.subList(from, i))) {
+                return false;
+            }
+            if (i < n) {
+                RebalanceBarrier.arrive(batch.get(i));
+            }
+            from = i + 1;
+        }
+        return true;
+    }
+
+    /*
+    回调一部分消息；失败时按重试策略退避后重试，用尽后移入死信队列；未开启重试时计入 failed 并返回 false
+    被中断时恢复中断标志并返回 false，这部分留给下次启动重新消费
+     */
+    private boolean process(int queueId, List<Message> part) {
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                if (metrics == null) {
+                    listener.consume(queueId, part);
+                } else {
+                    metrics.consume(listener, queueId, part);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                if (retryPolicy == null) {
+                    failed.add(part.size());
+                    return false;
+                }
+                if (attempts >= retryPolicy.getMaxAttempts()) {
+                    for (Message m : part) {
+                        deadLetters.add(new DeadLetterQueue.DeadLetter(m, queueId, attempts, e.toString()));
+                    }
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(retryPolicy.backoffNanos(attempts));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /*
+    把队列的消费偏移重置到 offset（0到当前最大偏移之间），正在运行时下一批生效；正在回调的一批处理完后不再提交旧偏移
+     */
+    public void seek(int queueId, long offset) {
+        AtomicLong seek = seeks.get(queueId);
+        if (seek == null) {
+            throw new IllegalArgumentException("queue " + queueId + " is not consumed by group " + getGroup());
+        }
+        if (offset < 0 || offset > getMaxOffset(queueId)) {
+            throw new IllegalArgumentException("offset " + offset + " out of range [0, " + getMaxOffset(queueId) + "]");
+        }
+        offsets.commit(queueId, offset);
+        seek.set(offset);
+    }
+
+    /*
+    重置到第一条创建时间不早于 timestamp（毫秒）的消息，返回重置后的偏移
+     */
+    public long seekToTimestamp(int queueId, long timestamp) {
+        long offset = commitLog.consumeQueue(queueId).indexOfTimestamp(timestamp);
+        seek(queueId, offset);
+        return offset;
+    }
+
+    public long getCommittedOffset(int queueId) {
+        return offsets.get(queueId);
+    }
+
+    /*
+    队列当前的消息条数，即下一条写入的序号
+     */
+    public long getMaxOffset(int queueId) {
+        return commitLog.consumeQueue(queueId).entries();
+    }
+
+    /*
+    已写入但本组尚未提交的消息条数
+     */
+    public long getLag(int queueId) {
+        return Math.max(0, getMaxOffset(queueId) - getCommittedOffset(queueId));
+    }
+
+    /*
+    停止消费；正在回调的一批处理完即提交，被中断的一批不提交
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,221 @@
+package MyRocketMQ;
+
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * 一个 orderId 索引文件（参考 RocketMQ 的 IndexFile），整个文件内存映射，结构：
+ * <pre>
+ * header(48)  baseTimestamp(8) minTimestamp(8) maxTimestamp(8) beginOffset(8) endOffset(8) slotCount(4) count(4)
+ * slots       slotCount 个4字节槽位，保存该槽链表头条目的编号（从1开始，0表示空）
+ * entries     每个24字节：orderId(8) 日志偏移(8) timeDiff(4) prev(4)
+ * </pre>
+ * 同一槽位的条目通过 prev 串成链表，新条目插在表头；timeDiff 是消息创建时间相对 baseTimestamp（第一条的时间）的毫秒数
+ * 只有一个写线程（持有 CommitLog 写锁）；条目先写入，再以 count 的 volatile 写发布，最后更新槽位，
+ * 读线程从槽位读到尚未发布的条目编号时等待 count 追上，因此总能看到完整的条目
+ */
+final class IndexFile {
+    static final int HEADER_SIZE = 48;
+    static final int SLOT_SIZE = 4;
+    static final int ENTRY_SIZE = 24;
+
+    private static final int POS_BASE_TS = 0;
+    private static final int POS_MIN_TS = 8;
+    private static final int POS_MAX_TS = 16;
+    private static final int POS_BEGIN_OFFSET = 24;
+    private static final int POS_END_OFFSET = 32;
+    private static final int POS_SLOT_COUNT = 40;
+    private static final int POS_COUNT = 44;
+
+    private final MappedFile file;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int maxEntries;
+    private final int entriesStart;
+    private long baseTimestamp;
+    private volatile long minTimestamp;
+    private volatile long maxTimestamp;
+    private volatile long endOffset;
+    private volatile int count;
+
+    private IndexFile(MappedFile file, int slotCount, int maxEntries) {
+        this.file = file;
+        this.buffer = file.buffer;
+        this.slotCount = slotCount;
+        this.maxEntries = maxEntries;
+        this.entriesStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        this.baseTimestamp = buffer.getLong(POS_BASE_TS);
+        this.minTimestamp = buffer.getLong(POS_MIN_TS);
+        this.maxTimestamp = buffer.getLong(POS_MAX_TS);
+        this.endOffset = buffer.getLong(POS_END_OFFSET);
+        this.count = buffer.getInt(POS_COUNT);
+    }
+
+    static int fileSize(int slotCount, int maxEntries) {
+        return HEADER_SIZE + slotCount * SLOT_SIZE + maxEntries * ENTRY_SIZE;
+    }
+
+    /*
+    新建时写入槽位数；打开已有文件时以文件头中的槽位数为准
+     */
+    static IndexFile open(Path path, int slotCount, int maxEntries) {
+        MappedFile file = MappedFile.openFile(path, fileSize(slotCount, maxEntries));
+        int stored = file.buffer.getInt(POS_SLOT_COUNT);
+        if (stored == 0) {
+            file.buffer.putInt(POS_SLOT_COUNT, slotCount);
+        } else if (stored != slotCount) {
+            throw new IllegalStateException("index file " + path + " has " + stored + " slots, expected " + slotCount);
+        }
+        IndexFile index = new IndexFile(file, slotCount, maxEntries);
+        index.repair();
+        return index;
+    }
+
+    /*
+    崩溃时槽位可能已落盘而文件头中的 count 没有，槽位指向 count 之后的条目时按已发布的条目重建全部链表
+     */
+    private void repair() {
+        int n = count;
+        boolean broken = false;
+        for (int i = 0; i < slotCount && !broken; i++) {
+            broken = buffer.getInt(HEADER_SIZE + i * SLOT_SIZE) > n;
+        }
+        if (!broken) {
+            return;
+        }
+        for (int i = 0; i < slotCount; i++) {
+            buffer.putInt(HEADER_SIZE + i * SLOT_SIZE, 0);
+        }
+        for (int e = 0; e < n; e++) {
+            int entryPos = entriesStart + e * ENTRY_SIZE;
+            int slotPos = HEADER_SIZE + slot(buffer.getLong(entryPos)) * SLOT_SIZE;
+            buffer.putInt(entryPos + 20, buffer.getInt(slotPos));
+            buffer.putInt(slotPos, e + 1);
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /*
+    文件已满，或时间差超出4字节范围时返回 false，调用方应换用新文件
+     */
+    boolean put(long orderId, long timestamp, long offset, int size) {
+        int n = count;
+        if (n >= maxEntries) {
+            return false;
+        }
+        if (n == 0) {
+            baseTimestamp = timestamp;
+            minTimestamp = timestamp;
+            maxTimestamp = timestamp;
+            buffer.putLong(POS_BASE_TS, timestamp);
+            buffer.putLong(POS_BEGIN_OFFSET, offset);
+        }
+        long diff = timestamp - baseTimestamp;
+        if (diff < Integer.MIN_VALUE || diff > Integer.MAX_VALUE) {
+            return false;
+        }
+        int slotPos = HEADER_SIZE + slot(orderId) * SLOT_SIZE;
+        int entryPos = entriesStart + n * ENTRY_SIZE;
+        buffer.putLong(entryPos, orderId);
+        buffer.putLong(entryPos + 8, offset);
+        buffer.putInt(entryPos + 16, (int) diff);
+        buffer.putInt(entryPos + 20, buffer.getInt(slotPos));
+        if (timestamp < minTimestamp) {
+            minTimestamp = timestamp;
+            buffer.putLong(POS_MIN_TS, timestamp);
+        }
+        if (timestamp > maxTimestamp) {
+            maxTimestamp = timestamp;
+            buffer.putLong(POS_MAX_TS, timestamp);
+        }
+        endOffset = offset + size;
+        buffer.putLong(POS_END_OFFSET, offset + size);
+        buffer.putInt(POS_COUNT, n + 1);
+        count = n + 1;
+        buffer.putInt(slotPos, n + 1);
+        return true;
+    }
+
+    /*
+    沿槽位链表从新到旧收集 orderId 匹配且创建时间在 [fromTs, toTs] 内的日志偏移，最多收集到 out 中共 max 个
+    返回本文件中匹配的条数
+     */
+    int query(long orderId, long fromTs, long toTs, int max, LongList out) {
+        int found = 0;
+        int e = buffer.getInt(HEADER_SIZE + slot(orderId) * SLOT_SIZE);
+        while (e > 0 && out.size() < max) {
+            // 槽位可能先于 count 被看到，等写线程发布这个条目（只有几条指令的间隔）
+            while (e > count) {
+                Thread.onSpinWait();
+            }
+            int entryPos = entriesStart + (e - 1) * ENTRY_SIZE;
+            if (buffer.getLong(entryPos) == orderId) {
+                // baseTimestamp 在第一个条目发布前写入
+                long ts = buffer.getLong(POS_BASE_TS) + buffer.getInt(entryPos + 16);
+                if (ts >= fromTs && ts <= toTs) {
+                    out.add(buffer.getLong(entryPos + 8));
+                    found++;
+                }
+            }
+            int prev = buffer.getInt(entryPos + 20);
+            if (prev >= e) {
+                // 链表只会指向更早的条目，否则文件已损坏
+                break;
+            }
+            e = prev;
+        }
+        return found;
+    }
+
+    private int slot(long orderId) {
+        int h = (int) ((orderId * 0x9E3779B97F4A7C15L) >>> 32);
+        return Math.floorMod(h, slotCount);
+    }
+
+    void flush() {
+        file.force(0, entriesStart + count * ENTRY_SIZE);
+    }
+
+    /**
+     * 不装箱的 long 列表，收集查询结果
+     */
+    static final class LongList {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        long get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 固定大小的内存映射段文件
+ * 文件名为该段在逻辑地址空间中的起始偏移（20位十进制，左补0），同一目录下的段首尾相接
+ * 读写都使用绝对位置的 get/put，不修改 buffer 的 position，因此多个读线程可以共享同一个映射
+ */
+final class MappedFile {
+    final long start;
+    final int size;
+    final Path path;
+    final MappedByteBuffer buffer;
+
+    // 当前写入位置，只由持有写锁的线程访问
+    int writePos;
+
+    private MappedFile(Path path, long start, int size) throws IOException {
+        this.path = path;
+        this.start = start;
+        this.size = size;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() != size) {
+                file.setLength(size);
+            }
+            // 映射建立后即可关闭文件，映射在 buffer 被回收前一直有效
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    static MappedFile open(Path dir, long start, int size) {
+        try {
+            return new MappedFile(dir.resolve(fileName(start)), start, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+    映射一个独立的小文件（检查点、消费进度等），起始偏移记为0
+     */
+    static MappedFile openFile(Path path, int size) {
+        try {
+            return new MappedFile(path, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String fileName(long start) {
+        return String.format("%020d", start);
+    }
+
+    /*
+    按起始偏移升序加载目录下的所有段文件，忽略非段文件；段必须首尾相接
+     */
+    static List<MappedFile> loadAll(Path dir, int size) {
+        List<MappedFile> result = new ArrayList<>();
+        try {
+            if (!Files.isDirectory(dir)) {
+                return result;
+            }
+            List<Path> files = new ArrayList<>();
+            try (var stream = Files.list(dir)) {
+                stream.filter(p -> p.getFileName().toString().matches("\\d{20}")).forEach(files::add);
+            }
+            files.sort(null);
+            for (Path p : files) {
+                long start = Long.parseLong(p.getFileName().toString());
+                if (Files.size(p) != size) {
+                    throw new IllegalStateException("segment " + p + " is " + Files.size(p) + " bytes, expected " + size);
+                }
+                if (!result.isEmpty() && result.get(result.size() - 1).start + size != start) {
+                    throw new IllegalStateException("segment " + p + " is not contiguous with its predecessor");
+                }
+                result.add(new MappedFile(p, start, size));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    int remaining() {
+        return size - writePos;
+    }
+
+    /*
+    将 [from, to) 范围内的脏页刷到磁盘
+     */
+    void force(int from, int to) {
+        if (to > from) {
+            buffer.force(from, to - from);
+        }
+    }
+}
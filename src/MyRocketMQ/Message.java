@@ -1,35 +1,126 @@
 package MyRocketMQ;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Message {
+    /*
+    系统保留的标志位，业务标志只应使用低30位
+     */
+    public static final int FLAG_BARRIER = 1 << 31;
+    // 压缩的批消息，见 MessageBatch
+    public static final int FLAG_BATCH = 1 << 30;
 
     private final long orderId;
+    // 文本消息保存 content，二进制消息保存 payload，另一种形式按需转换
     private final String content;
+    private final byte[] payload;
     private final long timestamp;
+    private final int flags;
+    private final Map<String, String> headers;
+    // 投递时间（毫秒），0表示立即投递
+    private final long deliverAt;
 
     public long getOrderId() {
         return orderId;
     }
 
     public String getContent() {
+        if (content == null && payload != null) {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
         return content;
     }
 
+    /*
+    消息体的字节形式；文本消息每次调用都会重新编码，编码到缓冲区时应使用 MessageCodec 避免中间数组
+     */
+    public byte[] getPayload() {
+        if (payload == null && content != null) {
+            return content.getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
+    }
+
+    public boolean isText() {
+        return payload == null;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
 
+    public int getFlags() {
+        return flags;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String key) {
+        return headers.get(key);
+    }
+
+    public long getDeliverAt() {
+        return deliverAt;
+    }
+
+    /*
+    返回投递时间为 deliverAt（毫秒）的副本，其余字段不变；0表示立即投递
+     */
+    public Message withDeliverAt(long deliverAt) {
+        if (deliverAt == this.deliverAt) {
+            return this;
+        }
+        return new Message(orderId, content, payload, timestamp, flags, headers, deliverAt);
+    }
+
+    public Message withDelay(long delay, TimeUnit unit) {
+        return withDeliverAt(System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
     public Message(long orderId, String content) {
+        this(orderId, content, System.currentTimeMillis());
+    }
+
+    /*
+    从提交日志等持久化介质恢复消息时使用，保留原始的创建时间
+     */
+    public Message(long orderId, String content, long timestamp) {
+        this(orderId, content, null, timestamp, 0, Collections.emptyMap(), 0);
+    }
+
+    public Message(long orderId, String content, long timestamp, int flags, Map<String, String> headers) {
+        this(orderId, content, null, timestamp, flags, copyOf(headers), 0);
+    }
+
+    public Message(long orderId, byte[] payload, long timestamp, int flags, Map<String, String> headers) {
+        this(orderId, null, Objects.requireNonNull(payload), timestamp, flags, copyOf(headers), 0);
+    }
+
+    private Message(long orderId, String content, byte[] payload, long timestamp, int flags, Map<String, String> headers,
+                    long deliverAt) {
         this.orderId = orderId;
         this.content = content;
-        this.timestamp = System.currentTimeMillis();
+        this.payload = payload;
+        this.timestamp = timestamp;
+        this.flags = flags;
+        this.headers = headers;
+        this.deliverAt = deliverAt;
+    }
+
+    private static Map<String, String> copyOf(Map<String, String> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap<>(headers));
     }
 
     @Override
     public String toString() {
-        return String.format("[OrderId=%d, Content=%s, Time=%d]", orderId, content, timestamp);
+        return "[OrderId=" + orderId + ", Content=" + getContent() + ", Time=" + timestamp + "]";
     }
 }
@@ -0,0 +1,197 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 批消息：同一队列的多条消息按 MessageCodec 依次编码后整体压缩，作为一条带 FLAG_BATCH 的二进制消息写入队列，
+ * 因此在内存队列、提交日志与 Broker 连接上都只占一条记录，存储与传输的都是压缩后的字节
+ * 批消息的 orderId 与创建时间取第一条消息的值；提交日志的 orderId 索引按批内每条消息的 orderId 登记，见 CommitLog.queryByOrderId
+ * 消息体格式（整数为大端序）：
+ * <pre>
+ * codec(1) reserved(3) count(4) rawLength(4) crc(4)  之后是压缩数据，crc 覆盖解压后的 rawLength 字节
+ * </pre>
+ * 消费者用 Reader 解压一次，再用 MessageView 逐条读取，不为每条消息分配对象；OrderlyConsumer 等内置消费者自动展开
+ */
+public final class MessageBatch {
+    static final int HEADER_SIZE = 16;
+
+    private static final ConcurrentHashMap<Integer, BatchCodec> CODECS = new ConcurrentHashMap<>();
+    // 打包时编码消息的暂存区，按线程复用
+    private static final ThreadLocal<ByteBuffer[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new ByteBuffer[]{ByteBuffer.allocate(64 << 10)});
+
+    static {
+        register(BatchCodec.NONE);
+        register(BatchCodec.DEFLATE);
+    }
+
+    private MessageBatch() {
+    }
+
+    /*
+    登记自定义压缩算法；同一编号只能对应一种算法
+     */
+    public static void register(BatchCodec codec) {
+        int id = codec.id();
+        if (id < 0 || id > 127) {
+            throw new IllegalArgumentException("codec id " + id + " out of range");
+        }
+        BatchCodec existing = CODECS.putIfAbsent(id, codec);
+        if (existing != null && existing != codec && existing.getClass() != codec.getClass()) {
+            throw new IllegalStateException("codec id " + id + " already used by " + existing);
+        }
+    }
+
+    public static boolean isBatch(Message message) {
+        return (message.getFlags() & Message.FLAG_BATCH) != 0;
+    }
+
+    /*
+    批内的消息条数，只读头部不解压；不是批消息时为1
+     */
+    public static int count(Message message) {
+        return isBatch(message) ? readInt(message.getPayload(), 4) : 1;
+    }
+
+    /*
+    把 messages 打包为一条批消息；其中不能有屏障或批消息
+     */
+    public static Message pack(List<Message> messages, BatchCodec codec) {
+        int n = messages.size();
+        if (n == 0) {
+            throw new IllegalArgumentException("empty batch");
+        }
+        int rawLength = 0;
+        for (int i = 0; i < n; i++) {
+            Message m = messages.get(i);
+            if ((m.getFlags() & (Message.FLAG_BATCH | Message.FLAG_BARRIER)) != 0) {
+                throw new IllegalArgumentException("cannot nest batches or barriers: " + m);
+            }
+            rawLength += MessageCodec.encodedSize(m);
+        }
+        ByteBuffer[] holder = SCRATCH.get();
+        ByteBuffer raw = holder[0];
+        if (raw.capacity() < rawLength) {
+            raw = ByteBuffer.allocate(Math.max(rawLength, raw.capacity() * 2));
+            holder[0] = raw;
+        }
+        raw.clear();
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            pos += MessageCodec.encode(messages.get(i), raw, pos);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw.array(), 0, rawLength);
+
+        byte[] payload = codec.compress(raw.array(), rawLength, HEADER_SIZE);
+        payload[0] = (byte) codec.id();
+        writeInt(payload, 4, n);
+        writeInt(payload, 8, rawLength);
+        writeInt(payload, 12, (int) crc.getValue());
+        Message first = messages.get(0);
+        return new Message(first.getOrderId(), payload, first.getTimestamp(), Message.FLAG_BATCH, null);
+    }
+
+    /*
+    把 messages 中的批消息展开为其中的消息，没有批消息时返回原列表
+     */
+    static List<Message> expand(List<Message> messages, Reader reader) {
+        List<Message> out = null;
+        for (int i = 0, n = messages.size(); i < n; i++) {
+            Message m = messages.get(i);
+            if (isBatch(m)) {
+                if (out == null) {
+                    out = new ArrayList<>(messages.subList(0, i));
+                }
+                reader.open(m);
+                Message inner;
+                while ((inner = reader.next()) != null) {
+                    out.add(inner);
+                }
+            } else if (out != null) {
+                out.add(m);
+            }
+        }
+        return out == null ? messages : out;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) (v >>> 24);
+        b[pos + 1] = (byte) (v >>> 16);
+        b[pos + 2] = (byte) (v >>> 8);
+        b[pos + 3] = (byte) v;
+    }
+
+    /**
+     * 批消息的读取器：open 时解压到内部缓冲区（容量只增不减，反复使用不再分配），之后逐条定位
+     * next(MessageView) 只移动位置，不创建对象；非线程安全，每个消费线程各用一个
+     */
+    public static final class Reader {
+        private byte[] raw = new byte[0];
+        private ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+        private final CRC32 crc = new CRC32();
+        private final MessageView view = new MessageView();
+        private int pos;
+        private int end;
+        private int count;
+
+        /*
+        解压并校验 batch，定位到第一条消息之前
+         */
+        public Reader open(Message batch) {
+            if (!isBatch(batch)) {
+                throw new IllegalArgumentException("not a batch: " + batch);
+            }
+            byte[] payload = batch.getPayload();
+            BatchCodec codec = CODECS.get(payload[0] & 0xFF);
+            if (codec == null) {
+                throw new IllegalStateException("unknown batch codec " + (payload[0] & 0xFF));
+            }
+            int rawLength = readInt(payload, 8);
+            if (raw.length < rawLength) {
+                raw = new byte[Math.max(rawLength, raw.length * 2)];
+                rawBuffer = ByteBuffer.wrap(raw);
+            }
+            codec.decompress(payload, HEADER_SIZE, payload.length - HEADER_SIZE, raw, rawLength);
+            crc.reset();
+            crc.update(raw, 0, rawLength);
+            if ((int) crc.getValue() != readInt(payload, 12)) {
+                throw new IllegalArgumentException("batch checksum mismatch");
+            }
+            pos = 0;
+            end = rawLength;
+            count = readInt(payload, 4);
+            return this;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /*
+        把 view 定位到下一条消息，没有更多消息时返回 false；view 在下一次 open 之前有效
+         */
+        public boolean next(MessageView view) {
+            if (pos >= end) {
+                return false;
+            }
+            view.wrap(rawBuffer, pos);
+            pos += view.length();
+            return true;
+        }
+
+        /*
+        解码下一条消息，没有更多消息时返回 null
+         */
+        public Message next() {
+            return next(view) ? view.toMessage() : null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 消息的紧凑二进制格式，整数均为大端序（ByteBuffer 默认）：
+ * <pre>
+ * length(4)      整条消息的字节数，包括本字段
+ * version(1)
+ * attributes(1)  bit0: 消息体是文本
+ * reserved(2)
+ * flags(4)       业务标志位
+ * orderId(8)
+ * timestamp(8)
+ * headersLen(4)  头部区域字节数，0表示没有头部
+ * payloadLen(4)  消息体字节数，-1表示 null
+ * deliverAt(8)   投递时间（毫秒），0表示立即投递；版本1没有这个字段，固定头部只有36字节
+ * headers        重复的 keyLen(2) key valueLen(2) value，均为 UTF-8
+ * payload
+ * </pre>
+ * 编码直接写入目标缓冲区（包括字符串的 UTF-8 编码），不经过中间 byte[]；读取单个字段见 MessageView
+ * 编码总是使用当前版本，解码同时支持版本1
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 2;
+    public static final int HEADER_SIZE = 44;
+
+    static final byte VERSION_1 = 1;
+    static final int V1_HEADER_SIZE = 36;
+
+    static final int ATTR_TEXT = 1;
+
+    static final int POS_LENGTH = 0;
+    static final int POS_VERSION = 4;
+    static final int POS_ATTRIBUTES = 5;
+    static final int POS_FLAGS = 8;
+    static final int POS_ORDER_ID = 12;
+    static final int POS_TIMESTAMP = 20;
+    static final int POS_HEADERS_LEN = 28;
+    static final int POS_PAYLOAD_LEN = 32;
+    static final int POS_DELIVER_AT = 36;
+
+    private MessageCodec() {
+    }
+
+    /*
+    编码后的总字节数
+     */
+    public static int encodedSize(Message message) {
+        return HEADER_SIZE + headersSize(message.getHeaders()) + Math.max(0, payloadSize(message));
+    }
+
+    /*
+    从 dst 的 offset 处写入（绝对位置，不修改 position），返回写入的字节数
+     */
+    public static int encode(Message message, ByteBuffer dst, int offset) {
+        return encode(message, dst, offset, headersSize(message.getHeaders()), payloadSize(message));
+    }
+
+    private static int encode(Message message, ByteBuffer dst, int offset, int headersLen, int payloadLen) {
+        int length = HEADER_SIZE + headersLen + Math.max(0, payloadLen);
+        if (offset < 0 || length > dst.limit() - offset) {
+            throw new IndexOutOfBoundsException("need " + length + " bytes at " + offset + ", limit " + dst.limit());
+        }
+        dst.putInt(offset + POS_LENGTH, length);
+        dst.put(offset + POS_VERSION, VERSION);
+        dst.put(offset + POS_ATTRIBUTES, (byte) (message.isText() ? ATTR_TEXT : 0));
+        dst.putShort(offset + 6, (short) 0);
+        dst.putInt(offset + POS_FLAGS, message.getFlags());
+        dst.putLong(offset + POS_ORDER_ID, message.getOrderId());
+        dst.putLong(offset + POS_TIMESTAMP, message.getTimestamp());
+        dst.putInt(offset + POS_HEADERS_LEN, headersLen);
+        dst.putInt(offset + POS_PAYLOAD_LEN, payloadLen);
+        dst.putLong(offset + POS_DELIVER_AT, message.getDeliverAt());
+        int pos = offset + HEADER_SIZE;
+        for (Map.Entry<String, String> e : message.getHeaders().entrySet()) {
+            pos = writeShortString(e.getKey(), dst, pos);
+            pos = writeShortString(e.getValue(), dst, pos);
+        }
+        if (message.isText()) {
+            if (message.getContent() != null) {
+                writeUtf8(message.getContent(), dst, pos);
+            }
+        } else {
+            dst.put(pos, message.getPayload());
+        }
+        return length;
+    }
+
+    /*
+    从池中取一个足够大的缓冲区并编码，返回的缓冲区 position=0、limit=消息长度，用完后归还给 pool
+     */
+    public static ByteBuffer encode(Message message, BufferPool pool) {
+        int headersLen = headersSize(message.getHeaders());
+        int payloadLen = payloadSize(message);
+        ByteBuffer buf = pool.acquire(HEADER_SIZE + headersLen + Math.max(0, payloadLen));
+        encode(message, buf, 0, headersLen, payloadLen);
+        return buf;
+    }
+
+    public static Message decode(ByteBuffer src, int offset) {
+        byte version = src.get(offset + POS_VERSION);
+        int headerSize = headerSize(version);
+        int attributes = src.get(offset + POS_ATTRIBUTES);
+        int flags = src.getInt(offset + POS_FLAGS);
+        long orderId = src.getLong(offset + POS_ORDER_ID);
+        long timestamp = src.getLong(offset + POS_TIMESTAMP);
+        int headersLen = src.getInt(offset + POS_HEADERS_LEN);
+        int payloadLen = src.getInt(offset + POS_PAYLOAD_LEN);
+        long deliverAt = version == VERSION_1 ? 0 : src.getLong(offset + POS_DELIVER_AT);
+        int pos = offset + headerSize;
+        Map<String, String> headers = null;
+        if (headersLen > 0) {
+            headers = new LinkedHashMap<>();
+            int end = pos + headersLen;
+            while (pos < end) {
+                int keyLen = src.getShort(pos) & 0xFFFF;
+                String key = readUtf8(src, pos + 2, keyLen);
+                pos += 2 + keyLen;
+                int valueLen = src.getShort(pos) & 0xFFFF;
+                String value = readUtf8(src, pos + 2, valueLen);
+                pos += 2 + valueLen;
+                headers.put(key, value);
+            }
+        }
+        if ((attributes & ATTR_TEXT) != 0) {
+            String content = payloadLen < 0 ? null : readUtf8(src, pos, payloadLen);
+            return new Message(orderId, content, timestamp, flags, headers).withDeliverAt(deliverAt);
+        }
+        byte[] payload = new byte[payloadLen];
+        src.get(pos, payload);
+        return new Message(orderId, payload, timestamp, flags, headers).withDeliverAt(deliverAt);
+    }
+
+    /*
+    固定头部长度；不认识的版本抛出 IllegalArgumentException
+     */
+    static int headerSize(byte version) {
+        if (version == VERSION) {
+            return HEADER_SIZE;
+        }
+        if (version == VERSION_1) {
+            return V1_HEADER_SIZE;
+        }
+        throw new IllegalArgumentException("unsupported message version " + version);
+    }
+
+    private static int payloadSize(Message message) {
+        if (message.isText()) {
+            String content = message.getContent();
+            return content == null ? -1 : utf8Length(content);
+        }
+        return message.getPayload().length;
+    }
+
+    private static int headersSize(Map<String, String> headers) {
+        int size = 0;
+        if (headers.isEmpty()) {
+            return 0;
+        }
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            size += 4 + shortStringLength(e.getKey()) + shortStringLength(e.getValue());
+        }
+        return size;
+    }
+
+    private static int shortStringLength(String s) {
+        int len = utf8Length(s);
+        if (len > 0xFFFF) {
+            throw new IllegalArgumentException("header longer than 65535 bytes");
+        }
+        return len;
+    }
+
+    private static int writeShortString(String s, ByteBuffer dst, int pos) {
+        int len = utf8Length(s);
+        dst.putShort(pos, (short) len);
+        writeUtf8(s, dst, pos + 2);
+        return pos + 2 + len;
+    }
+
+    static int utf8Length(CharSequence s) {
+        int len = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /*
+    逐字符写入 UTF-8，孤立的代理字符写为 U+FFFD（3字节，与 utf8Length 的计数一致）
+     */
+    static int writeUtf8(CharSequence s, ByteBuffer dst, int pos) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                dst.put(pos++, (byte) (0xC0 | (c >> 6)));
+                dst.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst.put(pos++, (byte) (0xF0 | (cp >> 18)));
+                    dst.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    dst.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    dst.put(pos++, (byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    dst.put(pos++, (byte) 0xEF);
+                    dst.put(pos++, (byte) 0xBF);
+                    dst.put(pos++, (byte) 0xBD);
+                }
+            } else {
+                dst.put(pos++, (byte) (0xE0 | (c >> 12)));
+                dst.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return pos;
+    }
+
+    static String readUtf8(ByteBuffer src, int pos, int len) {
+        if (src.hasArray()) {
+            return new String(src.array(), src.arrayOffset() + pos, len, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[len];
+        src.get(pos, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
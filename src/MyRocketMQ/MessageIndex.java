@@ -0,0 +1,103 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 提交日志的 orderId 索引：由若干 IndexFile 组成（index/ 目录，文件名为创建序号），写满一个换下一个
+ * 每条消息追加到日志时由 CommitLog 在写锁内登记（orderId、创建时间、日志偏移），查询时只访问时间范围有交集的文件
+ * 每个文件内一次查询只读一个槽位和一条短链表，与积压的消息总数无关
+ */
+final class MessageIndex {
+    private final Path dir;
+    private final int slotCount;
+    private final int entriesPerFile;
+    // 按创建顺序排列，只有最后一个文件在写入
+    private volatile IndexFile[] files;
+
+    MessageIndex(Path dir, int slotCount, int entriesPerFile) {
+        if (slotCount <= 0 || entriesPerFile <= 0 || IndexFile.HEADER_SIZE + (long) slotCount * IndexFile.SLOT_SIZE
+                + (long) entriesPerFile * IndexFile.ENTRY_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("index file of " + slotCount + " slots and " + entriesPerFile
+                    + " entries does not fit in one mapping");
+        }
+        this.dir = dir;
+        this.slotCount = slotCount;
+        this.entriesPerFile = entriesPerFile;
+        List<Path> paths = new ArrayList<>();
+        try {
+            Files.createDirectories(dir);
+            try (var stream = Files.list(dir)) {
+                stream.filter(p -> p.getFileName().toString().matches("\\d{20}")).forEach(paths::add);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        paths.sort(null);
+        IndexFile[] loaded = new IndexFile[paths.size()];
+        for (int i = 0; i < loaded.length; i++) {
+            loaded[i] = IndexFile.open(paths.get(i), slotCount, entriesPerFile);
+        }
+        this.files = loaded;
+    }
+
+    /*
+    已登记的最后一条消息在日志中的末尾偏移，恢复时从这里开始补登记
+     */
+    long getEndOffset() {
+        IndexFile[] fs = files;
+        return fs.length == 0 ? 0 : fs[fs.length - 1].getEndOffset();
+    }
+
+    /*
+    登记一条消息，调用方持有 CommitLog 的写锁
+     */
+    void put(long orderId, long timestamp, long offset, int size) {
+        IndexFile[] fs = files;
+        if (fs.length > 0 && fs[fs.length - 1].put(orderId, timestamp, offset, size)) {
+            return;
+        }
+        if (fs.length > 0) {
+            // 写满的文件不再修改，落盘后恢复时无需重建
+            fs[fs.length - 1].flush();
+        }
+        IndexFile next = IndexFile.open(dir.resolve(MappedFile.fileName(fs.length)), slotCount, entriesPerFile);
+        next.put(orderId, timestamp, offset, size);
+        IndexFile[] grown = Arrays.copyOf(fs, fs.length + 1);
+        grown[fs.length] = next;
+        files = grown;
+    }
+
+    /*
+    创建时间在 [fromTs, toTs] 内、orderId 匹配的日志偏移，最多 max 个，从新到旧
+    条目可能指向崩溃后被截断或重写的位置，调用方需按日志核对
+     */
+    IndexFile.LongList query(long orderId, long fromTs, long toTs, int max) {
+        IndexFile.LongList out = new IndexFile.LongList();
+        IndexFile[] fs = files;
+        for (int i = fs.length - 1; i >= 0 && out.size() < max; i--) {
+            IndexFile f = fs[i];
+            if (f.count() == 0 || f.getMaxTimestamp() < fromTs || f.getMinTimestamp() > toTs) {
+                continue;
+            }
+            f.query(orderId, fromTs, toTs, max, out);
+        }
+        return out;
+    }
+
+    void flush() {
+        IndexFile[] fs = files;
+        if (fs.length > 0) {
+            fs[fs.length - 1].flush();
+        }
+    }
+
+    int fileCount() {
+        return files.length;
+    }
+}
@@ -0,0 +1,137 @@
+package MyRocketMQ;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按队列统计的生产/消费指标，由 Producer、Broker 与各消费者（setMetrics）在发送和回调时记录，getSnapshot 随时生成快照
+ * 每个队列记录：写入条数、回调成功与失败的条数、端到端延迟（消息创建到开始处理，毫秒）与回调耗时（纳秒）的直方图
+ * 快照时另外读取已登记队列的当前深度与各消费组的积压；屏障消息不计入
+ * 端到端延迟依赖 Message 的创建时间（毫秒精度），跨进程时还受两端时钟偏差影响
+ * 多个组件可共用一个实例；记录只是计数器累加与直方图计数，不加锁、不打印
+ */
+public class MessageMetrics {
+    private final ConcurrentHashMap<Integer, QueueStats> stats = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, MessageQueue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, GroupConsumer> groups = new ConcurrentHashMap<>();
+
+    /*
+    登记队列以便在快照中给出它的深度（尚未被取走的消息数），同 id 的队列后登记的生效
+     */
+    public void registerQueue(MessageQueue mq) {
+        queues.put(mq.getId(), mq);
+        queue(mq.getId());
+    }
+
+    void registerGroup(GroupConsumer consumer) {
+        groups.put(consumer.getGroup(), consumer);
+    }
+
+    QueueStats queue(int queueId) {
+        QueueStats s = stats.get(queueId);
+        if (s != null) {
+            return s;
+        }
+        return stats.computeIfAbsent(queueId, id -> new QueueStats());
+    }
+
+    /*
+    调用批量回调并记录这一批的延迟、耗时与结果；中断不计入失败
+     */
+    void consume(OrderlyConsumer.BatchMessageListener listener, int queueId, List<Message> messages) throws Exception {
+        QueueStats s = queue(queueId);
+        s.started(messages, System.currentTimeMillis());
+        long start = System.nanoTime();
+        try {
+            listener.consume(queueId, messages);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            s.finished(messages.size(), System.nanoTime() - start, false);
+            throw e;
+        }
+        s.finished(messages.size(), System.nanoTime() - start, true);
+    }
+
+    public MetricsSnapshot getSnapshot() {
+        List<Integer> ids = new ArrayList<>(stats.keySet());
+        Collections.sort(ids);
+        List<MetricsSnapshot.QueueMetrics> queueMetrics = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            QueueStats s = stats.get(id);
+            MessageQueue mq = queues.get(id);
+            MetricsHistogram latency = new MetricsHistogram();
+            latency.add(s.latency);
+            MetricsHistogram handlerTime = new MetricsHistogram();
+            handlerTime.add(s.handlerTime);
+            queueMetrics.add(new MetricsSnapshot.QueueMetrics(id, s.produced.sum(), s.consumed.sum(), s.failed.sum(),
+                    mq == null ? -1 : mq.size(), latency, handlerTime));
+        }
+        Map<String, Map<Integer, Long>> lag = new TreeMap<>();
+        for (GroupConsumer g : groups.values()) {
+            Map<Integer, Long> perQueue = new TreeMap<>();
+            for (int queueId : g.getQueueIds()) {
+                perQueue.put(queueId, g.getLag(queueId));
+            }
+            lag.put(g.getGroup(), Collections.unmodifiableMap(perQueue));
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), queueMetrics, lag);
+    }
+
+    /**
+     * 一个队列的计数器与直方图
+     */
+    static final class QueueStats {
+        final LongAdder produced = new LongAdder();
+        final LongAdder consumed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final MetricsHistogram latency = new MetricsHistogram();
+        final MetricsHistogram handlerTime = new MetricsHistogram();
+
+        void produced(Message message) {
+            if (!RebalanceBarrier.isBarrier(message)) {
+                produced.add(MessageBatch.count(message));
+            }
+        }
+
+        /*
+        批消息按其中的消息条数计
+         */
+        void produced(List<Message> messages) {
+            int n = 0;
+            for (int i = 0, size = messages.size(); i < size; i++) {
+                Message m = messages.get(i);
+                if (!RebalanceBarrier.isBarrier(m)) {
+                    n += MessageBatch.count(m);
+                }
+            }
+            produced.add(n);
+        }
+
+        /*
+        回调开始时记录端到端延迟；延时消息从投递时间算起
+         */
+        void started(Message message, long nowMillis) {
+            latency.record(nowMillis - Math.max(message.getTimestamp(), message.getDeliverAt()));
+        }
+
+        void started(List<Message> messages, long nowMillis) {
+            for (int i = 0, size = messages.size(); i < size; i++) {
+                started(messages.get(i), nowMillis);
+            }
+        }
+
+        /*
+        一次回调结束；批量回调只记录一个耗时样本
+         */
+        void finished(int messages, long handlerNanos, boolean ok) {
+            handlerTime.record(handlerNanos);
+            if (ok) {
+                consumed.add(messages);
+            } else {
+                failed.add(messages);
+            }
+        }
+    }
+}
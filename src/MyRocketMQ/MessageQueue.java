@@ -5,22 +5,179 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageQueue {
+    /**
+     * 队列的存储后端
+     * 默认使用内存中的阻塞双端队列；持久化模式下由 CommitLog 的消费队列提供；RingBufferStorage 为无锁的有界实现
+     */
+    public interface Storage {
+        void put(Message message) throws InterruptedException;
+
+        /*
+        按顺序放入一批消息，实现应尽量以一次操作完成（一次加锁、一次唤醒）
+         */
+        void putAll(List<Message> messages) throws InterruptedException;
+
+        /*
+        有界存储在 timeout 内等不到空位时返回 false；无界存储直接放入，默认实现即 put
+         */
+        default boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+            put(message);
+            return true;
+        }
+
+        /*
+        按顺序限时放入一批消息，返回放入的条数（总是 messages 的一个前缀）；默认实现即 putAll
+         */
+        default int offerAll(List<Message> messages, long timeout, TimeUnit unit) throws InterruptedException {
+            putAll(messages);
+            return messages.size();
+        }
+
+        Message take() throws InterruptedException;
+
+        /*
+        等待至多 timeout，超时返回 null
+         */
+        Message poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+        /*
+        非阻塞地取走最多 maxElements 条消息，按队列顺序加入 c，返回取走的条数
+         */
+        int drainTo(Collection<? super Message> c, int maxElements);
+
+        /*
+        非阻塞地查看队首消息而不取走，队列为空时返回 null
+         */
+        Message peek();
+
+        /*
+        同 drainTo，另外编码后的总长不超过 maxBytes；第一条不受 maxBytes 限制，保证队首的消息总能被取走
+        默认实现逐条 peek 后取走，只在该队列只有一个消费者时正确；能在一次加锁内完成的实现应当覆盖
+         */
+        default int drainTo(Collection<? super Message> c, int maxElements, long maxBytes) {
+            int n = 0;
+            long bytes = 0;
+            Message next;
+            while (n < maxElements && (next = peek()) != null) {
+                int size = MessageCodec.encodedSize(next);
+                if (n > 0 && bytes + size > maxBytes) {
+                    break;
+                }
+                if (drainTo(c, 1) == 0) {
+                    break;
+                }
+                bytes += size;
+                n++;
+            }
+            return n;
+        }
+
+        long size();
+    }
+
     private final int id;
-    private final BlockingQueue<Message> queue = new LinkedBlockingDeque<>();
+    private final Storage storage;
 
     public MessageQueue(int id) {
+        this(id, new DequeStorage());
+    }
+
+    /*
+    持久化模式：消息追加到提交日志，队列本身只保存指向日志的偏移，重启后从日志段恢复
+     */
+    public MessageQueue(int id, CommitLog commitLog) {
+        this(id, commitLog.consumeQueue(id));
+    }
+
+    public MessageQueue(int id, Storage storage) {
+        if (storage == null) {
+            throw new NullPointerException();
+        }
         this.id = id;
+        this.storage = storage;
     }
 
     public void put(Message message) throws InterruptedException {
-        queue.put(message);
+        storage.put(message);
+    }
+
+    public void putAll(List<Message> messages) throws InterruptedException {
+        storage.putAll(messages);
+    }
+
+    public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+        return storage.offer(message, timeout, unit);
+    }
+
+    public int offerAll(List<Message> messages, long timeout, TimeUnit unit) throws InterruptedException {
+        return storage.offerAll(messages, timeout, unit);
     }
 
     public Message take() throws InterruptedException {
-        return queue.take();
+        return storage.take();
+    }
+
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return storage.poll(timeout, unit);
+    }
+
+    public int drainTo(Collection<? super Message> c, int maxElements) {
+        return storage.drainTo(c, maxElements);
+    }
+
+    public int drainTo(Collection<? super Message> c, int maxElements, long maxBytes) {
+        return storage.drainTo(c, maxElements, maxBytes);
+    }
+
+    /*
+    尚未被消费的消息数
+     */
+    public long size() {
+        return storage.size();
     }
 
     public int getId() {
         return id;
     }
+
+    private static final class DequeStorage implements Storage {
+        private final BlockingQueue<Message> queue = new LinkedBlockingDeque<>();
+
+        @Override
+        public void put(Message message) throws InterruptedException {
+            queue.put(message);
+        }
+
+        @Override
+        public void putAll(List<Message> messages) throws InterruptedException {
+            for (Message message : messages) {
+                queue.put(message);
+            }
+        }
+
+        @Override
+        public Message take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.poll(timeout, unit);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Message> c, int maxElements) {
+            return queue.drainTo(c, maxElements);
+        }
+
+        @Override
+        public Message peek() {
+            return queue.peek();
+        }
+
+        @Override
+        public long size() {
+            return queue.size();
+        }
+    }
 }
@@ -0,0 +1,2206 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * MessageQueue 各存储后端的压测与正确性验证
+ * 用法: java MyRocketMQ.MessageQueueBench [persist|ring|keyed|pipeline|codec|async|rebalance|delay|broker|groups|retry|index [messages]|metrics|compress]
+ */
+public class MessageQueueBench {
+    private static final String PADDING = "x".repeat(80);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "persist";
+        switch (mode) {
+            case "persist":
+                persist();
+                break;
+            case "ring":
+                ring();
+                break;
+            case "keyed":
+                keyed();
+                break;
+            case "pipeline":
+                pipeline();
+                break;
+            case "codec":
+                codec();
+                break;
+            case "async":
+                async();
+                break;
+            case "rebalance":
+                rebalance();
+                break;
+            case "delay":
+                delay();
+                delayClose();
+                break;
+            case "broker":
+                broker();
+                break;
+            case "groups":
+                groups();
+                groupFailures();
+                break;
+            case "retry":
+                retry();
+                break;
+            case "index":
+                index(args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000);
+                batchIndex();
+                break;
+            case "metrics":
+                metrics();
+                break;
+            case "compress":
+                compress();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+    }
+
+    /*
+    内存队列与三种刷盘方式的提交日志对比生产/消费吞吐，然后验证重启后从消费进度继续
+     */
+    static void persist() throws Exception {
+        final int queues = 4;
+        final int producers = 4;
+        runPipeline("memory    ", queues, producers, 1_000_000, id -> new MessageQueue(id));
+        for (CommitLog.FlushMode mode : CommitLog.FlushMode.values()) {
+            int messages = mode == CommitLog.FlushMode.SYNC ? 20_000 : 1_000_000;
+            Path dir = Files.createTempDirectory("commitlog-bench");
+            try (CommitLog log = new CommitLog(dir, 64 << 20, mode, 200, TimeUnit.MILLISECONDS)) {
+                runPipeline(String.format("%-10s", mode), queues, producers, messages, id -> new MessageQueue(id, log));
+            } finally {
+                delete(dir);
+            }
+        }
+        recovery(queues);
+    }
+
+    private static void runPipeline(String name, int queueCount, int producers, int messages,
+                                    IntFunction<MessageQueue> factory) throws Exception {
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(factory.apply(i));
+        }
+        final int perProducer = messages / producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        long orderId = producer * 1_000L + i % 100;
+                        queues.get((int) (orderId % queueCount)).put(new Message(orderId, i + ":" + PADDING));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long produced = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int disorder = 0;
+        long total = 0;
+        for (MessageQueue mq : queues) {
+            Map<Long, Integer> last = new HashMap<>();
+            for (long n = mq.size(); n > 0; n--) {
+                Message m = mq.take();
+                int seq = seqOf(m);
+                Integer prev = last.put(m.getOrderId(), seq);
+                if (prev != null && prev >= seq) {
+                    disorder++;
+                }
+                total++;
+            }
+        }
+        long consumed = System.nanoTime() - start;
+        System.out.printf("%s produce %10.0f msg/s  consume %10.0f msg/s  (%d msgs, %s)%n", name,
+                total * 1e9 / produced, total * 1e9 / consumed, total,
+                total == (long) perProducer * producers && disorder == 0 ? "OK" : "FAILED disorder=" + disorder);
+    }
+
+    /*
+    写入后每个队列消费一半并关闭，重新打开同一目录，剩余消息应按原顺序继续
+     */
+    private static void recovery(int queueCount) throws Exception {
+        final int perQueue = 100_000;
+        Path dir = Files.createTempDirectory("commitlog-recovery");
+        try {
+            // 小段文件，让日志跨越多个段
+            try (CommitLog log = new CommitLog(dir, 1 << 20, 4096, CommitLog.FlushMode.OS, 1, TimeUnit.SECONDS)) {
+                for (int q = 0; q < queueCount; q++) {
+                    MessageQueue mq = new MessageQueue(q, log);
+                    for (int i = 0; i < perQueue; i++) {
+                        mq.put(new Message(q, i + ":" + PADDING));
+                    }
+                    for (int i = 0; i < perQueue / 2; i++) {
+                        mq.take();
+                    }
+                }
+            }
+            boolean ok = true;
+            long start = System.nanoTime();
+            try (CommitLog log = new CommitLog(dir, 1 << 20, 4096, CommitLog.FlushMode.OS, 1, TimeUnit.SECONDS)) {
+                long recovered = System.nanoTime() - start;
+                for (int q = 0; q < queueCount; q++) {
+                    MessageQueue mq = new MessageQueue(q, log);
+                    ok &= mq.size() == perQueue - perQueue / 2;
+                    for (int i = perQueue / 2; i < perQueue; i++) {
+                        Message m = mq.take();
+                        ok &= m.getOrderId() == q && seqOf(m) == i;
+                    }
+                }
+                try (Stream<Path> files = Files.list(dir.resolve("commitlog"))) {
+                    System.out.printf("recovery   %d segments reopened in %.1f ms  %s%n",
+                            files.count(), recovered / 1e6, ok ? "OK" : "FAILED");
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static int seqOf(Message m) {
+        String c = m.getContent();
+        return Integer.parseInt(c, 0, c.indexOf(':'), 10);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /*
+    LinkedBlockingDeque 与环形缓冲区对比：吞吐量以及从 put 到 take 的 p50/p99 延迟
+     */
+    static void ring() throws Exception {
+        final int messages = 2_000_000;
+        final int capacity = 1 << 16;
+        for (int producers : new int[]{1, 4}) {
+            runRing("deque          ", producers, messages, new MessageQueue(0), false);
+            RingBufferStorage.ProducerType type = producers == 1
+                    ? RingBufferStorage.ProducerType.SINGLE : RingBufferStorage.ProducerType.MULTI;
+            for (RingBufferStorage.WaitStrategy ws : RingBufferStorage.WaitStrategy.values()) {
+                MessageQueue mq = new MessageQueue(0, new RingBufferStorage(capacity, type, ws));
+                runRing(String.format("ring %-10s", ws), producers, messages, mq, false);
+            }
+            MessageQueue mq = new MessageQueue(0, new RingBufferStorage(capacity, type, RingBufferStorage.WaitStrategy.PARK));
+            runRing("ring PARK drain", producers, messages, mq, true);
+        }
+    }
+
+    /*
+    orderId 即消息序号，生产者在 put 前记录发送时间，消费者据此计算排队延迟
+     */
+    private static void runRing(String name, int producers, int messages, MessageQueue mq, boolean drain)
+            throws Exception {
+        final long[] sentAt = new long[messages];
+        final long[] latency = new long[messages];
+        final int perProducer = messages / producers;
+        final int total = perProducer * producers;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = base; i < base + perProducer; i++) {
+                        sentAt[i] = System.nanoTime();
+                        mq.put(new Message(i, null, 0));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        int received = 0;
+        List<Message> batch = new ArrayList<>(256);
+        while (received < total) {
+            if (drain) {
+                batch.clear();
+                if (mq.drainTo(batch, 256) == 0) {
+                    batch.add(mq.take());
+                }
+            } else {
+                batch.clear();
+                batch.add(mq.take());
+            }
+            long now = System.nanoTime();
+            for (Message m : batch) {
+                int id = (int) m.getOrderId();
+                latency[received++] = now - sentAt[id];
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Thread t : threads) {
+            t.join();
+        }
+        Arrays.sort(latency, 0, total);
+        System.out.printf("%dP %s %10.0f msg/s  p50=%8.1f us  p99=%9.1f us%n", producers, name,
+                total * 1e9 / elapsed, latency[total / 2] / 1e3, latency[(int) (total * 0.99)] / 1e3);
+    }
+
+    /*
+    一个慢订单（每条50ms）混在普通订单（每条1ms）中：队列级顺序会拖住同队列的所有订单，订单级顺序只影响慢订单本身
+     */
+    static void keyed() throws Exception {
+        runKeyed("queue-level", false);
+        runKeyed("order-level", true);
+        // 慢订单的积压超过整个队列的额度：单订单上限等于队列额度时其他订单被拖到慢订单的节奏，
+        // 默认上限下慢订单只占少量额度，其余消息进暂存额度，其他订单照常流动
+        long stalled = runWindow("per-order cap = window", 16);
+        long flowing = runWindow("per-order cap = 2     ", 2);
+        boolean ok = flowing >= 0 && stalled >= 0 && flowing * 3 < stalled;
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    单队列、额度16、4个处理线程：先放入慢订单（每条200ms）的16条消息，再放入7个普通订单（每条1ms）各40条；
+    返回普通订单全部处理完的耗时（毫秒），乱序时返回-1
+     */
+    private static long runWindow(String name, int maxInFlightPerOrder) throws Exception {
+        final int window = 16;
+        final int fastOrders = 7;
+        final int perFastOrder = 40;
+        final int slowMessages = 16;
+        final long slowOrder = 0;
+        MessageQueue mq = new MessageQueue(0);
+        Map<Long, Integer> lastSeq = new ConcurrentHashMap<>();
+        AtomicInteger disorder = new AtomicInteger();
+        AtomicInteger fastRemaining = new AtomicInteger(fastOrders * perFastOrder);
+        CountDownLatch allDone = new CountDownLatch(fastOrders * perFastOrder + slowMessages);
+        AtomicLong fastDoneAt = new AtomicLong();
+        OrderlyConsumer consumer = new OrderlyConsumer(List.of(mq), (queueId, message) -> {
+            Thread.sleep(message.getOrderId() == slowOrder ? 200 : 1);
+            int seq = seqOf(message);
+            Integer prev = lastSeq.put(message.getOrderId(), seq);
+            if (prev == null ? seq != 0 : prev + 1 != seq) {
+                disorder.incrementAndGet();
+            }
+            if (message.getOrderId() != slowOrder && fastRemaining.decrementAndGet() == 0) {
+                fastDoneAt.set(System.nanoTime());
+            }
+            allDone.countDown();
+        }, 4, window, maxInFlightPerOrder);
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < slowMessages; i++) {
+            mq.put(new Message(slowOrder, i + ":" + PADDING));
+        }
+        for (int i = 0; i < perFastOrder; i++) {
+            for (long orderId = 1; orderId <= fastOrders; orderId++) {
+                mq.put(new Message(orderId, i + ":" + PADDING));
+            }
+        }
+        allDone.await();
+        long elapsed = System.nanoTime() - start;
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        long fastMs = (fastDoneAt.get() - start) / 1_000_000;
+        System.out.printf("%s  other orders done in %6d ms  all done in %6.0f ms  %s%n", name,
+                fastMs, elapsed / 1e6, disorder.get() == 0 ? "order OK" : "FAILED disorder=" + disorder.get());
+        return disorder.get() == 0 ? fastMs : -1;
+    }
+
+    private static void runKeyed(String name, boolean keyed) throws Exception {
+        final int queueCount = 8;
+        final int orders = 64;
+        final int perOrder = 50;
+        final long slowOrder = 0;
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        Map<Long, Integer> lastSeq = new ConcurrentHashMap<>();
+        AtomicInteger disorder = new AtomicInteger();
+        AtomicInteger fastRemaining = new AtomicInteger((orders - 1) * perOrder);
+        CountDownLatch allDone = new CountDownLatch(orders * perOrder);
+        AtomicLong fastDoneAt = new AtomicLong();
+        OrderlyConsumer.MessageListener listener = (queueId, message) -> {
+            Thread.sleep(message.getOrderId() == slowOrder ? 50 : 1);
+            int seq = seqOf(message);
+            Integer prev = lastSeq.put(message.getOrderId(), seq);
+            if (prev == null ? seq != 0 : prev + 1 != seq) {
+                disorder.incrementAndGet();
+            }
+            if (message.getOrderId() != slowOrder && fastRemaining.decrementAndGet() == 0) {
+                fastDoneAt.set(System.nanoTime());
+            }
+            allDone.countDown();
+        };
+        OrderlyConsumer consumer = keyed
+                ? new OrderlyConsumer(queues, listener, 16, 1_000)
+                : new OrderlyConsumer(queues, listener);
+        long start = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < perOrder; i++) {
+            for (long orderId = 0; orderId < orders; orderId++) {
+                queues.get((int) (orderId % queueCount)).put(new Message(orderId, i + ":" + PADDING));
+            }
+        }
+        allDone.await();
+        long elapsed = System.nanoTime() - start;
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.printf("%s  other orders done in %6.0f ms  all done in %6.0f ms  %s%n", name,
+                (fastDoneAt.get() - start) / 1e6, elapsed / 1e6,
+                disorder.get() == 0 ? "order OK" : "FAILED disorder=" + disorder.get());
+    }
+
+    /*
+    演示流水线的端到端吞吐：逐条发送+逐条打印+逐条消费，对比批量发送+批量消费
+    逐条打印的输出被丢弃，只计算格式化与输出调用本身的开销
+     */
+    static void pipeline() throws Exception {
+        final int queueCount = 4;
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long single;
+        try {
+            single = runPipeline(queueCount, 200_000, 0, false);
+        } finally {
+            System.setOut(stdout);
+        }
+        System.out.printf("send + per-message consume (verbose) %10.0f msg/s%n", single * 1.0);
+        for (int batch : new int[]{16, 128, 1024}) {
+            System.out.printf("sendBatch(%4d) + batch consume      %10.0f msg/s%n", batch,
+                    runPipeline(queueCount, 4_000_000, batch, false) * 1.0);
+        }
+        System.out.printf("sendBatch(1024) + batch consume ring %10.0f msg/s%n",
+                runPipeline(queueCount, 4_000_000, 1024, true) * 1.0);
+    }
+
+    /*
+    batch 为0时走逐条发送与逐条消费，返回每秒消息数
+     */
+    private static long runPipeline(int queueCount, int messages, int batch, boolean ring) throws Exception {
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(ring ? new MessageQueue(i, new RingBufferStorage(1 << 14)) : new MessageQueue(i));
+        }
+        Producer producer = new Producer(queues);
+        CountDownLatch done = new CountDownLatch(messages);
+        OrderlyConsumer consumer;
+        if (batch == 0) {
+            consumer = new OrderlyConsumer(queues, (queueId, message) -> {
+                System.out.println("[Consumer][Queue-" + queueId + "] Processing: " + message);
+                done.countDown();
+            });
+        } else {
+            consumer = new OrderlyConsumer(queues, (queueId, list) -> {
+                for (int i = 0; i < list.size(); i++) {
+                    done.countDown();
+                }
+            }, batch, 1, TimeUnit.MILLISECONDS);
+        }
+        consumer.start();
+        long start = System.nanoTime();
+        if (batch == 0) {
+            for (int i = 0; i < messages; i++) {
+                producer.send(i % 1_000, "Order Event");
+            }
+        } else {
+            List<Message> buffer = new ArrayList<>(batch);
+            for (int i = 0; i < messages; i++) {
+                buffer.add(new Message(i % 1_000, "Order Event"));
+                if (buffer.size() == batch) {
+                    producer.sendBatch(buffer);
+                    buffer = new ArrayList<>(batch);
+                }
+            }
+            if (!buffer.isEmpty()) {
+                producer.sendBatch(buffer);
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        return (long) (messages * 1e9 / elapsed);
+    }
+
+    /*
+    慢消费者（有界环形队列，每消费256条停顿2ms）下对比同步 send 与三种背压方式的 sendAsync：
+    调用线程每次发送的耗时分布，以及每个订单收到的序号是否严格递增
+     */
+    static void async() throws Exception {
+        runAsync("send (sync)         ", null);
+        for (Producer.Backpressure bp : Producer.Backpressure.values()) {
+            runAsync(String.format("sendAsync %-9s", bp), bp);
+        }
+        asyncFullQueue();
+        spillRestart();
+    }
+
+    /*
+    一个有界队列写满且没有消费者：发往其他队列的 sendAsync 不被占住发送线程的写入拖住（单核时发送线程只有一个），
+    放开满队列后先前的消息全部写入
+     */
+    private static void asyncFullQueue() throws Exception {
+        MessageQueue full = new MessageQueue(0, new RingBufferStorage(16));
+        MessageQueue free = new MessageQueue(1);
+        Producer producer = new Producer(List.of(full, free), 64, Producer.Backpressure.FAIL_FAST, null);
+        List<CompletableFuture<Producer.SendResult>> blocked = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            blocked.add(producer.sendAsync(0, i + ":" + PADDING));
+        }
+        while (full.size() < 16) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long start = System.nanoTime();
+        boolean otherDone;
+        try {
+            producer.sendAsync(1, "0:" + PADDING).get(2, TimeUnit.SECONDS);
+            otherDone = true;
+        } catch (java.util.concurrent.TimeoutException e) {
+            otherDone = false;
+        }
+        long otherMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int received = 0;
+        int disorder = 0;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (received < 32 && System.currentTimeMillis() < deadline) {
+            Message m = full.poll(10, TimeUnit.MILLISECONDS);
+            if (m != null) {
+                disorder += seqOf(m) == received ? 0 : 1;
+                received++;
+            }
+        }
+        CompletableFuture.allOf(blocked.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        producer.close(10, TimeUnit.SECONDS);
+        boolean ok = otherDone && received == 32 && disorder == 0;
+        System.out.printf("full queue: sendAsync to another queue %s in %d ms, full queue received %d/32 disorder=%d  %s%n",
+                otherDone ? "done" : "NOT done", otherMs, received, disorder, ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    溢出补发：目标队列写满时溢出的消息在生产者关闭、重新打开溢出日志后仍全部补发（写入前不从日志中移除），
+    补发时按设置的压缩算法打包
+     */
+    private static void spillRestart() throws Exception {
+        final int messages = 2_000;
+        Path dir = Files.createTempDirectory("spill-restart");
+        try {
+            CommitLog spillLog = new CommitLog(dir, 64 << 20, CommitLog.FlushMode.OS, 500, TimeUnit.MILLISECONDS);
+            MessageQueue full = new MessageQueue(0, new RingBufferStorage(16));
+            Producer producer = new Producer(List.of(full), 16, Producer.Backpressure.SPILL, spillLog);
+            List<CompletableFuture<Producer.SendResult>> futures = new ArrayList<>();
+            for (int i = 0; i < messages; i++) {
+                futures.add(producer.sendAsync(0, i + ":" + PADDING));
+            }
+            // 没有消费者，关闭必然超时；发送线程之后仍在限时重试，目标队列一直写满，溢出日志中的消息都没有被确认
+            // （不能清空 full：旧的发送线程会补发进去并推进共享的消费进度，相当于进程没有真正退出）
+            producer.close(200, TimeUnit.MILLISECONDS);
+            spillLog.close();
+            // 只有确认为 SPILLED 的消息承诺持久；占着内存额度、关闭时还没写入的消息随生产者一起丢失
+            java.util.BitSet spilled = new java.util.BitSet(messages);
+            for (int i = 0; i < messages; i++) {
+                CompletableFuture<Producer.SendResult> f = futures.get(i);
+                if (f.isDone() && !f.isCompletedExceptionally()
+                        && f.get().getStatus() == Producer.SendResult.Status.SPILLED) {
+                    spilled.set(i);
+                }
+            }
+
+            spillLog = new CommitLog(dir, 64 << 20, CommitLog.FlushMode.OS, 500, TimeUnit.MILLISECONDS);
+            MessageQueue fresh = new MessageQueue(0);
+            producer = new Producer(List.of(fresh), 16, Producer.Backpressure.SPILL, spillLog);
+            producer.setCompression(BatchCodec.DEFLATE);
+            producer.sendAsync(0, messages + ":" + PADDING);
+            producer.close(10, TimeUnit.SECONDS);
+            spillLog.close();
+            List<Message> records = new ArrayList<>();
+            fresh.drainTo(records, Integer.MAX_VALUE);
+            int packed = 0;
+            for (Message m : records) {
+                packed += MessageBatch.isBatch(m) ? 1 : 0;
+            }
+            List<Message> replayed = MessageBatch.expand(records, new MessageBatch.Reader());
+            // 补发可能重复（写入目标后、确认前退出），但溢出的消息不丢失、不乱序
+            java.util.BitSet seen = new java.util.BitSet(messages);
+            int last = -1;
+            int disorder = 0;
+            for (Message m : replayed) {
+                int seq = seqOf(m);
+                disorder += seq < last ? 1 : 0;
+                last = seq;
+                seen.set(seq);
+            }
+            java.util.BitSet lost = (java.util.BitSet) spilled.clone();
+            lost.andNot(seen);
+            boolean ok = spilled.cardinality() > 0 && lost.isEmpty() && disorder == 0 && packed > 0;
+            System.out.printf("spill restart: %d spilled, %d replayed after restart (%d packed records), lost=%d disorder=%d  %s%n",
+                    spilled.cardinality(), replayed.size(), packed, lost.cardinality(), disorder, ok ? "OK" : "FAILED");
+            if (!ok) {
+                System.exit(1);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void runAsync(String name, Producer.Backpressure backpressure) throws Exception {
+        final int queueCount = 2;
+        final int orders = 100;
+        final int messages = 200_000;
+        Path dir = Files.createTempDirectory("spill");
+        CommitLog spillLog = backpressure == Producer.Backpressure.SPILL
+                ? new CommitLog(dir, 64 << 20, CommitLog.FlushMode.OS, 500, TimeUnit.MILLISECONDS) : null;
+        try {
+            List<MessageQueue> queues = new ArrayList<>();
+            for (int i = 0; i < queueCount; i++) {
+                queues.add(new MessageQueue(i, new RingBufferStorage(4096)));
+            }
+            Producer producer = backpressure == null ? new Producer(queues)
+                    : new Producer(queues, 8192, backpressure, spillLog);
+            AtomicInteger accepted = new AtomicInteger();
+            AtomicInteger received = new AtomicInteger();
+            AtomicInteger disorder = new AtomicInteger();
+            int[] lastSeq = new int[orders];
+            Arrays.fill(lastSeq, -1);
+            Thread[] consumers = new Thread[queueCount];
+            for (int q = 0; q < queueCount; q++) {
+                MessageQueue mq = queues.get(q);
+                consumers[q] = new Thread(() -> {
+                    List<Message> batch = new ArrayList<>(256);
+                    int sinceSleep = 0;
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            batch.clear();
+                            if (mq.drainTo(batch, 256) == 0) {
+                                Message m = mq.poll(10, TimeUnit.MILLISECONDS);
+                                if (m == null) {
+                                    continue;
+                                }
+                                batch.add(m);
+                            }
+                            for (Message m : batch) {
+                                int order = (int) m.getOrderId();
+                                int seq = seqOf(m);
+                                // 同一订单只会路由到一个队列，lastSeq 的每个元素只被一个消费线程访问
+                                if (seq <= lastSeq[order]) {
+                                    disorder.incrementAndGet();
+                                }
+                                lastSeq[order] = seq;
+                            }
+                            received.addAndGet(batch.size());
+                            sinceSleep += batch.size();
+                            if (sinceSleep >= 256) {
+                                sinceSleep = 0;
+                                TimeUnit.MILLISECONDS.sleep(2);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                consumers[q].start();
+            }
+            long[] cost = new long[messages];
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                long t0 = System.nanoTime();
+                if (backpressure == null) {
+                    producer.send(i % orders, i + ":" + PADDING);
+                    accepted.incrementAndGet();
+                } else {
+                    producer.sendAsync(i % orders, i + ":" + PADDING)
+                            .whenComplete((r, e) -> {
+                                if (e == null) {
+                                    accepted.incrementAndGet();
+                                }
+                            });
+                }
+                cost[i] = System.nanoTime() - t0;
+            }
+            long sendElapsed = System.nanoTime() - begin;
+            long spilled = producer.getInFlightCount();
+            if (!producer.close(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("producer did not drain");
+            }
+            while (received.get() < accepted.get()) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            long elapsed = System.nanoTime() - begin;
+            for (Thread t : consumers) {
+                t.interrupt();
+                t.join();
+            }
+            Arrays.sort(cost);
+            System.out.printf("%s caller %8.0f msg/s  p50=%6.2f us  p99=%8.2f us  max=%8.2f ms  "
+                            + "accepted=%d in-flight-after-send=%d end-to-end=%d ms disorder=%d%n",
+                    name, messages * 1e9 / sendElapsed, cost[messages / 2] / 1e3,
+                    cost[(int) (messages * 0.99)] / 1e3, cost[messages - 1] / 1e6,
+                    accepted.get(), spilled, TimeUnit.NANOSECONDS.toMillis(elapsed), disorder.get());
+        } finally {
+            if (spillLog != null) {
+                spillLog.close();
+            }
+            delete(dir);
+        }
+    }
+
+    /*
+    先统计4个队列扩到5个时两种路由各有多少比例的订单换队列，
+    然后在持续发送中在线扩容一个队列、再缩容一个队列，检查每个订单收到的序号严格递增且一条不少
+     */
+    static void rebalance() throws Exception {
+        String[] names = {"modulo", "consistent hash"};
+        QueueSelector[] selectors = {QueueSelector.MODULO, new ConsistentHashSelector()};
+        for (int s = 0; s < selectors.length; s++) {
+            QueueSelector selector = selectors[s];
+            List<MessageQueue> four = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                four.add(new MessageQueue(i));
+            }
+            List<MessageQueue> five = new ArrayList<>(four);
+            five.add(new MessageQueue(4));
+            int moved = 0;
+            final int keys = 100_000;
+            int[] load = new int[5];
+            for (long k = 0; k < keys; k++) {
+                MessageQueue after = selector.select(k, five);
+                load[after.getId()]++;
+                if (selector.select(k, four) != after) {
+                    moved++;
+                }
+            }
+            System.out.printf("%-16s 4 -> 5 queues: %5.1f%% of orders move, load %s%n",
+                    names[s], moved * 100.0 / keys, Arrays.toString(load));
+        }
+        runRebalance("modulo, send     ", QueueSelector.MODULO, false);
+        runRebalance("consistent, send ", new ConsistentHashSelector(), false);
+        runRebalance("consistent, async", new ConsistentHashSelector(), true);
+        fullQueueRebalance(false);
+        fullQueueRebalance(true);
+    }
+
+    /*
+    一个没有消费者的有界队列被同步发送写满：发送线程阻塞期间，扩容与发往其他队列的同步发送都不应被挡住
+     */
+    private static void fullQueueRebalance(boolean async) throws Exception {
+        MessageQueue full = new MessageQueue(0, new RingBufferStorage(16));
+        MessageQueue free = new MessageQueue(1);
+        // 异步时每个队列最多4条在途，BLOCK 模式下写满后 sendAsync 等待许可
+        Producer producer = async ? new Producer(List.of(full, free), 4, Producer.Backpressure.BLOCK, null)
+                : new Producer(List.of(full, free));
+        List<CompletableFuture<Producer.SendResult>> pending = new CopyOnWriteArrayList<>();
+        Thread blocked = new Thread(() -> {
+            try {
+                for (int i = 0; i < 32; i++) {
+                    if (async) {
+                        pending.add(producer.sendAsync(0, i + ":" + PADDING));
+                    } else {
+                        producer.send(0, i + ":" + PADDING);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        blocked.start();
+        while (full.size() < 16) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        TimeUnit.MILLISECONDS.sleep(50);
+        long start = System.nanoTime();
+        producer.send(1, "0:" + PADDING);
+        long sendMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long freeSize = free.size();
+        start = System.nanoTime();
+        // 在另一个线程上扩容：写锁被挡住时这里超时失败，而不是一直挂起
+        CompletableFuture<CompletableFuture<Void>> adding =
+                CompletableFuture.supplyAsync(() -> producer.addQueue(new MessageQueue(2)));
+        CompletableFuture<Void> scaleOut;
+        try {
+            scaleOut = adding.get(5, TimeUnit.SECONDS);
+        } catch (java.util.concurrent.TimeoutException e) {
+            System.out.printf("full queue, %s: addQueue blocked for 5 s  FAILED%n", async ? "sendAsync BLOCK" : "send");
+            System.exit(1);
+            return;
+        }
+        long addMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 启动消费者放开满队列：两个旧队列的屏障都被消费后扩容完成，阻塞的发送线程写完剩下的消息
+        OrderlyConsumer consumer = new OrderlyConsumer(List.of(full, free), (queueId, m) -> {
+        }, 1, 16);
+        consumer.start();
+        scaleOut.get(10, TimeUnit.SECONDS);
+        blocked.join(10_000);
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        consumer.shutdown();
+        producer.close(10, TimeUnit.SECONDS);
+        boolean ok = sendMs < 1000 && addMs < 1000 && !blocked.isAlive() && freeSize == 1;
+        System.out.printf("full queue, %s: send to another queue %d ms, addQueue %d ms, blocked sender finished=%s  %s%n",
+                async ? "sendAsync BLOCK" : "send          ", sendMs, addMs, !blocked.isAlive(), ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static void runRebalance(String name, QueueSelector selector, boolean async) throws Exception {
+        final int orders = 1_000;
+        final int messages = 600_000;
+        AtomicIntegerArray lastSeq = new AtomicIntegerArray(orders);
+        for (int i = 0; i < orders; i++) {
+            lastSeq.set(i, -1);
+        }
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger disorder = new AtomicInteger();
+        OrderlyConsumer.BatchMessageListener listener = (queueId, list) -> {
+            for (Message m : list) {
+                int order = (int) m.getOrderId();
+                int seq = seqOf(m);
+                if (seq <= lastSeq.getAndSet(order, seq)) {
+                    disorder.incrementAndGet();
+                }
+            }
+            received.addAndGet(list.size());
+            // 模拟处理耗时，让队列里保持积压
+            TimeUnit.MICROSECONDS.sleep(200);
+        };
+        // 有界队列让发送速度跟上消费速度，屏障不会排在整段积压之后
+        Map<MessageQueue, OrderlyConsumer> consumers = new HashMap<>();
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            MessageQueue mq = new MessageQueue(i, new RingBufferStorage(4096));
+            queues.add(mq);
+            OrderlyConsumer c = new OrderlyConsumer(List.of(mq), listener, 64, 1, TimeUnit.MILLISECONDS);
+            c.start();
+            consumers.put(mq, c);
+        }
+        Producer producer = new Producer(queues, selector, 1 << 16, Producer.Backpressure.BLOCK, null);
+        MessageQueue added = new MessageQueue(4, new RingBufferStorage(4096));
+        MessageQueue removed = queues.get(0);
+        CompletableFuture<Void> scaleOut = null;
+        CompletableFuture<Void> scaleIn = null;
+        long scaleOutAt = 0;
+        long scaleInAt = 0;
+        long scaleOutMs = -1;
+        long scaleInMs = -1;
+        long begin = System.nanoTime();
+        try {
+            for (int i = 0; i < messages; i++) {
+                if (i == messages / 3) {
+                    OrderlyConsumer c = new OrderlyConsumer(List.of(added), listener, 64, 1, TimeUnit.MILLISECONDS);
+                    c.start();
+                    consumers.put(added, c);
+                    scaleOutAt = System.nanoTime();
+                    scaleOut = producer.addQueue(added);
+                }
+                if (scaleOut != null && scaleOutMs < 0 && scaleOut.isDone()) {
+                    scaleOutMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scaleOutAt);
+                }
+                if (i >= messages * 2 / 3 && scaleIn == null && scaleOut.isDone()) {
+                    scaleInAt = System.nanoTime();
+                    scaleIn = producer.removeQueue(removed);
+                }
+                if (scaleIn != null && scaleInMs < 0 && scaleIn.isDone()) {
+                    scaleInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scaleInAt);
+                }
+                if (async) {
+                    producer.sendAsync(i % orders, i + ":" + PADDING);
+                } else {
+                    producer.send(i % orders, i + ":" + PADDING);
+                }
+            }
+            if (scaleIn == null) {
+                scaleOut.get(60, TimeUnit.SECONDS);
+                scaleInAt = System.nanoTime();
+                scaleIn = producer.removeQueue(removed);
+            }
+            scaleIn.get(60, TimeUnit.SECONDS);
+            if (scaleInMs < 0) {
+                scaleInMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scaleInAt);
+            }
+            long leftInRemoved = removed.size();
+            consumers.remove(removed).shutdown();
+            producer.close(60, TimeUnit.SECONDS);
+            while (received.get() < messages) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("%s %8.0f msg/s  scale-out %4d ms  scale-in %4d ms  received=%d disorder=%d "
+                            + "left-in-removed=%d%n", name, messages * 1e9 / elapsed, scaleOutMs, scaleInMs,
+                    received.get(), disorder.get(), leftInRemoved);
+        } finally {
+            for (OrderlyConsumer c : consumers.values()) {
+                c.shutdown();
+            }
+        }
+    }
+
+    /*
+    延时投递：一百万条 1s~30min 的延时消息在时间轮中的堆占用与暂存速度（对比 DelayQueue 逐条保存对象），
+    然后在 0~2s 的随机延时下检查释放时刻的滞后，以及同一订单按（取整后的投递时间，发送顺序）释放
+     */
+    static void delay() throws Exception {
+        final int held = 1_000_000;
+        Runtime rt = Runtime.getRuntime();
+        java.util.Random random = new java.util.Random(42);
+        long base = System.currentTimeMillis() + 1_000;
+        long[] deliverAt = new long[held];
+        for (int i = 0; i < held; i++) {
+            deliverAt[i] = base + random.nextInt(30 * 60 * 1000);
+        }
+        long before = usedHeap(rt);
+        DelayStage stage = new DelayStage(list -> {
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < held; i++) {
+            stage.schedule(new Message(i, i + ":" + PADDING).withDeliverAt(deliverAt[i]));
+        }
+        long elapsed = System.nanoTime() - start;
+        long wheelBytes = usedHeap(rt) - before;
+        System.out.printf("timing wheel: held %d  schedule %8.0f msg/s  heap %5.1f B/msg  full GC %4d ms%n",
+                stage.size(), held * 1e9 / elapsed, wheelBytes * 1.0 / held, fullGcMillis());
+        stage.close();
+        stage = null;
+
+        before = usedHeap(rt);
+        java.util.concurrent.DelayQueue<java.util.concurrent.Delayed> delayQueue = new java.util.concurrent.DelayQueue<>();
+        start = System.nanoTime();
+        for (int i = 0; i < held; i++) {
+            Message m = new Message(i, i + ":" + PADDING).withDeliverAt(deliverAt[i]);
+            delayQueue.add(new java.util.concurrent.Delayed() {
+                public long getDelay(TimeUnit unit) {
+                    return unit.convert(m.getDeliverAt() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                }
+
+                public int compareTo(java.util.concurrent.Delayed o) {
+                    return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+                }
+            });
+        }
+        elapsed = System.nanoTime() - start;
+        long queueBytes = usedHeap(rt) - before;
+        System.out.printf("DelayQueue:   held %d  schedule %8.0f msg/s  heap %5.1f B/msg  full GC %4d ms%n",
+                delayQueue.size(), held * 1e9 / elapsed, queueBytes * 1.0 / held, fullGcMillis());
+        delayQueue = null;
+
+        final int messages = 200_000;
+        final int orders = 1_000;
+        final long tick = DelayStage.DEFAULT_TICK_MILLIS;
+        MessageQueue mq = new MessageQueue(0);
+        long[] lateness = new long[messages];
+        AtomicInteger released = new AtomicInteger();
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger disorder = new AtomicInteger();
+        long[] lastKey = new long[orders];
+        Arrays.fill(lastKey, -1);
+        long[] scheduledSlot = new long[messages];
+        Thread consumer = new Thread(() -> {
+            try {
+                while (received.get() < messages) {
+                    Message m = mq.take();
+                    int seq = seqOf(m);
+                    received.incrementAndGet();
+                    // 同一订单的释放顺序按（投递时间所在的 tick，发送序号）递增
+                    int order = (int) m.getOrderId();
+                    long key = scheduledSlot[seq] * messages + seq;
+                    if (key <= lastKey[order]) {
+                        disorder.incrementAndGet();
+                    }
+                    lastKey[order] = key;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        // 在释放时记录滞后，不含消费端排队
+        stage = new DelayStage(list -> {
+            long t = System.currentTimeMillis();
+            for (Message m : list) {
+                lateness[released.getAndIncrement()] = t - m.getDeliverAt();
+            }
+            mq.putAll(list);
+        });
+        for (int i = 0; i < messages; i++) {
+            // 至少晚一个 tick，保证不会落到已经处理过的格子上
+            long at = System.currentTimeMillis() + tick + random.nextInt(2_000);
+            scheduledSlot[i] = (at + tick - 1) / tick;
+            stage.schedule(new Message(i % orders, i + ":" + PADDING).withDeliverAt(at));
+        }
+        consumer.join();
+        stage.close();
+        Arrays.sort(lateness);
+        System.out.printf("release after deliverAt: p50=%d ms  p99=%d ms  max=%d ms  early=%d  disorder=%d%n",
+                lateness[messages / 2], lateness[(int) (messages * 0.99)], lateness[messages - 1],
+                Arrays.stream(lateness).filter(l -> l < 0).count(), disorder.get());
+    }
+
+    /*
+    close 时已到期的消息交给目标、未到期的留在 size() 中；目标抛出异常的一批计入 getDroppedCount()，不再打印到 stderr
+     */
+    static void delayClose() throws Exception {
+        final int due = 1_000;
+        final int future = 100;
+        AtomicInteger delivered = new AtomicInteger();
+        DelayStage stage = new DelayStage(list -> {
+            // 慢目标：close 时时间轮线程很可能正在交付
+            TimeUnit.MILLISECONDS.sleep(20);
+            delivered.addAndGet(list.size());
+        });
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < due + future; i++) {
+            long at = i < due ? now : now + 60_000;
+            stage.schedule(new Message(i, i + ":" + PADDING).withDeliverAt(at));
+        }
+        stage.close();
+        boolean closeOk = delivered.get() == due && stage.size() == future && stage.getDroppedCount() == 0;
+
+        DelayStage failing = new DelayStage(list -> {
+            throw new IllegalStateException("target down");
+        });
+        for (int i = 0; i < due; i++) {
+            failing.schedule(new Message(i, i + ":" + PADDING).withDeliverAt(System.currentTimeMillis()));
+        }
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (failing.size() > 0 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        failing.close();
+        boolean failOk = failing.size() == 0 && failing.getDroppedCount() == due;
+        System.out.printf("close: delivered %d/%d due, size()=%d (expect %d), dropped=%d  %s%n",
+                delivered.get(), due, stage.size(), future, stage.getDroppedCount(), closeOk ? "OK" : "FAILED");
+        System.out.printf("failing target: size()=%d dropped=%d (expect %d)  %s%n",
+                failing.size(), failing.getDroppedCount(), due, failOk ? "OK" : "FAILED");
+
+        // 经 Producer 关闭：一条已到期、一条同一 tick 内尚未到期，已到期的写入队列，未到期的不提前释放也不连累前者
+        final int rounds = 20;
+        int lost = 0;
+        int early = 0;
+        for (int r = 0; r < rounds; r++) {
+            MessageQueue mq = new MessageQueue(0);
+            Producer producer = new Producer(List.of(mq));
+            long t = System.currentTimeMillis();
+            producer.send(new Message(1, "0:" + PADDING).withDeliverAt(t + 2));
+            producer.send(new Message(1, "1:" + PADDING).withDeliverAt(t + 8));
+            TimeUnit.MILLISECONDS.sleep(4);
+            producer.close(1, TimeUnit.SECONDS);
+            long closedAt = System.currentTimeMillis();
+            List<Message> out = new ArrayList<>();
+            mq.drainTo(out, Integer.MAX_VALUE);
+            boolean dueSent = out.stream().anyMatch(m -> seqOf(m) == 0);
+            lost += dueSent && producer.getDelayedDroppedCount() == 0 ? 0 : 1;
+            early += (int) out.stream().filter(m -> m.getDeliverAt() > closedAt).count();
+        }
+        boolean producerOk = lost == 0 && early == 0;
+        System.out.printf("producer close: due message lost %d/%d, released early %d  %s%n",
+                lost, rounds, early, producerOk ? "OK" : "FAILED");
+        if (!closeOk || !failOk || !producerOk) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    本机回环上的 Broker：同步 send 逐条往返与 sendAsync 流水线的吞吐及每帧平均消息数，
+    远程消费者收到的每个订单序号严格递增且一条不少，以及空队列上长轮询被单条消息唤醒的延迟
+     */
+    static void broker() throws Exception {
+        final int queueCount = 4;
+        final int orders = 100;
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        try (Broker broker = new Broker(0, queues)) {
+            java.net.InetSocketAddress address = new java.net.InetSocketAddress(
+                    java.net.InetAddress.getLoopbackAddress(), broker.getPort());
+            int total = 0;
+            try (RemoteProducer producer = new RemoteProducer(address)) {
+                final int syncMessages = 20_000;
+                long frames = broker.getReceivedFrames();
+                long start = System.nanoTime();
+                for (int i = 0; i < syncMessages; i++) {
+                    producer.send(i % orders, i + ":" + PADDING);
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("send (sync)      %9.0f msg/s  %6.1f msg/frame%n", syncMessages * 1e9 / elapsed,
+                        syncMessages * 1.0 / (broker.getReceivedFrames() - frames));
+                total += syncMessages;
+
+                final int asyncMessages = 1_000_000;
+                frames = broker.getReceivedFrames();
+                start = System.nanoTime();
+                CompletableFuture<Void> last = null;
+                for (int i = 0; i < asyncMessages; i++) {
+                    int seq = syncMessages + i;
+                    last = producer.sendAsync(seq % orders, seq + ":" + PADDING);
+                    // 限制在途条数，避免发送方无限堆积
+                    if ((i & 0xFFFF) == 0xFFFF) {
+                        last.get();
+                    }
+                }
+                last.get();
+                elapsed = System.nanoTime() - start;
+                System.out.printf("sendAsync        %9.0f msg/s  %6.1f msg/frame%n", asyncMessages * 1e9 / elapsed,
+                        asyncMessages * 1.0 / (broker.getReceivedFrames() - frames));
+                total += asyncMessages;
+            }
+
+            AtomicInteger received = new AtomicInteger();
+            AtomicInteger disorder = new AtomicInteger();
+            int[] lastSeq = new int[orders];
+            Arrays.fill(lastSeq, -1);
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < queueCount; i++) {
+                ids.add(i);
+            }
+            long start = System.nanoTime();
+            RemoteConsumer consumer = new RemoteConsumer(address, ids, (queueId, messages) -> {
+                for (Message m : messages) {
+                    int order = (int) m.getOrderId();
+                    int seq = seqOf(m);
+                    // 同一订单只在一个队列上，lastSeq 的每个元素只被一个消费线程访问
+                    if (seq <= lastSeq[order]) {
+                        disorder.incrementAndGet();
+                    }
+                    lastSeq[order] = seq;
+                }
+                received.addAndGet(messages.size());
+            }, 1024);
+            consumer.start();
+            while (received.get() < total) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("remote consume   %9.0f msg/s  received=%d/%d disorder=%d%n",
+                    total * 1e9 / elapsed, received.get(), total, disorder.get());
+            consumer.shutdown();
+            if (!consumer.awaitTermination(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("consumer did not stop");
+            }
+
+            remoteRetry(address);
+            remoteLargeMessages(address, queues);
+
+            // 单条消息唤醒挂起在空队列上的长轮询
+            final int rounds = 1_000;
+            long[] wake = new long[rounds];
+            try (BrokerClient client = new BrokerClient(address);
+                 RemoteProducer producer = new RemoteProducer(address)) {
+                for (int i = 0; i < rounds; i++) {
+                    CompletableFuture<List<Message>> pull = client.pull(0, 16, 1_000);
+                    // 等长轮询挂到 Broker 上再发送
+                    TimeUnit.MICROSECONDS.sleep(200);
+                    long t0 = System.nanoTime();
+                    producer.send(0, i + ":" + PADDING);
+                    if (pull.get().size() != 1) {
+                        throw new IllegalStateException("long poll returned no message");
+                    }
+                    wake[i] = System.nanoTime() - t0;
+                }
+            }
+            Arrays.sort(wake);
+            System.out.printf("long-poll wake   p50=%6.1f us  p99=%6.1f us  max=%6.2f ms%n",
+                    wake[rounds / 2] / 1e3, wake[(int) (rounds * 0.99)] / 1e3, wake[rounds - 1] / 1e6);
+        }
+    }
+
+    /*
+    大消息：200条100KB的消息流水线发送（合并写时一个 SEND 帧装不下全部），再以每批256条拉取（一次拉取超过帧上限），
+    帧按字节数截断后全部送达，连接不断开
+     */
+    private static void remoteLargeMessages(java.net.InetSocketAddress address, List<MessageQueue> queues)
+            throws Exception {
+        final int messages = 200;
+        char[] body = new char[100 << 10];
+        Arrays.fill(body, 'x');
+        String padding = new String(body);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        try (RemoteProducer producer = new RemoteProducer(address, (orderId, routes) -> routes.get(0))) {
+            for (int i = 0; i < messages; i++) {
+                sends.add(producer.sendAsync(1, i + ":" + padding));
+            }
+            CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        }
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger disorder = new AtomicInteger();
+        RemoteConsumer consumer = new RemoteConsumer(address, List.of(0), (queueId, batch) -> {
+            for (Message m : batch) {
+                if (seqOf(m) != received.getAndIncrement()) {
+                    disorder.incrementAndGet();
+                }
+            }
+        }, 256);
+        consumer.start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (received.get() < messages && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        consumer.shutdown();
+        boolean stopped = consumer.awaitTermination(5, TimeUnit.SECONDS);
+        boolean ok = received.get() == messages && disorder.get() == 0 && queues.get(0).size() == 0 && stopped;
+        System.out.printf("large messages   received=%d/%d disorder=%d left=%d  %s%n",
+                received.get(), messages, disorder.get(), queues.get(0).size(), ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    远程消费者的失败重试：序号为5的倍数的消息前两次回调抛出异常，重试后全部按序收到；订单0始终失败，进入死信队列
+     */
+    private static void remoteRetry(java.net.InetSocketAddress address) throws Exception {
+        final int messages = 10_000;
+        final int orders = 100;
+        try (RemoteProducer producer = new RemoteProducer(address)) {
+            for (int i = 0; i < messages; i++) {
+                producer.send(i % orders, i + ":" + PADDING);
+            }
+        }
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger disorder = new AtomicInteger();
+        int[] lastSeq = new int[orders];
+        Arrays.fill(lastSeq, -1);
+        DeadLetterQueue deadLetters = new DeadLetterQueue();
+        // 每批一条消息；同一订单只在一个队列上，failures 与 lastSeq 的每个元素只被一个消费线程访问
+        int[] failures = new int[messages];
+        RemoteConsumer consumer = new RemoteConsumer(address, List.of(0, 1, 2, 3), (queueId, batch) -> {
+            Message first = batch.get(0);
+            if (first.getOrderId() == 0) {
+                throw new IllegalStateException("poison");
+            }
+            int seq0 = seqOf(first);
+            if (seq0 % 5 == 0 && failures[seq0]++ < 2) {
+                throw new IllegalStateException("transient");
+            }
+            for (Message m : batch) {
+                int order = (int) m.getOrderId();
+                int seq = seqOf(m);
+                if (seq <= lastSeq[order]) {
+                    disorder.incrementAndGet();
+                }
+                lastSeq[order] = seq;
+            }
+            received.addAndGet(batch.size());
+        }, 1).enableRetry(new OrderlyConsumer.RetryPolicy(3, 1, 4, TimeUnit.MILLISECONDS), deadLetters);
+        consumer.start();
+        // 订单0的消息各自尝试3次后进入死信队列
+        int expected = messages - messages / orders;
+        long deadline = System.currentTimeMillis() + 30_000;
+        while ((received.get() < expected || deadLetters.size() < messages / orders)
+                && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        consumer.shutdown();
+        if (!consumer.awaitTermination(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("consumer did not stop");
+        }
+        boolean ok = received.get() == expected && disorder.get() == 0
+                && deadLetters.size() == messages / orders && consumer.getFailedCount() == 0;
+        System.out.printf("remote retry     received=%d/%d disorder=%d dead-letters=%d  %s%n",
+                received.get(), expected, disorder.get(), deadLetters.size(), ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    消费组：两个组边生产边从同一份提交日志各自消费全部消息（每个订单序号严格递增），
+    然后一个组消费到一半停止、重新创建后从提交的偏移继续（不丢失，重复不超过一批），最后按时间点重放后一半
+     */
+    static void groups() throws Exception {
+        final int queueCount = 4;
+        final int orders = 100;
+        final int messages = 400_000;
+        final int batchSize = 256;
+        // 人为的创建时间：每100条递增1毫秒，便于核对按时间点重放的条数
+        final long baseTs = System.currentTimeMillis();
+        Path dir = Files.createTempDirectory("groups");
+        try (CommitLog log = new CommitLog(dir, 64 << 20, CommitLog.FlushMode.ASYNC, 200, TimeUnit.MILLISECONDS)) {
+            List<MessageQueue> queues = new ArrayList<>();
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < queueCount; i++) {
+                queues.add(new MessageQueue(i, log));
+                ids.add(i);
+            }
+            String[] names = {"billing", "analytics"};
+            AtomicInteger[] received = new AtomicInteger[names.length];
+            AtomicInteger[] disorder = new AtomicInteger[names.length];
+            GroupConsumer[] consumers = new GroupConsumer[names.length];
+            for (int g = 0; g < names.length; g++) {
+                AtomicInteger count = received[g] = new AtomicInteger();
+                AtomicInteger bad = disorder[g] = new AtomicInteger();
+                int[] lastSeq = new int[orders];
+                Arrays.fill(lastSeq, -1);
+                consumers[g] = new GroupConsumer(log, names[g], ids, (queueId, batch) -> {
+                    for (Message m : batch) {
+                        int order = (int) m.getOrderId();
+                        int seq = seqOf(m);
+                        // 同一订单只在一个队列上，lastSeq 的每个元素只被一个消费线程访问
+                        if (seq <= lastSeq[order]) {
+                            bad.incrementAndGet();
+                        }
+                        lastSeq[order] = seq;
+                    }
+                    count.addAndGet(batch.size());
+                }, batchSize);
+                consumers[g].start();
+            }
+            Producer producer = new Producer(queues);
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                producer.send(new Message(i % orders, i + ":" + PADDING, baseTs + i / 100));
+            }
+            long produced = System.nanoTime() - start;
+            for (AtomicInteger count : received) {
+                while (count.get() < messages) {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("produce %8.0f msg/s; %d groups each consumed %8.0f msg/s from one log of %d MB%n",
+                    messages * 1e9 / produced, names.length, messages * 1e9 / elapsed, log.getMaxOffset() >> 20);
+            for (int g = 0; g < names.length; g++) {
+                long lag = 0;
+                for (int q = 0; q < queueCount; q++) {
+                    lag += consumers[g].getLag(q);
+                }
+                System.out.printf("  %-10s received=%d/%d disorder=%d lag=%d%n",
+                        names[g], received[g].get(), messages, disorder[g].get(), lag);
+            }
+            consumers[1].shutdown();
+            consumers[1].awaitTermination(5, TimeUnit.SECONDS);
+
+            // 中途停止后重新创建同名消费组，从提交的偏移继续
+            java.util.BitSet seen = new java.util.BitSet(messages);
+            AtomicInteger duplicates = new AtomicInteger();
+            AtomicInteger firstRun = new AtomicInteger();
+            OrderlyConsumer.BatchMessageListener track = (queueId, batch) -> {
+                synchronized (seen) {
+                    for (Message m : batch) {
+                        int seq = seqOf(m);
+                        if (seen.get(seq)) {
+                            duplicates.incrementAndGet();
+                        }
+                        seen.set(seq);
+                    }
+                }
+                firstRun.addAndGet(batch.size());
+            };
+            GroupConsumer audit = new GroupConsumer(log, "audit", ids, track, batchSize);
+            audit.start();
+            while (firstRun.get() < messages / 2) {
+                Thread.onSpinWait();
+            }
+            audit.shutdown();
+            audit.awaitTermination(5, TimeUnit.SECONDS);
+            int beforeRestart = seen.cardinality();
+            audit = new GroupConsumer(log, "audit", ids, track, batchSize);
+            audit.start();
+            while (true) {
+                synchronized (seen) {
+                    if (seen.cardinality() == messages) {
+                        break;
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            audit.shutdown();
+            audit.awaitTermination(5, TimeUnit.SECONDS);
+            System.out.printf("restart: %d consumed before stop, all %d after restart, duplicates=%d (<= %d)%n",
+                    beforeRestart, messages, duplicates.get(), batchSize * queueCount);
+
+            // 按时间点重放后一半
+            int before = received[0].get();
+            long replayFrom = baseTs + messages / 2 / 100;
+            start = System.nanoTime();
+            for (int q = 0; q < queueCount; q++) {
+                consumers[0].seekToTimestamp(q, replayFrom);
+            }
+            while (received[0].get() - before < messages / 2) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            elapsed = System.nanoTime() - start;
+            TimeUnit.MILLISECONDS.sleep(200);
+            System.out.printf("replay from timestamp: %d messages in %d ms (expected %d)%n",
+                    received[0].get() - before, TimeUnit.NANOSECONDS.toMillis(elapsed), messages / 2);
+            consumers[0].shutdown();
+            consumers[0].awaitTermination(5, TimeUnit.SECONDS);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /*
+    消费组回调失败：未开启重试时失败的一批不提交偏移、计入失败数，之后的消息不越过它；
+    重新创建并开启重试后从同一偏移继续，毒消息用尽重试进入死信队列，其余消息全部消费、积压归零
+     */
+    private static void groupFailures() throws Exception {
+        final int messages = 1_000;
+        final int poison = 500;
+        Path dir = Files.createTempDirectory("group-failures");
+        try (CommitLog log = new CommitLog(dir, 64 << 20, CommitLog.FlushMode.ASYNC, 200, TimeUnit.MILLISECONDS)) {
+            Producer producer = new Producer(List.of(new MessageQueue(0, log)));
+            for (int i = 0; i < messages; i++) {
+                producer.send(0, i + ":" + PADDING);
+            }
+            java.util.BitSet seen = new java.util.BitSet(messages);
+            OrderlyConsumer.BatchMessageListener listener = (queueId, batch) -> {
+                for (Message m : batch) {
+                    if (seqOf(m) == poison) {
+                        throw new IllegalStateException("poison " + poison);
+                    }
+                }
+                synchronized (seen) {
+                    for (Message m : batch) {
+                        seen.set(seqOf(m));
+                    }
+                }
+            };
+            GroupConsumer consumer = new GroupConsumer(log, "flaky", List.of(0), listener, 64);
+            consumer.start();
+            while (consumer.getFailedCount() < 2) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            consumer.shutdown();
+            consumer.awaitTermination(5, TimeUnit.SECONDS);
+            long stuckAt = consumer.getCommittedOffset(0);
+            int beyond;
+            synchronized (seen) {
+                beyond = seen.nextSetBit(poison);
+            }
+            boolean held = stuckAt <= poison && beyond < 0;
+
+            DeadLetterQueue dlq = new DeadLetterQueue();
+            consumer = new GroupConsumer(log, "flaky", List.of(0), listener, 64)
+                    .enableRetry(new OrderlyConsumer.RetryPolicy(2, 1, 1, TimeUnit.MILLISECONDS), dlq);
+            consumer.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (consumer.getLag(0) > 0 && System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            consumer.shutdown();
+            consumer.awaitTermination(5, TimeUnit.SECONDS);
+            int consumed;
+            synchronized (seen) {
+                consumed = seen.cardinality();
+            }
+            // 毒消息所在的一批整批进入死信队列
+            boolean ok = held && consumer.getLag(0) == 0 && dlq.size() > 0
+                    && consumed + dlq.size() == messages && consumer.getFailedCount() == 0;
+            System.out.printf("group failure: no retry stopped at offset %d (poison %d), after enableRetry consumed=%d dead-lettered=%d lag=%d  %s%n",
+                    stuckAt, poison, consumed, dlq.size(), consumer.getLag(0), ok ? "OK" : "FAILED");
+            if (!ok) {
+                System.exit(1);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /*
+    毒消息：订单7中每2000条有1条永远处理失败，订单13中每2000条有1条前两次失败。
+    在消费线程里 sleep 重试会拖住整个队列；开启 enableRetry 后只扣留这两个订单，
+    对比其他订单全部处理完的耗时，检查每个订单按顺序处理、失败的消息进入死信队列，修复后重新投递
+     */
+    static void retry() throws Exception {
+        runRetry("inline sleep, queue", 0);
+        runRetry("retry, queue       ", 1);
+        runRetry("retry, order       ", 2);
+        runRetry("retry, batch       ", 3);
+    }
+
+    /*
+    mode：0 在回调里 sleep 重试（队列级），1/2/3 为开启重试的队列级/订单级/批量模式
+     */
+    private static void runRetry(String name, int mode) throws Exception {
+        final int queueCount = 2;
+        final int orders = 200;
+        final int messages = 200_000;
+        final int poisonOrder = 7;
+        final int flakyOrder = 13;
+        final OrderlyConsumer.RetryPolicy policy = new OrderlyConsumer.RetryPolicy(4, 10, 100, TimeUnit.MILLISECONDS);
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        int others = 0;
+        int poison = 0;
+        for (int i = 0; i < messages; i++) {
+            if (i % orders != poisonOrder && i % orders != flakyOrder) {
+                others++;
+            }
+            if (i % orders == poisonOrder && i % 2000 == poisonOrder) {
+                poison++;
+            }
+        }
+        final int otherMessages = others;
+        final int poisonMessages = poison;
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger otherProcessed = new AtomicInteger();
+        AtomicInteger disorder = new AtomicInteger();
+        AtomicIntegerArray lastSeq = new AtomicIntegerArray(orders);
+        for (int i = 0; i < orders; i++) {
+            lastSeq.set(i, -1);
+        }
+        Map<Integer, AtomicInteger> flakyFailures = new ConcurrentHashMap<>();
+        java.util.concurrent.atomic.AtomicBoolean fixed = new java.util.concurrent.atomic.AtomicBoolean();
+        OrderlyConsumer.MessageListener process = (queueId, m) -> {
+            int seq = seqOf(m);
+            int order = (int) m.getOrderId();
+            if (!fixed.get() && order == poisonOrder && seq % 2000 == poisonOrder) {
+                throw new IllegalStateException("poison " + seq);
+            }
+            if (order == flakyOrder && seq % 2000 == flakyOrder
+                    && flakyFailures.computeIfAbsent(seq, k -> new AtomicInteger()).incrementAndGet() <= 2) {
+                throw new IllegalStateException("flaky " + seq);
+            }
+            // 同一订单同一时刻只在一个线程上处理，这里的读改写不会交错
+            if (seq <= lastSeq.get(order)) {
+                disorder.incrementAndGet();
+            }
+            lastSeq.set(order, seq);
+            processed.incrementAndGet();
+            if (order != poisonOrder && order != flakyOrder) {
+                otherProcessed.incrementAndGet();
+            }
+        };
+        DeadLetterQueue dlq = new DeadLetterQueue();
+        OrderlyConsumer consumer;
+        if (mode == 0) {
+            consumer = new OrderlyConsumer(queues, (queueId, m) -> {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        process.consume(queueId, m);
+                        return;
+                    } catch (IllegalStateException e) {
+                        if (attempt == policy.getMaxAttempts()) {
+                            throw e;
+                        }
+                        TimeUnit.NANOSECONDS.sleep(policy.backoffNanos(attempt));
+                    }
+                }
+            });
+        } else if (mode == 1) {
+            consumer = new OrderlyConsumer(queues, process).enableRetry(policy, dlq);
+        } else if (mode == 2) {
+            consumer = new OrderlyConsumer(queues, process, 4, 1024).enableRetry(policy, dlq);
+        } else {
+            consumer = new OrderlyConsumer(queues, (queueId, batch) -> {
+                // 整批要么全部成功要么在处理任何一条之前失败，逐条重投时不会重复
+                for (Message m : batch) {
+                    int seq = seqOf(m);
+                    if (!fixed.get() && m.getOrderId() == poisonOrder && seq % 2000 == poisonOrder) {
+                        throw new IllegalStateException("poison " + seq);
+                    }
+                    if (m.getOrderId() == flakyOrder && seq % 2000 == flakyOrder
+                            && flakyFailures.computeIfAbsent(seq, k -> new AtomicInteger()).get() < 2) {
+                        flakyFailures.get(seq).incrementAndGet();
+                        throw new IllegalStateException("flaky " + seq);
+                    }
+                }
+                for (Message m : batch) {
+                    process.consume(queueId, m);
+                }
+            }, 256, 1, TimeUnit.MILLISECONDS).enableRetry(policy, dlq);
+        }
+        PrintStream err = System.err;
+        // 基线模式下每条毒消息都会打印一次错误
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        consumer.start();
+        Producer producer = new Producer(queues);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            producer.send(i % orders, i + ":" + PADDING);
+        }
+        while (otherProcessed.get() < otherMessages) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long othersDone = System.nanoTime() - start;
+        while (processed.get() < messages - poisonMessages) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long allDone = System.nanoTime() - start;
+        long wait = System.nanoTime();
+        while (mode != 0 && dlq.size() < poisonMessages && System.nanoTime() - wait < TimeUnit.SECONDS.toNanos(10)) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        System.setErr(err);
+        int deadLettered = dlq.size();
+        int replayed = 0;
+        if (mode != 0) {
+            // 修复后重新投递：死信排在该订单之后的消息后面，不计入顺序检查
+            fixed.set(true);
+            lastSeq.set(poisonOrder, -1);
+            replayed = dlq.replay(producer);
+            while (processed.get() < messages) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.printf("%s other orders done %6d ms  all but poison %6d ms  processed=%d dead-lettered=%d "
+                        + "replayed=%d disorder=%d%n",
+                name, TimeUnit.NANOSECONDS.toMillis(othersDone), TimeUnit.NANOSECONDS.toMillis(allDone),
+                processed.get(), deadLettered, replayed, disorder.get());
+    }
+
+    /*
+    orderId 索引：写入 messages 条消息（每个订单20条，人为的创建时间每1000条递增1毫秒），
+    随机订单的全时间段与部分时间段查询延迟及结果核对，对比扫描整个日志找一个订单，以及重启后重新打开、删除索引后重建
+     */
+    static void index(int messages) throws Exception {
+        final int queueCount = 4;
+        final int perOrder = 20;
+        final int orders = messages / perOrder;
+        final long baseTs = System.currentTimeMillis();
+        Path dir = Files.createTempDirectory("index");
+        try {
+            CommitLog log = new CommitLog(dir, CommitLog.DEFAULT_SEGMENT_SIZE, CommitLog.FlushMode.OS, 1,
+                    TimeUnit.SECONDS);
+            List<MessageQueue> queues = new ArrayList<>();
+            for (int i = 0; i < queueCount; i++) {
+                queues.add(new MessageQueue(i, log));
+            }
+            List<List<Message>> batches = new ArrayList<>();
+            for (int q = 0; q < queueCount; q++) {
+                batches.add(new ArrayList<>(1024));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                List<Message> batch = batches.get(i % queueCount);
+                batch.add(new Message(i % orders, i + ":", baseTs + i / 1000));
+                if (batch.size() == 1024) {
+                    queues.get(i % queueCount).putAll(batch);
+                    batch.clear();
+                }
+            }
+            for (int q = 0; q < queueCount; q++) {
+                queues.get(q).putAll(batches.get(q));
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("append %d messages with index: %8.0f msg/s, log %d MB, %d index files%n",
+                    messages, messages * 1e9 / elapsed, log.getMaxOffset() >> 20, log.indexFileCount());
+
+            queryIndex("query all        ", log, orders, perOrder, baseTs, false);
+            queryIndex("query time range ", log, orders, perOrder, baseTs, true);
+
+            // 没有索引时只能扫描整个日志
+            long target = orders / 2;
+            MessageView view = new MessageView();
+            int found = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < queueCount; q++) {
+                ConsumeQueue cq = log.consumeQueue(q);
+                for (long i = 0, n = cq.entries(); i < n; i++) {
+                    if (log.view(cq.offsetAt(i), view).orderId() == target) {
+                        found++;
+                    }
+                }
+            }
+            System.out.printf("full scan for one order: %d ms (%d found)%n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), found);
+
+            log.close();
+            start = System.nanoTime();
+            log = new CommitLog(dir, CommitLog.DEFAULT_SEGMENT_SIZE, CommitLog.FlushMode.OS, 1, TimeUnit.SECONDS);
+            System.out.printf("reopen: %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            queryIndex("query after reopen", log, orders, perOrder, baseTs, false);
+            log.close();
+
+            delete(dir.resolve("index"));
+            start = System.nanoTime();
+            log = new CommitLog(dir, CommitLog.DEFAULT_SEGMENT_SIZE, CommitLog.FlushMode.OS, 1, TimeUnit.SECONDS);
+            System.out.printf("rebuild index from log: %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            queryIndex("query after rebuild", log, orders, perOrder, baseTs, false);
+            log.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /*
+    批消息的索引：3个压缩批各含16个订单交错的64条消息，查询位于批中间的订单只返回该订单的消息（按序、不含批消息本身），
+    时间段与 maxResults 在批内同样生效；删除索引重建后结果不变
+     */
+    static void batchIndex() throws Exception {
+        final int batches = 3;
+        final int perBatch = 64;
+        final int orders = 16;
+        final long target = 7;
+        final long baseTs = System.currentTimeMillis();
+        Path dir = Files.createTempDirectory("batch-index");
+        try {
+            CommitLog log = new CommitLog(dir, CommitLog.DEFAULT_SEGMENT_SIZE, CommitLog.FlushMode.OS, 1,
+                    TimeUnit.SECONDS);
+            MessageQueue mq = new MessageQueue(0, log);
+            for (int b = 0; b < batches; b++) {
+                List<Message> group = new ArrayList<>(perBatch);
+                for (int i = 0; i < perBatch; i++) {
+                    int seq = b * perBatch + i;
+                    group.add(new Message(seq % orders, seq + ":", baseTs + seq));
+                }
+                mq.put(MessageBatch.pack(group, BatchCodec.DEFLATE));
+            }
+            boolean ok = checkBatchQuery("query in batch      ", log, target, baseTs, Long.MAX_VALUE, Integer.MAX_VALUE,
+                    batches * perBatch / orders);
+            // 只覆盖第二批的时间段
+            ok &= checkBatchQuery("query time range    ", log, target, baseTs + perBatch, baseTs + 2 * perBatch - 1,
+                    Integer.MAX_VALUE, perBatch / orders);
+            ok &= checkBatchQuery("query maxResults=5  ", log, target, baseTs, Long.MAX_VALUE, 5, 5);
+            ok &= log.queryByOrderId(orders, baseTs, Long.MAX_VALUE).isEmpty();
+            log.close();
+
+            delete(dir.resolve("index"));
+            log = new CommitLog(dir, CommitLog.DEFAULT_SEGMENT_SIZE, CommitLog.FlushMode.OS, 1, TimeUnit.SECONDS);
+            ok &= checkBatchQuery("query after rebuild ", log, target, baseTs, Long.MAX_VALUE, Integer.MAX_VALUE,
+                    batches * perBatch / orders);
+            log.close();
+            if (!ok) {
+                System.exit(1);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /*
+    结果应为订单 orderId 在时间段内最新的 expected 条消息，按序号递增且都不是批消息
+     */
+    private static boolean checkBatchQuery(String name, CommitLog log, long orderId, long fromTs, long toTs,
+                                           int maxResults, int expected) {
+        List<Message> found = log.queryByOrderId(orderId, fromTs, toTs, maxResults);
+        boolean ok = found.size() == expected;
+        int last = -1;
+        for (Message m : found) {
+            int seq = seqOf(m);
+            ok &= m.getOrderId() == orderId && !MessageBatch.isBatch(m) && seq > last
+                    && m.getTimestamp() >= fromTs && m.getTimestamp() <= toTs;
+            last = seq;
+        }
+        System.out.printf("batch index %s found %d (expect %d)  %s%n", name, found.size(), expected, ok ? "OK" : "FAILED");
+        return ok;
+    }
+
+    /*
+    消息 i 属于订单 i % orders，创建时间 baseTs + i / 1000；部分时间段查询取每个订单第5到第10条之间的时间段
+     */
+    private static void queryIndex(String name, CommitLog log, int orders, int perOrder, long baseTs, boolean range) {
+        final int queries = 10_000;
+        java.util.Random random = new java.util.Random(7);
+        long[] cost = new long[queries];
+        int wrong = 0;
+        for (int k = 0; k < queries; k++) {
+            int order = random.nextInt(orders);
+            int first = range ? 5 : 0;
+            int last = range ? 10 : perOrder - 1;
+            long from = range ? baseTs + (order + (long) first * orders) / 1000 : Long.MIN_VALUE;
+            long to = range ? baseTs + (order + (long) last * orders) / 1000 : Long.MAX_VALUE;
+            long t0 = System.nanoTime();
+            List<Message> result = log.queryByOrderId(order, from, to);
+            cost[k] = System.nanoTime() - t0;
+            boolean ok = result.size() == last - first + 1;
+            for (int j = 0; ok && j < result.size(); j++) {
+                ok = seqOf(result.get(j)) == order + (first + j) * orders;
+            }
+            if (!ok) {
+                wrong++;
+            }
+        }
+        Arrays.sort(cost);
+        System.out.printf("%s p50=%6.1f us  p99=%6.1f us  max=%7.1f us  wrong=%d/%d%n", name,
+                cost[queries / 2] / 1e3, cost[(int) (queries * 0.99)] / 1e3, cost[queries - 1] / 1e3, wrong, queries);
+    }
+
+    /*
+    指标：开启/关闭指标时的消费吞吐对比；一半消息集中在一个订单上的倾斜负载下定时轮询快照，
+    给出各队列的生产/消费速率、深度与延迟，最后核对计数；以及消费组积压
+     */
+    static void metrics() throws Exception {
+        final int queueCount = 4;
+        final int messages = 2_000_000;
+        for (int round = 0; round < 3; round++) {
+            long off = runMetricsPipeline(queueCount, messages, null);
+            long on = runMetricsPipeline(queueCount, messages, new MessageMetrics());
+            System.out.printf("round %d: metrics off %9d msg/s   on %9d msg/s%n", round, off, on);
+        }
+        MetricsHistogram h = new MetricsHistogram();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10_000_000; i++) {
+            h.record(i % 1_000_000);
+        }
+        System.out.printf("histogram record: %.1f ns/op, p50=%d p99=%d (exact 499999, 989999)%n",
+                (System.nanoTime() - t0) / 1e7, h.percentile(50), h.percentile(99));
+
+        // 倾斜负载：一半消息属于订单0，每条处理约20微秒，生产速度高于热点队列的消费速度
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        MessageMetrics metrics = new MessageMetrics();
+        Producer producer = new Producer(queues);
+        producer.setMetrics(metrics);
+        final int skewed = 200_000;
+        CountDownLatch done = new CountDownLatch(skewed);
+        OrderlyConsumer consumer = new OrderlyConsumer(queues, (queueId, message) -> {
+            long until = System.nanoTime() + 20_000;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait();
+            }
+            done.countDown();
+        }).setMetrics(metrics);
+        consumer.start();
+        Thread sender = new Thread(() -> {
+            try {
+                java.util.Random random = new java.util.Random(1);
+                List<Message> batch = new ArrayList<>(256);
+                for (int i = 0; i < skewed; i++) {
+                    long orderId = random.nextBoolean() ? 0 : 1 + random.nextInt(10_000);
+                    batch.add(new Message(orderId, PADDING));
+                    if (batch.size() == 256) {
+                        producer.sendBatch(batch);
+                        batch.clear();
+                        Thread.sleep(1);
+                    }
+                }
+                producer.sendBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sender.start();
+        MetricsSnapshot previous = metrics.getSnapshot();
+        while (!done.await(500, TimeUnit.MILLISECONDS)) {
+            MetricsSnapshot now = metrics.getSnapshot();
+            StringBuilder line = new StringBuilder();
+            for (MetricsSnapshot.QueueMetrics q : now.getQueues()) {
+                line.append(String.format("  Q%d in %6.0f/s out %6.0f/s depth %6d p99 %4dms |", q.getQueueId(),
+                        now.produceRate(previous, q.getQueueId()), now.consumeRate(previous, q.getQueueId()),
+                        q.getDepth(), q.getLatency().percentile(99)));
+            }
+            System.out.println(line);
+            previous = now;
+        }
+        sender.join();
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        MetricsSnapshot last = metrics.getSnapshot();
+        System.out.println(last);
+        long produced = 0;
+        long consumed = 0;
+        long samples = 0;
+        for (MetricsSnapshot.QueueMetrics q : last.getQueues()) {
+            produced += q.getProduced();
+            consumed += q.getConsumed();
+            samples += q.getHandlerTime().count();
+        }
+        System.out.println("counts " + (produced == skewed && consumed == skewed && samples == skewed ? "OK" : "MISMATCH")
+                + " (produced=" + produced + ", consumed=" + consumed + ", handler samples=" + samples + ")");
+
+        // 消费组积压：写入后、启动前积压等于写入条数，消费完归零
+        Path dir = Files.createTempDirectory("metrics");
+        try (CommitLog log = new CommitLog(dir, 64 << 20, CommitLog.FlushMode.OS, 200, TimeUnit.MILLISECONDS)) {
+            MessageQueue mq = new MessageQueue(0, log);
+            List<Message> batch = new ArrayList<>();
+            for (int i = 0; i < 100_000; i++) {
+                batch.add(new Message(i, PADDING));
+            }
+            mq.putAll(batch);
+            MessageMetrics groupMetrics = new MessageMetrics();
+            GroupConsumer group = new GroupConsumer(log, "billing", List.of(0), (queueId, list) -> {
+            }, 1024).setMetrics(groupMetrics);
+            long before = groupMetrics.getSnapshot().getGroupLag().get("billing").get(0);
+            group.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (group.getLag(0) > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            group.shutdown();
+            group.awaitTermination(5, TimeUnit.SECONDS);
+            MetricsSnapshot g = groupMetrics.getSnapshot();
+            System.out.println("group lag before start " + before + ", after " + g.getGroupLag().get("billing").get(0)
+                    + ", consumed " + g.getQueue(0).getConsumed());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /*
+    sendBatch 发送、队列级逐条消费，返回每秒消息数；metrics 为 null 时不记录指标
+     */
+    private static long runMetricsPipeline(int queueCount, int messages, MessageMetrics metrics) throws Exception {
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        Producer producer = new Producer(queues);
+        producer.setMetrics(metrics);
+        CountDownLatch done = new CountDownLatch(messages);
+        OrderlyConsumer consumer = new OrderlyConsumer(queues, (queueId, message) -> done.countDown())
+                .setMetrics(metrics);
+        consumer.start();
+        long start = System.nanoTime();
+        List<Message> batch = new ArrayList<>(256);
+        for (int i = 0; i < messages; i++) {
+            batch.add(new Message(i, PADDING));
+            if (batch.size() == 256) {
+                producer.sendBatch(batch);
+                batch.clear();
+            }
+        }
+        producer.sendBatch(batch);
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        return (long) (messages * 1e9 / elapsed);
+    }
+
+    /*
+    批消息压缩：不同算法与批大小下的压缩率、打包速度，以及解压后用 MessageView 遍历（不分配）和解码为 Message 的速度；
+    然后对比提交日志上逐条写入与压缩写入的吞吐与日志大小，最后经 Broker 传输压缩批消息并核对顺序
+     */
+    static void compress() throws Exception {
+        final int n = 256 * 1024;
+        long baseTs = System.currentTimeMillis();
+        List<Message> events = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            events.add(orderEvent(i, i % 1000, baseTs + i / 100));
+        }
+        long rawBytes = 0;
+        for (Message m : events) {
+            rawBytes += MessageCodec.encodedSize(m);
+        }
+        System.out.printf("order events: %.1f encoded bytes/msg%n", rawBytes / (double) n);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        BatchCodec[] codecs = {BatchCodec.NONE, BatchCodec.DEFLATE, BatchCodec.deflate(6)};
+        String[] names = {"none     ", "deflate-1", "deflate-6"};
+        MessageBatch.Reader reader = new MessageBatch.Reader();
+        MessageView view = new MessageView();
+        long sink = 0;
+        for (int c = 0; c < codecs.length; c++) {
+            for (int batchSize : new int[]{16, 64, 256, 1024}) {
+                List<Message> packed = new ArrayList<>(n / batchSize);
+                long packNanos = 0;
+                long viewNanos = 0;
+                long decodeNanos = 0;
+                long viewAlloc = 0;
+                for (int round = 0; round < 3; round++) {
+                    packed.clear();
+                    long t0 = System.nanoTime();
+                    for (int i = 0; i < n; i += batchSize) {
+                        packed.add(MessageBatch.pack(events.subList(i, i + batchSize), codecs[c]));
+                    }
+                    long t1 = System.nanoTime();
+                    long a0 = threads.getCurrentThreadAllocatedBytes();
+                    for (Message b : packed) {
+                        reader.open(b);
+                        while (reader.next(view)) {
+                            sink += view.orderId() + view.payloadLength();
+                        }
+                    }
+                    long t2 = System.nanoTime();
+                    long a1 = threads.getCurrentThreadAllocatedBytes();
+                    for (Message b : packed) {
+                        reader.open(b);
+                        Message m;
+                        while ((m = reader.next()) != null) {
+                            sink += m.getOrderId();
+                        }
+                    }
+                    long t3 = System.nanoTime();
+                    packNanos = t1 - t0;
+                    viewNanos = t2 - t1;
+                    decodeNanos = t3 - t2;
+                    viewAlloc = a1 - a0;
+                }
+                long packedBytes = 0;
+                for (Message b : packed) {
+                    packedBytes += MessageCodec.encodedSize(b);
+                }
+                System.out.printf("%s batch %4d: %6.1f bytes/msg  ratio %5.2f  pack %9.0f msg/s  "
+                                + "unpack+view %9.0f msg/s (%4.1f B/msg alloc)  unpack+decode %9.0f msg/s%n",
+                        names[c], batchSize, packedBytes / (double) n, rawBytes / (double) packedBytes,
+                        n * 1e9 / packNanos, n * 1e9 / viewNanos, viewAlloc / (double) n, n * 1e9 / decodeNanos);
+            }
+        }
+
+        // 提交日志：sendBatch(256) 写入、批量模式消费
+        for (BatchCodec codec : new BatchCodec[]{null, BatchCodec.DEFLATE}) {
+            Path dir = Files.createTempDirectory("compress");
+            try (CommitLog log = new CommitLog(dir, 256 << 20, CommitLog.FlushMode.OS, 200, TimeUnit.MILLISECONDS)) {
+                runCompressedPipeline(codec == null ? "commit log, none   " : "commit log, deflate", log, codec, 2_000_000);
+            } finally {
+                delete(dir);
+            }
+        }
+
+        // 经 Broker 传输：Broker 原样保存与转发压缩的批消息，远程消费者展开
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            queues.add(new MessageQueue(i));
+        }
+        try (Broker broker = new Broker(0, queues)) {
+            java.net.InetSocketAddress address = new java.net.InetSocketAddress(
+                    java.net.InetAddress.getLoopbackAddress(), broker.getPort());
+            final int messages = 400_000;
+            final int orders = 1000;
+            long start = System.nanoTime();
+            try (RemoteProducer producer = new RemoteProducer(address)) {
+                producer.setCompression(BatchCodec.DEFLATE);
+                List<Message> batch = new ArrayList<>(1024);
+                for (int i = 0; i < messages; i++) {
+                    batch.add(orderEvent(i, i % orders, System.currentTimeMillis()));
+                    if (batch.size() == 1024) {
+                        producer.sendBatch(batch);
+                        batch.clear();
+                    }
+                }
+                producer.sendBatch(batch);
+            }
+            long sent = System.nanoTime() - start;
+            long records = 0;
+            for (MessageQueue mq : queues) {
+                records += mq.size();
+            }
+            AtomicInteger received = new AtomicInteger();
+            AtomicInteger disorder = new AtomicInteger();
+            int[] lastSeq = new int[orders];
+            Arrays.fill(lastSeq, -1);
+            CountDownLatch done = new CountDownLatch(messages);
+            RemoteConsumer consumer = new RemoteConsumer(address, List.of(0, 1, 2, 3), (queueId, list) -> {
+                for (Message m : list) {
+                    int order = (int) m.getOrderId();
+                    int seq = seqOf(m);
+                    if (seq <= lastSeq[order]) {
+                        disorder.incrementAndGet();
+                    }
+                    lastSeq[order] = seq;
+                    received.incrementAndGet();
+                    done.countDown();
+                }
+            }, 64);
+            consumer.start();
+            done.await(60, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            consumer.shutdown();
+            consumer.awaitTermination(5, TimeUnit.SECONDS);
+            System.out.printf("broker, deflate: sent %d messages as %d records in %d ms, received=%d in %d ms, "
+                            + "disorder=%d%n", messages, records, TimeUnit.NANOSECONDS.toMillis(sent), received.get(),
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), disorder.get());
+        }
+        System.out.println(sink == 42 ? "" : "done");
+    }
+
+    /*
+    类似订单事件的 JSON 消息体，内容以 "seq:" 开头供 seqOf 解析
+     */
+    private static Message orderEvent(int seq, long orderId, long timestamp) {
+        String[] events = {"ORDER_CREATED", "ORDER_PAID", "ORDER_SHIPPED", "ORDER_DELIVERED"};
+        return new Message(orderId, seq + ":{\"event\":\"" + events[seq & 3] + "\",\"orderId\":" + orderId
+                + ",\"userId\":" + (orderId * 7919 % 100_000) + ",\"amount\":" + (1000 + seq % 9000)
+                + ",\"currency\":\"CNY\",\"sku\":\"A-" + (seq % 500) + "\",\"warehouse\":\"WH-SH-01\""
+                + ",\"channel\":\"app\",\"ts\":" + timestamp + "}", timestamp);
+    }
+
+    /*
+    4个队列，sendBatch(256) 写入提交日志，批量模式消费并核对每个订单内的顺序
+     */
+    private static void runCompressedPipeline(String name, CommitLog log, BatchCodec codec, int messages)
+            throws Exception {
+        final int queueCount = 4;
+        final int orders = 1000;
+        List<MessageQueue> queues = new ArrayList<>();
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new MessageQueue(i, log));
+        }
+        Producer producer = new Producer(queues);
+        producer.setCompression(codec);
+        AtomicInteger disorder = new AtomicInteger();
+        int[] lastSeq = new int[orders];
+        Arrays.fill(lastSeq, -1);
+        CountDownLatch done = new CountDownLatch(messages);
+        OrderlyConsumer consumer = new OrderlyConsumer(queues, (queueId, list) -> {
+            for (Message m : list) {
+                int order = (int) m.getOrderId();
+                int seq = seqOf(m);
+                if (seq <= lastSeq[order]) {
+                    disorder.incrementAndGet();
+                }
+                lastSeq[order] = seq;
+                done.countDown();
+            }
+        }, 1024, 1, TimeUnit.MILLISECONDS);
+        consumer.start();
+        long start = System.nanoTime();
+        long ts = System.currentTimeMillis();
+        List<Message> batch = new ArrayList<>(256);
+        for (int i = 0; i < messages; i++) {
+            batch.add(orderEvent(i, i % orders, ts + i / 1000));
+            if (batch.size() == 256) {
+                producer.sendBatch(batch);
+                batch.clear();
+            }
+        }
+        producer.sendBatch(batch);
+        long produced = System.nanoTime() - start;
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.printf("%s produce %9.0f msg/s  end-to-end %9.0f msg/s  log %5d MB (%5.1f bytes/msg)  disorder=%d%n",
+                name, messages * 1e9 / produced, messages * 1e9 / elapsed, log.getMaxOffset() >> 20,
+                log.getMaxOffset() / (double) messages, disorder.get());
+    }
+
+    /*
+    二进制编码：往返正确性、编码/解码/享元读取的速度，以及百万条积压在堆上与编码后的内存占用
+     */
+    static void codec() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("tenant", "t-42");
+        headers.put("类型", "订单");
+        Message[] samples = {
+                new Message(1001, "Order Created"),
+                new Message(-7, (String) null, 5L, 0, null),
+                new Message(1002, "支付成功 \uD83D\uDE00", 123L, 0x5, headers),
+                new Message(1003, new byte[]{0, 1, 2, (byte) 0xFF}, 456L, 1, headers),
+        };
+        boolean ok = true;
+        MessageView view = new MessageView();
+        for (Message m : samples) {
+            ByteBuffer buf = MessageCodec.encode(m, BufferPool.DEFAULT);
+            Message d = MessageCodec.decode(buf, 0);
+            view.wrap(buf, 0);
+            ok &= d.getOrderId() == m.getOrderId() && d.getTimestamp() == m.getTimestamp()
+                    && d.getFlags() == m.getFlags() && d.getHeaders().equals(m.getHeaders())
+                    && Objects.equals(d.getContent(), m.getContent()) && d.isText() == m.isText()
+                    && Arrays.equals(d.getPayload(), m.getPayload())
+                    && view.orderId() == m.getOrderId() && view.length() == MessageCodec.encodedSize(m)
+                    && Objects.equals(view.header("类型"), m.getHeader("类型"))
+                    && Objects.equals(view.header("tenant"), m.getHeader("tenant"));
+            BufferPool.DEFAULT.release(buf);
+        }
+        System.out.println("round trip " + (ok ? "OK" : "FAILED"));
+
+        final int n = 1_000_000;
+        final String body = "{\"event\":\"ORDER_PAID\",\"amount\":1999,\"currency\":\"CNY\",\"sku\":\"A-1001\"}";
+        Message msg = new Message(42, body);
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sink += String.format("[OrderId=%d, Content=%s, Time=%d]", msg.getOrderId(), msg.getContent(),
+                        msg.getTimestamp()).length();
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sink += msg.toString().length();
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                ByteBuffer buf = MessageCodec.encode(msg, BufferPool.DEFAULT);
+                sink += buf.limit();
+                BufferPool.DEFAULT.release(buf);
+            }
+            long t3 = System.nanoTime();
+            if (round == 2) {
+                System.out.printf("String.format toString %6.0f ns/msg   concat toString %6.0f ns/msg   encode to pooled direct %6.0f ns/msg%n",
+                        (t1 - t0) / (double) n, (t2 - t1) / (double) n, (t3 - t2) / (double) n);
+            }
+        }
+
+        // 百万条消息在堆上（Message 对象）与编码进一块直接内存的占用对比
+        Runtime rt = Runtime.getRuntime();
+        long before = usedHeap(rt);
+        List<Message> onHeap = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            onHeap.add(new Message(i, new String(body.toCharArray()), i, 0, null));
+        }
+        long heapBytes = usedHeap(rt) - before;
+        int encodedSize = MessageCodec.encodedSize(msg);
+        ByteBuffer log = ByteBuffer.allocateDirect(encodedSize * n);
+        int pos = 0;
+        for (Message m : onHeap) {
+            pos += MessageCodec.encode(m, log, pos);
+        }
+        System.out.printf("backlog of %d: %5.1f bytes/msg as Message objects, %5.1f bytes/msg encoded off-heap%n",
+                n, heapBytes / (double) n, pos / (double) n);
+
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int p = 0; p < pos; ) {
+                Message m = MessageCodec.decode(log, p);
+                sink += m.getOrderId();
+                p += log.getInt(p);
+            }
+            long t1 = System.nanoTime();
+            for (int p = 0; p < pos; ) {
+                view.wrap(log, p);
+                sink += view.orderId() + view.payloadLength();
+                p += view.length();
+            }
+            long t2 = System.nanoTime();
+            if (round == 2) {
+                System.out.printf("scan: full decode %6.1f ns/msg   flyweight view %6.1f ns/msg%n",
+                        (t1 - t0) / (double) n, (t2 - t1) / (double) n);
+            }
+        }
+        System.out.println("pool: allocated " + BufferPool.DEFAULT.getAllocatedCount()
+                + " reused " + BufferPool.DEFAULT.getReusedCount() + " (" + (sink == 42 ? "" : "done") + ")");
+        onHeap.clear();
+    }
+
+    private static long fullGcMillis() {
+        long start = System.nanoTime();
+        System.gc();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static long usedHeap(Runtime rt) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
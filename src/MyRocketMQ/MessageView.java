@@ -0,0 +1,114 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码后消息的享元视图：直接从缓冲区读取字段，不创建 Message，也不复制消息体
+ * 同一个实例可以反复 wrap 到不同位置，适合在消费循环中复用；非线程安全
+ */
+public final class MessageView {
+    private ByteBuffer buf;
+    private int offset;
+    private byte version;
+    private int headerSize;
+
+    public MessageView wrap(ByteBuffer buf, int offset) {
+        byte version = buf.get(offset + MessageCodec.POS_VERSION);
+        if (version != MessageCodec.VERSION && version != MessageCodec.VERSION_1) {
+            throw new IllegalArgumentException("not an encoded message at " + offset);
+        }
+        this.buf = buf;
+        this.offset = offset;
+        this.version = version;
+        this.headerSize = MessageCodec.headerSize(version);
+        return this;
+    }
+
+    public int length() {
+        return buf.getInt(offset + MessageCodec.POS_LENGTH);
+    }
+
+    public long orderId() {
+        return buf.getLong(offset + MessageCodec.POS_ORDER_ID);
+    }
+
+    public long timestamp() {
+        return buf.getLong(offset + MessageCodec.POS_TIMESTAMP);
+    }
+
+    /*
+    投递时间（毫秒），0表示立即投递
+     */
+    public long deliverAt() {
+        return version == MessageCodec.VERSION_1 ? 0 : buf.getLong(offset + MessageCodec.POS_DELIVER_AT);
+    }
+
+    public int flags() {
+        return buf.getInt(offset + MessageCodec.POS_FLAGS);
+    }
+
+    public boolean isText() {
+        return (buf.get(offset + MessageCodec.POS_ATTRIBUTES) & MessageCodec.ATTR_TEXT) != 0;
+    }
+
+    /*
+    消息体字节数，null 消息体为 -1
+     */
+    public int payloadLength() {
+        return buf.getInt(offset + MessageCodec.POS_PAYLOAD_LEN);
+    }
+
+    /*
+    消息体的只读切片，与底层缓冲区共享内容
+     */
+    public ByteBuffer payload() {
+        int len = Math.max(0, payloadLength());
+        return buf.slice(payloadOffset(), len).asReadOnlyBuffer();
+    }
+
+    public String content() {
+        int len = payloadLength();
+        return len < 0 ? null : MessageCodec.readUtf8(buf, payloadOffset(), len);
+    }
+
+    /*
+    在头部区域中顺序查找，找不到返回 null；只有命中时才创建字符串
+     */
+    public String header(String key) {
+        int pos = offset + headerSize;
+        int end = pos + buf.getInt(offset + MessageCodec.POS_HEADERS_LEN);
+        int keyLen = MessageCodec.utf8Length(key);
+        while (pos < end) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            int valuePos = pos + 2 + len;
+            int valueLen = buf.getShort(valuePos) & 0xFFFF;
+            if (len == keyLen && keyEquals(key, pos + 2)) {
+                return MessageCodec.readUtf8(buf, valuePos + 2, valueLen);
+            }
+            pos = valuePos + 2 + valueLen;
+        }
+        return null;
+    }
+
+    private boolean keyEquals(String key, int pos) {
+        for (int i = 0, n = key.length(); i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                // 非 ASCII 键退化为解码比较
+                return key.equals(MessageCodec.readUtf8(buf, pos, MessageCodec.utf8Length(key)));
+            }
+            if (buf.get(pos + i) != (byte) c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int payloadOffset() {
+        return offset + headerSize + buf.getInt(offset + MessageCodec.POS_HEADERS_LEN);
+    }
+
+    public Message toMessage() {
+        return MessageCodec.decode(buf, offset);
+    }
+}
@@ -0,0 +1,156 @@
+package MyRocketMQ;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessageMetrics 的快照，由 MessageMetrics.getSnapshot() 生成，生成后不再变化
+ * 计数都是累计值，两次快照相减得到速率（见 produceRate/consumeRate）
+ */
+public final class MetricsSnapshot {
+    private final long timestamp;
+    private final List<QueueMetrics> queues;
+    private final Map<String, Map<Integer, Long>> groupLag;
+
+    /**
+     * 单个队列的指标
+     */
+    public static final class QueueMetrics {
+        private final int queueId;
+        private final long produced;
+        private final long consumed;
+        private final long failed;
+        private final long depth;
+        private final MetricsHistogram latency;
+        private final MetricsHistogram handlerTime;
+
+        QueueMetrics(int queueId, long produced, long consumed, long failed, long depth,
+                     MetricsHistogram latency, MetricsHistogram handlerTime) {
+            this.queueId = queueId;
+            this.produced = produced;
+            this.consumed = consumed;
+            this.failed = failed;
+            this.depth = depth;
+            this.latency = latency;
+            this.handlerTime = handlerTime;
+        }
+
+        public int getQueueId() {
+            return queueId;
+        }
+
+        public long getProduced() {
+            return produced;
+        }
+
+        /*
+        回调成功的消息数
+         */
+        public long getConsumed() {
+            return consumed;
+        }
+
+        /*
+        回调抛出异常的消息数，重试的每次失败都计入
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /*
+        队列中尚未被取走的消息数，队列未登记时为-1
+         */
+        public long getDepth() {
+            return depth;
+        }
+
+        /*
+        消息创建到开始处理的时间（毫秒）
+         */
+        public MetricsHistogram getLatency() {
+            return latency;
+        }
+
+        /*
+        每次回调的耗时（纳秒），批量回调按批计
+         */
+        public MetricsHistogram getHandlerTime() {
+            return handlerTime;
+        }
+
+        @Override
+        public String toString() {
+            return "[Queue-" + queueId + " produced=" + produced + ", consumed=" + consumed + ", failed=" + failed
+                    + ", depth=" + depth + ", latencyMs={" + latency + "}, handlerNs={" + handlerTime + "}]";
+        }
+    }
+
+    MetricsSnapshot(long timestamp, List<QueueMetrics> queues, Map<String, Map<Integer, Long>> groupLag) {
+        this.timestamp = timestamp;
+        this.queues = Collections.unmodifiableList(queues);
+        this.groupLag = Collections.unmodifiableMap(groupLag);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /*
+    按队列 id 排序
+     */
+    public List<QueueMetrics> getQueues() {
+        return queues;
+    }
+
+    public QueueMetrics getQueue(int queueId) {
+        for (QueueMetrics q : queues) {
+            if (q.queueId == queueId) {
+                return q;
+            }
+        }
+        return null;
+    }
+
+    /*
+    各消费组在各队列上已写入但尚未提交的消息数
+     */
+    public Map<String, Map<Integer, Long>> getGroupLag() {
+        return groupLag;
+    }
+
+    /*
+    自 earlier 以来该队列每秒写入的消息数
+     */
+    public double produceRate(MetricsSnapshot earlier, int queueId) {
+        QueueMetrics now = getQueue(queueId);
+        QueueMetrics before = earlier.getQueue(queueId);
+        return rate(now == null ? 0 : now.produced, before == null ? 0 : before.produced, earlier);
+    }
+
+    /*
+    自 earlier 以来该队列每秒回调成功的消息数
+     */
+    public double consumeRate(MetricsSnapshot earlier, int queueId) {
+        QueueMetrics now = getQueue(queueId);
+        QueueMetrics before = earlier.getQueue(queueId);
+        return rate(now == null ? 0 : now.consumed, before == null ? 0 : before.consumed, earlier);
+    }
+
+    private double rate(long now, long before, MetricsSnapshot earlier) {
+        long millis = timestamp - earlier.timestamp;
+        return millis <= 0 ? 0 : (now - before) * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MetricsSnapshot{");
+        for (QueueMetrics q : queues) {
+            sb.append("\n  ").append(q);
+        }
+        if (!groupLag.isEmpty()) {
+            sb.append("\n  groupLag=").append(groupLag);
+        }
+        return sb.append("\n}").toString();
+    }
+}
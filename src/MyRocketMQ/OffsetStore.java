@@ -0,0 +1,54 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 一个消费组在各队列上的消费偏移（下一条要消费的序号），保存在 offsets/组名/队列号 文件中，每个文件8字节
+ * commit 只是对映射内存的一次写入，进程崩溃不会丢失；落盘由 CommitLog 的检查点线程按刷盘间隔批量完成
+ * 同一组同一队列的偏移只应由一个消费线程提交
+ */
+final class OffsetStore {
+    private final String group;
+    private final Path dir;
+    private final ConcurrentHashMap<Integer, MappedFile> files = new ConcurrentHashMap<>();
+
+    OffsetStore(String group, Path dir) {
+        this.group = group;
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    String getGroup() {
+        return group;
+    }
+
+    long get(int queueId) {
+        return file(queueId).buffer.getLong(0);
+    }
+
+    void commit(int queueId, long offset) {
+        file(queueId).buffer.putLong(0, offset);
+    }
+
+    private MappedFile file(int queueId) {
+        MappedFile f = files.get(queueId);
+        if (f != null) {
+            return f;
+        }
+        return files.computeIfAbsent(queueId, id -> MappedFile.openFile(dir.resolve(String.valueOf(id)), Long.BYTES));
+    }
+
+    void flush() {
+        for (MappedFile f : files.values()) {
+            f.force(0, Long.BYTES);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package MyRocketMQ;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * OrderlyConsumer 的失败重试：处理失败的消息连同该订单之后到达的消息一起被扣留（held），
+ * 按指数退避在重试线程上重新处理，消费线程不等待，同队列的其他订单照常消费
+ * 扣留期间该订单的新消息排在扣留队列末尾，保证同一订单仍按顺序处理；重试用尽后移入死信队列，接着处理该订单的下一条
+ * 某个队列还有被扣留的消息时，该队列的重平衡屏障推迟到这些消息处理完（或进入死信队列）后再确认
+ * 扣留的消息只在内存中，消费者关闭时还未处理完的直接移入死信队列
+ */
+final class OrderRetrier {
+    interface Handler {
+        void handle(int queueId, Message message) throws Exception;
+    }
+
+    private final Handler handler;
+    private final OrderlyConsumer.RetryPolicy policy;
+    private final DeadLetterQueue deadLetters;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ConcurrentHashMap<Long, Held> held = new ConcurrentHashMap<>();
+    // 各队列被扣留的消息数，以及因此推迟确认的屏障；都在 QueueState 的对象锁内修改
+    private final ConcurrentHashMap<Integer, QueueState> queueStates = new ConcurrentHashMap<>();
+
+    OrderRetrier(Handler handler, OrderlyConsumer.RetryPolicy policy, DeadLetterQueue deadLetters, int threads) {
+        this.handler = handler;
+        this.policy = policy;
+        this.deadLetters = deadLetters;
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread t = new Thread(r, "consumer-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        // 关闭后不再执行等待中的重试，剩下的消息由 awaitTermination 移入死信队列
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /*
+    消息所属订单正被扣留时把它排到末尾并返回 true，调用方不应再处理它
+     */
+    boolean offer(int queueId, Message message) {
+        Held h = held.get(message.getOrderId());
+        if (h == null) {
+            return false;
+        }
+        // 先计数再入队，重试线程处理完这条时计数一定已经包含它
+        QueueState state = queueState(queueId);
+        state.hold(1);
+        synchronized (h) {
+            if (!h.retired) {
+                h.pending.addLast(new Entry(queueId, message));
+                return true;
+            }
+        }
+        state.release();
+        return false;
+    }
+
+    /*
+    消息第一次处理失败：扣留它所属的订单并安排第一次重试
+     */
+    void fail(int queueId, Message message, Exception error) {
+        Long orderId = message.getOrderId();
+        Entry entry = new Entry(queueId, message);
+        entry.attempts = 1;
+        entry.error = error;
+        queueState(queueId).hold(1);
+        for (; ; ) {
+            Held h = held.computeIfAbsent(orderId, Held::new);
+            synchronized (h) {
+                if (h.retired) {
+                    continue;
+                }
+                // 通常是新建的扣留；并发重平衡时同一订单可能同时在两个队列上失败，排在已有的扣留之后
+                h.pending.addLast(entry);
+                if (h.pending.size() > 1) {
+                    return;
+                }
+            }
+            schedule(h, policy.backoffNanos(1));
+            return;
+        }
+    }
+
+    /*
+    队列还有被扣留的消息时推迟屏障并返回 true
+     */
+    boolean deferBarrier(int queueId, Message barrier) {
+        return queueState(queueId).defer(barrier);
+    }
+
+    int heldCount() {
+        int n = 0;
+        for (QueueState s : queueStates.values()) {
+            n += s.count();
+        }
+        return n;
+    }
+
+    private QueueState queueState(int queueId) {
+        QueueState s = queueStates.get(queueId);
+        if (s != null) {
+            return s;
+        }
+        return queueStates.computeIfAbsent(queueId, id -> new QueueState());
+    }
+
+    private void schedule(Held h, long delayNanos) {
+        try {
+            scheduler.schedule(h, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭，留给 awaitTermination 移入死信队列
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /*
+    等待正在执行的重试结束，然后把仍被扣留的消息按订单内顺序移入死信队列
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!scheduler.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        for (Held h : held.values()) {
+            List<Entry> rest;
+            synchronized (h) {
+                rest = new ArrayList<>(h.pending);
+                h.pending.clear();
+                h.retired = true;
+            }
+            held.remove(h.orderId, h);
+            for (Entry e : rest) {
+                deadLetters.add(new DeadLetterQueue.DeadLetter(e.message, e.queueId, e.attempts,
+                        e.error == null ? "consumer shut down" : "consumer shut down after " + e.error));
+                queueState(e.queueId).release();
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        final int queueId;
+        final Message message;
+        int attempts;
+        Exception error;
+
+        Entry(int queueId, Message message) {
+            this.queueId = queueId;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 一个被扣留的订单：队首是正在重试的消息，其后是扣留期间到达的消息
+     * 同一时刻最多在一个重试线程上运行；队首处理成功（或进入死信队列）后立即处理下一条，扣留队列清空时移出
+     */
+    private final class Held implements Runnable {
+        final Long orderId;
+        final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        boolean retired;
+
+        Held(Long orderId) {
+            this.orderId = orderId;
+        }
+
+        @Override
+        public void run() {
+            for (; ; ) {
+                Entry e;
+                synchronized (this) {
+                    e = pending.peekFirst();
+                }
+                if (e == null) {
+                    // 已被 awaitTermination 清空
+                    return;
+                }
+                try {
+                    handler.handle(e.queueId, e.message);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception ex) {
+                    e.attempts++;
+                    e.error = ex;
+                    if (e.attempts < policy.getMaxAttempts()) {
+                        schedule(this, policy.backoffNanos(e.attempts));
+                        return;
+                    }
+                    deadLetters.add(new DeadLetterQueue.DeadLetter(e.message, e.queueId, e.attempts, ex.toString()));
+                }
+                boolean done;
+                synchronized (this) {
+                    if (pending.peekFirst() != e) {
+                        return;
+                    }
+                    pending.pollFirst();
+                    done = pending.isEmpty();
+                    if (done) {
+                        retired = true;
+                        held.remove(orderId, this);
+                    }
+                }
+                queueState(e.queueId).release();
+                if (done) {
+                    return;
+                }
+                if (scheduler.isShutdown()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个队列上被扣留的消息数；降到0时确认推迟的屏障
+     */
+    private static final class QueueState {
+        private int held;
+        private List<Message> barriers;
+
+        synchronized void hold(int n) {
+            held += n;
+        }
+
+        synchronized int count() {
+            return held;
+        }
+
+        synchronized boolean defer(Message barrier) {
+            if (held == 0) {
+                return false;
+            }
+            if (barriers == null) {
+                barriers = new ArrayList<>();
+            }
+            barriers.add(barrier);
+            return true;
+        }
+
+        void release() {
+            List<Message> ready = null;
+            synchronized (this) {
+                if (--held == 0 && barriers != null) {
+                    ready = barriers;
+                    barriers = null;
+                }
+            }
+            if (ready != null) {
+                for (Message barrier : ready) {
+                    RebalanceBarrier.arrive(barrier);
+                }
+            }
+        }
+    }
+}
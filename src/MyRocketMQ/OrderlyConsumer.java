@@ -2,32 +2,671 @@ package MyRocketMQ;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 顺序消费者，支持两种模式：
+ * 队列级顺序：每个队列一个线程，按队列顺序逐条处理
+ * 订单级顺序：每个队列一个拉取线程，只负责把消息按 orderId 分发；同一 orderId 的消息串行处理，
+ * 不同 orderId 的消息在 concurrency 个处理线程上并行，慢订单只占用一个处理线程，不会阻塞同队列的其他订单
+ * 订单级模式下每个队列最多有 maxInFlightPerQueue 条已取出未处理完的消息，避免把整个队列拉进内存；
+ * 其中一个订单最多占 maxInFlightPerOrder 条，超出的消息改占同样大小的暂存额度，因此慢订单积压时
+ * 同队列的其他订单仍能继续拉取，暂存额度也被占满时才暂停拉取（内存上限为 2 * maxInFlightPerQueue 条）
+ * 批量模式：每个队列一个线程，攒够 batchSize 条或等满 batchWait 后一次回调，队列内顺序不变，因此同一 orderId 的顺序也不变
+ * 生产者重平衡时放入的屏障消息不交给回调，三种模式都在屏障之前的消息全部处理完后才确认屏障
+ * 默认处理失败只打印错误后跳过；enableRetry 后失败的消息按退避策略在重试线程上重试，只扣留同一 orderId 之后的消息，
+ * 同队列的其他订单照常消费，重试用尽后进入死信队列（见 OrderRetrier）
+ * setMetrics 后每次回调记录端到端延迟、回调耗时与成功/失败条数（见 MessageMetrics）
+ * 压缩的批消息（MessageBatch）在拉取线程上解压一次后按批内顺序逐条处理，回调看到的总是普通消息
+ * 批量模式下批消息展开后整体交给一次回调，因此一次回调的条数可能超过 batchSize
+ */
 public class OrderlyConsumer {
+    public interface MessageListener {
+        void consume(int queueId, Message message) throws Exception;
+    }
+
+    public interface BatchMessageListener {
+        void consume(int queueId, List<Message> messages) throws Exception;
+    }
+
+    /**
+     * 指数退避的重试策略：第 n 次失败后等待 min(initialBackoff * 2^(n-1), maxBackoff) 再重试，
+     * 共尝试 maxAttempts 次（包括第一次处理）
+     */
+    public static final class RetryPolicy {
+        private final int maxAttempts;
+        private final long initialBackoffNanos;
+        private final long maxBackoffNanos;
+
+        public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+            if (maxAttempts <= 0 || initialBackoff < 0 || maxBackoff < initialBackoff) {
+                throw new IllegalArgumentException();
+            }
+            this.maxAttempts = maxAttempts;
+            this.initialBackoffNanos = unit.toNanos(initialBackoff);
+            this.maxBackoffNanos = unit.toNanos(maxBackoff);
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        /*
+        第 failures 次失败后的等待时间
+         */
+        long backoffNanos(int failures) {
+            int shift = Math.min(failures - 1, 62);
+            if (initialBackoffNanos > (maxBackoffNanos >> shift)) {
+                return maxBackoffNanos;
+            }
+            return initialBackoffNanos << shift;
+        }
+    }
+
+    // 默认回调不做任何处理，消费情况通过 setMetrics 观察，热路径上不休眠也不打印
+    private static final MessageListener DEFAULT_LISTENER = (queueId, message) -> {
+    };
+
     private final List<MessageQueue> queues;
-    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final MessageListener listener;
+    private final ExecutorService executor;
+    // 订单级模式的处理线程池与各订单的待处理消息，队列级模式下为 null
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<Long, OrderTask> orders;
+    private final int maxInFlightPerQueue;
+    private final int maxInFlightPerOrder;
+    // 批量模式的回调与攒批参数，其他模式下 batchListener 为 null
+    private final BatchMessageListener batchListener;
+    private final int batchSize;
+    private final long batchWaitNanos;
+    // 失败重试，未开启时为 null；只在 start 之前设置
+    private OrderRetrier retrier;
+    // 回调指标，未设置时为 null；只在 start 之前设置
+    private MessageMetrics metrics;
 
+    /*
+    使用空回调，只消费不处理，供演示与压测使用
+     */
     public OrderlyConsumer(List<MessageQueue> queues) {
+        this(queues, DEFAULT_LISTENER);
+    }
+
+    /*
+    队列级顺序消费
+     */
+    public OrderlyConsumer(List<MessageQueue> queues, MessageListener listener) {
+        this(queues, requireNonNull(listener), null, 0, 0, null, 0, 0);
+    }
+
+    /*
+    订单级顺序消费，处理线程数与队列数无关；每个订单最多占 maxInFlightPerQueue / concurrency 个额度（至少1个）
+     */
+    public OrderlyConsumer(List<MessageQueue> queues, MessageListener listener, int concurrency, int maxInFlightPerQueue) {
+        this(queues, listener, concurrency, maxInFlightPerQueue,
+                Math.max(1, checkPositive(maxInFlightPerQueue) / checkPositive(concurrency)));
+    }
+
+    public OrderlyConsumer(List<MessageQueue> queues, MessageListener listener, int concurrency,
+                           int maxInFlightPerQueue, int maxInFlightPerOrder) {
+        this(queues, requireNonNull(listener), newWorkers(concurrency, maxInFlightPerQueue, maxInFlightPerOrder),
+                maxInFlightPerQueue, maxInFlightPerOrder, null, 0, 0);
+    }
+
+    /*
+    批量消费：每次回调最多 batchSize 条，或者第一条到达后等待 batchWait 内到达的全部消息
+     */
+    public OrderlyConsumer(List<MessageQueue> queues, BatchMessageListener listener, int batchSize,
+                           long batchWait, TimeUnit unit) {
+        this(queues, null, null, 0, 0, requireNonNull(listener), checkPositive(batchSize),
+                unit.toNanos(checkNonNegative(batchWait)));
+    }
+
+    private OrderlyConsumer(List<MessageQueue> queues, MessageListener listener, ExecutorService workers,
+                            int maxInFlightPerQueue, int maxInFlightPerOrder, BatchMessageListener batchListener,
+                            int batchSize, long batchWaitNanos) {
         this.queues = queues;
+        this.listener = listener;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, queues.size()));
+        this.workers = workers;
+        this.orders = workers == null ? null : new ConcurrentHashMap<>();
+        this.maxInFlightPerQueue = maxInFlightPerQueue;
+        this.maxInFlightPerOrder = maxInFlightPerOrder;
+        this.batchListener = batchListener;
+        this.batchSize = batchSize;
+        this.batchWaitNanos = batchWaitNanos;
+    }
+
+    /*
+    校验订单级模式的参数后创建处理线程池
+     */
+    private static ExecutorService newWorkers(int concurrency, int maxInFlightPerQueue, int maxInFlightPerOrder) {
+        if (concurrency <= 0 || maxInFlightPerQueue <= 0 || maxInFlightPerOrder <= 0
+                || maxInFlightPerOrder > maxInFlightPerQueue) {
+            throw new IllegalArgumentException();
+        }
+        return Executors.newFixedThreadPool(concurrency);
+    }
+
+    private static <T> T requireNonNull(T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        return value;
+    }
+
+    private static int checkPositive(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return value;
+    }
+
+    private static long checkNonNegative(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException();
+        }
+        return value;
+    }
+
+    /*
+    开启失败重试，必须在 start 之前调用；重试在单独的线程上执行，可能与消费线程并发回调（不同 orderId）
+     */
+    public OrderlyConsumer enableRetry(RetryPolicy policy, DeadLetterQueue deadLetters) {
+        if (policy == null || deadLetters == null) {
+            throw new NullPointerException();
+        }
+        if (retrier != null) {
+            throw new IllegalStateException("retry already enabled");
+        }
+        OrderRetrier.Handler handler = batchListener != null
+                ? (queueId, message) -> consumeBatch(queueId, Collections.singletonList(message))
+                : this::consumeOne;
+        retrier = new OrderRetrier(handler, policy, deadLetters, Math.max(1, queues.size()));
+        return this;
+    }
+
+    /*
+    记录回调指标并登记消费的队列，必须在 start 之前调用
+     */
+    public OrderlyConsumer setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            for (MessageQueue mq : queues) {
+                metrics.registerQueue(mq);
+            }
+        }
+        return this;
+    }
+
+    /*
+    正在等待重试（包括被扣留在其后）的消息数
+     */
+    public int getRetryingCount() {
+        return retrier == null ? 0 : retrier.heldCount();
     }
 
     public void start() {
         for (MessageQueue mq : queues) {
             final int qId = mq.getId();
-            executor.submit(()->{
+            if (batchListener != null) {
+                executor.submit(() -> consumeBatches(mq));
+            } else if (workers == null) {
+                executor.submit(() -> {
+                    MessageBatch.Reader reader = new MessageBatch.Reader();
+                    try {
+                        while (true) {
+                            Message msg = mq.take();
+                            if (RebalanceBarrier.isBarrier(msg)) {
+                                arrive(qId, msg);
+                                continue;
+                            }
+                            if (!MessageBatch.isBatch(msg)) {
+                                consumeInQueueOrder(qId, msg);
+                                continue;
+                            }
+                            reader.open(msg);
+                            Message inner;
+                            while ((inner = reader.next()) != null) {
+                                consumeInQueueOrder(qId, inner);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } else {
+                final Window window = new Window(maxInFlightPerQueue);
+                executor.submit(() -> {
+                    MessageBatch.Reader reader = new MessageBatch.Reader();
+                    try {
+                        while (true) {
+                            window.inFlight.acquire();
+                            Message msg;
+                            try {
+                                msg = mq.take();
+                            } catch (InterruptedException e) {
+                                window.inFlight.release();
+                                throw e;
+                            }
+                            if (RebalanceBarrier.isBarrier(msg)) {
+                                // 拿到全部额度与暂存额度说明本队列之前分发的消息都已处理完
+                                window.inFlight.acquire(maxInFlightPerQueue - 1);
+                                window.parked.acquire(maxInFlightPerQueue);
+                                window.parked.release(maxInFlightPerQueue);
+                                window.inFlight.release(maxInFlightPerQueue);
+                                arrive(qId, msg);
+                                continue;
+                            }
+                            if (!MessageBatch.isBatch(msg)) {
+                                dispatch(qId, msg, window);
+                                continue;
+                            }
+                            // 批内每条消息各占一个额度，第一条用已取得的额度
+                            reader.open(msg);
+                            Message inner = reader.next();
+                            while (inner != null) {
+                                dispatch(qId, inner, window);
+                                inner = reader.next();
+                                if (inner != null) {
+                                    window.inFlight.acquire();
+                                }
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+    }
+
+    /*
+    队列级模式处理一条消息；订单正被扣留重试时排到扣留队列末尾
+     */
+    private void consumeInQueueOrder(int qId, Message msg) {
+        if (retrier == null || !retrier.offer(qId, msg)) {
+            handle(qId, msg);
+        }
+    }
+
+    /*
+    把消息挂到所属订单的待处理队列；订单当前没有在处理时提交到处理线程池
+    调用时消息占着本队列的一个额度；订单已占满 maxInFlightPerOrder 个额度时归还额度、改占暂存额度，
+    暂存额度用完时阻塞拉取线程，直到慢订单处理掉一些消息（被中断也要等到，避免丢掉已取出的消息）
+     */
+    private void dispatch(int qId, Message msg, Window window) {
+        Long key = msg.getOrderId();
+        boolean parked = false;
+        boolean interrupted = false;
+        for (; ; ) {
+            OrderTask task = orders.computeIfAbsent(key, OrderTask::new);
+            boolean park = false;
+            synchronized (task) {
+                if (task.retired) {
+                    // 处理线程刚把空闲的订单移出，重新取一个
+                    continue;
+                }
+                // 订单正被扣留重试时排到扣留队列末尾；本订单还有未移交的消息时先排在它们后面，由 OrderTask 一起移交
+                if (task.pending.isEmpty() && retrier != null && retrier.offer(qId, msg)) {
+                    window.release(parked);
+                    if (!task.running) {
+                        task.retired = true;
+                        orders.remove(key, task);
+                    }
+                    break;
+                }
+                if (!parked && task.permits >= maxInFlightPerOrder) {
+                    park = true;
+                } else {
+                    task.pending.addLast(new Pending(qId, msg, window, parked));
+                    if (!parked) {
+                        task.permits++;
+                    }
+                    if (task.running) {
+                        break;
+                    }
+                    task.running = true;
+                }
+            }
+            if (park) {
+                window.inFlight.release();
+                try {
+                    window.parked.acquire();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    window.parked.acquireUninterruptibly();
+                }
+                parked = true;
+                continue;
+            }
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // 正在关闭，由拉取线程自己处理完
+                task.run();
+            }
+            break;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+    阻塞等待第一条消息，然后在 batchWait 内尽量攒满一批；被中断时先把已取出的消息交给回调再退出
+     */
+    private void consumeBatches(MessageQueue mq) {
+        final int qId = mq.getId();
+        MessageBatch.Reader reader = new MessageBatch.Reader();
+        boolean interrupted = false;
+        while (!interrupted) {
+            List<Message> batch = new ArrayList<>(Math.min(batchSize, 1024));
+            try {
+                batch.add(mq.take());
+                long deadline = System.nanoTime() + batchWaitNanos;
+                while (batch.size() < batchSize) {
+                    if (mq.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Message msg = mq.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (msg == null) {
+                        break;
+                    }
+                    batch.add(msg);
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (!batch.isEmpty() && deliverBatch(qId, MessageBatch.expand(batch, reader))) {
+                interrupted = true;
+            }
+        }
+        Thread.currentThread().interrupt();
+    }
+
+    /*
+    按屏障把一批消息切开：屏障前的部分回调完成后再确认屏障；返回回调过程中是否被中断
+    开启重试时，被扣留订单的消息不进入回调；整批回调失败后逐条重新回调，只有失败的那条（及其订单之后的消息）进入重试
+     */
+    private boolean deliverBatch(int qId, List<Message> batch) {
+        boolean interrupted = false;
+        int from = 0;
+        for (int i = 0, n = batch.size(); i <= n; i++) {
+            if (i < n && !RebalanceBarrier.isBarrier(batch.get(i))) {
+                continue;
+            }
+            if (i > from) {
+                List<Message> part = from == 0 && i == n ? batch : batch.subList(from, i);
+                if (retrier != null) {
+                    part = withoutHeld(qId, part);
+                }
                 try {
-                    while (true) {
-                        Message msg = mq.take();
-                        Thread.sleep(200);
-                        System.out.println("[Consumer][Queue-" + qId + "] Processing: " + msg);
+                    if (!part.isEmpty()) {
+                        consumeBatch(qId, part);
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    if (retrier == null) {
+                        System.err.println("[Consumer][Queue-" + qId + "] failed to process batch of " + part.size() + ": " + e);
+                    } else if (redeliverSingly(qId, part)) {
+                        interrupted = true;
                     }
-                }catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
                 }
-            });
+            }
+            if (i < n) {
+                arrive(qId, batch.get(i));
+            }
+            from = i + 1;
         }
+        return interrupted;
     }
 
+    /*
+    去掉所属订单正被扣留的消息（它们已排到扣留队列），没有时返回原列表
+     */
+    private List<Message> withoutHeld(int qId, List<Message> part) {
+        List<Message> kept = null;
+        for (int i = 0, n = part.size(); i < n; i++) {
+            Message m = part.get(i);
+            if (retrier.offer(qId, m)) {
+                if (kept == null) {
+                    kept = new ArrayList<>(part.subList(0, i));
+                }
+            } else if (kept != null) {
+                kept.add(m);
+            }
+        }
+        return kept == null ? part : kept;
+    }
+
+    /*
+    逐条重新回调一批中的消息，失败的交给重试；返回是否被中断
+     */
+    private boolean redeliverSingly(int qId, List<Message> part) {
+        for (Message m : part) {
+            if (retrier.offer(qId, m)) {
+                continue;
+            }
+            try {
+                consumeBatch(qId, Collections.singletonList(m));
+            } catch (InterruptedException e) {
+                return true;
+            } catch (Exception e) {
+                retrier.fail(qId, m, e);
+            }
+        }
+        return false;
+    }
+
+    /*
+    确认屏障；本队列还有消息在等待重试时推迟到它们处理完
+     */
+    private void arrive(int qId, Message barrier) {
+        if (retrier == null || !retrier.deferBarrier(qId, barrier)) {
+            RebalanceBarrier.arrive(barrier);
+        }
+    }
+
+    /*
+    调用回调并记录指标；中断不计入失败
+     */
+    private void consumeOne(int qId, Message msg) throws Exception {
+        MessageMetrics m = metrics;
+        if (m == null) {
+            listener.consume(qId, msg);
+            return;
+        }
+        MessageMetrics.QueueStats stats = m.queue(qId);
+        stats.started(msg, System.currentTimeMillis());
+        long start = System.nanoTime();
+        try {
+            listener.consume(qId, msg);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            stats.finished(1, System.nanoTime() - start, false);
+            throw e;
+        }
+        stats.finished(1, System.nanoTime() - start, true);
+    }
+
+    private void consumeBatch(int qId, List<Message> messages) throws Exception {
+        MessageMetrics m = metrics;
+        if (m == null) {
+            batchListener.consume(qId, messages);
+            return;
+        }
+        m.consume(batchListener, qId, messages);
+    }
+
+    /*
+    返回 false 表示处理失败且消息已交给重试，该订单之后的消息也必须交给重试
+     */
+    private boolean handle(int qId, Message msg) {
+        try {
+            consumeOne(qId, msg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (retrier != null) {
+                retrier.fail(qId, msg, e);
+                return false;
+            }
+            System.err.println("[Consumer][Queue-" + qId + "] failed to process " + msg + ": " + e);
+        }
+        return true;
+    }
+
+    /*
+    停止拉取消息（中断阻塞在 take 上的线程），已分发给处理线程的消息会处理完
+     */
     public void shutdown() {
-        executor.shutdown();
+        executor.shutdownNow();
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (retrier != null) {
+            retrier.shutdown();
+        }
+    }
+
+    /*
+    开启重试时，还在等待重试的消息在结束前移入死信队列
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!executor.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        if (workers != null && !workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        return retrier == null || retrier.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 订单级模式下一个队列的额度：inFlight 限制已取出未处理完的消息数，
+     * parked 限制超出单订单上限、改为暂存的消息数，两者大小都是 maxInFlightPerQueue
+     */
+    private static final class Window {
+        final Semaphore inFlight;
+        final Semaphore parked;
+
+        Window(int size) {
+            this.inFlight = new Semaphore(size);
+            this.parked = new Semaphore(size);
+        }
+
+        void release(boolean parked) {
+            (parked ? this.parked : inFlight).release();
+        }
+    }
+
+    private static final class Pending {
+        final int qId;
+        final Message message;
+        final Window window;
+        final boolean parked; // 占的是暂存额度而不是队列额度
+
+        Pending(int qId, Message message, Window window, boolean parked) {
+            this.qId = qId;
+            this.message = message;
+            this.window = window;
+            this.parked = parked;
+        }
+    }
+
+    /**
+     * 一个订单的待处理消息；同一时刻最多在一个处理线程上运行
+     * 每次只处理一条，处理完还有积压就重新排到线程池队尾，热点订单不会长期霸占处理线程
+     * pending/permits/running/retired 都在对象锁内修改
+     */
+    private final class OrderTask implements Runnable {
+        final Long orderId;
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        int permits; // 待处理及正在处理的消息中占用队列额度的条数，不超过 maxInFlightPerOrder
+        boolean running;
+        boolean retired;
+
+        OrderTask(Long orderId) {
+            this.orderId = orderId;
+        }
+
+        @Override
+        public void run() {
+            boolean inline = false;
+            for (; ; ) {
+                Pending p;
+                synchronized (this) {
+                    p = pending.pollFirst();
+                }
+                if (p == null) {
+                    if (retireIfIdle()) {
+                        return;
+                    }
+                    continue;
+                }
+                boolean ok;
+                try {
+                    ok = handle(p.qId, p.message);
+                } finally {
+                    release(p);
+                }
+                if (!ok) {
+                    handOverToRetrier();
+                }
+                if (inline) {
+                    continue;
+                }
+                if (retireIfIdle()) {
+                    return;
+                }
+                try {
+                    workers.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // 消费者正在关闭，不能再排队，在当前线程把已分发的消息处理完
+                    inline = true;
+                }
+            }
+        }
+
+        /*
+        处理失败后把本订单积压的消息按顺序移交给重试；重试已经完成（扣留已移出）时剩下的照常处理
+         */
+        private synchronized void handOverToRetrier() {
+            Pending p;
+            while ((p = pending.peekFirst()) != null && retrier.offer(p.qId, p.message)) {
+                pending.pollFirst();
+                release(p);
+            }
+        }
+
+        /*
+        消息处理完或移交给重试后归还它占用的额度
+         */
+        private synchronized void release(Pending p) {
+            if (!p.parked) {
+                permits--;
+            }
+            p.window.release(p.parked);
+        }
+
+        /*
+        没有积压时把订单移出，之后到达的消息会创建新的 OrderTask
+         */
+        private synchronized boolean retireIfIdle() {
+            if (!pending.isEmpty()) {
+                return false;
+            }
+            running = false;
+            retired = true;
+            orders.remove(orderId, this);
+            return true;
+        }
     }
 }
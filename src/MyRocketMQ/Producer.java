@@ -2,20 +2,839 @@ package MyRocketMQ;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * 生产者
+ * send/sendBatch 同步写入目标队列，队列满时阻塞调用线程（等待期间定期放开路由读锁，不会挡住重平衡）
+ * sendAsync 只把消息挂到目标队列的发送缓冲就返回 CompletableFuture，由后台发送线程批量写入队列后完成；
+ * 每个队列最多 maxInFlightPerQueue 条已接受未写入的消息，超过时按 Backpressure 处理
+ * 同一线程对同一 orderId 的异步发送保持顺序；不要对同一 orderId 混用同步与异步发送
+ * 路由由 QueueSelector 决定，addQueue/removeQueue 可在运行中增减队列，换队列的订单在旧队列消费完之前暂存在生产者内
+ * 投递时间在未来的消息先进入 DelayStage，到期后再按当时的路由发送
+ * setCompression 后，sendBatch 与异步发送中同一队列的一组消息打包为一条压缩的批消息写入（见 MessageBatch）
+ */
 public class Producer {
-    private final List<MessageQueue> queues;
+    public enum Backpressure {
+        /*
+        等待发送缓冲有空位（会阻塞调用线程）
+         */
+        BLOCK,
+        /*
+        立即以 RejectedExecutionException 失败
+         */
+        FAIL_FAST,
+        /*
+        写入本地溢出日志（CommitLog），后台按顺序补发；future 在落入溢出日志时以 SPILLED 完成
+         */
+        SPILL
+    }
+
+    public interface SendCallback {
+        void onSuccess(SendResult result);
+
+        void onException(Throwable e);
+    }
+
+    public static final class SendResult {
+        public enum Status {
+            SEND_OK,
+            SPILLED,
+            // 进入延时阶段，到期后才选择队列，此时 queueId 为 -1
+            DELAYED
+        }
+
+        private final Status status;
+        private final int queueId;
+
+        SendResult(Status status, int queueId) {
+            this.status = status;
+            this.queueId = queueId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getQueueId() {
+            return queueId;
+        }
+
+        @Override
+        public String toString() {
+            return "SendResult{" + status + ", queue=" + queueId + "}";
+        }
+    }
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10_000;
+    private static final int SEND_BATCH = 256;
+    // 同步发送在读锁内等待队列空位的最长时间，超时后放开读锁再重试，避免满队列把重平衡和其他发送者一起挡住
+    private static final long PUT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final QueueSelector selector;
+    // 发送时持读锁，切换路由并放入屏障时持写锁，保证屏障之后不会再有按旧路由写入旧队列的消息
+    private final ReentrantReadWriteLock routingLock = new ReentrantReadWriteLock();
+    private volatile Routing routing;
+    // 写入队列的计数，未设置时为 null
+    private volatile MessageMetrics metrics;
+    // 批消息的压缩算法，null 表示逐条写入
+    private volatile BatchCodec compression;
+
+    private final Backpressure backpressure;
+    private final int maxInFlightPerQueue;
+    private final CommitLog spillLog;
+    private final ConcurrentHashMap<MessageQueue, QueueSender> senders = new ConcurrentHashMap<>();
+    private final ExecutorService senderPool;
+    private volatile DelayStage delayStage;
+    private volatile boolean closed;
 
     public Producer(List<MessageQueue> queues) {
-        this.queues = queues;
+        this(queues, QueueSelector.MODULO);
+    }
+
+    public Producer(List<MessageQueue> queues, QueueSelector selector) {
+        this(queues, selector, DEFAULT_MAX_IN_FLIGHT, Backpressure.FAIL_FAST, null);
+    }
+
+    public Producer(List<MessageQueue> queues, int maxInFlightPerQueue, Backpressure backpressure, CommitLog spillLog) {
+        this(queues, QueueSelector.MODULO, maxInFlightPerQueue, backpressure, spillLog);
+    }
+
+    /*
+    spillLog 只在 SPILL 模式下使用，每个目标队列在其中对应同 id 的溢出队列；重启后遗留的溢出消息会被继续补发
+     */
+    public Producer(List<MessageQueue> queues, QueueSelector selector, int maxInFlightPerQueue,
+                    Backpressure backpressure, CommitLog spillLog) {
+        if (maxInFlightPerQueue <= 0 || queues.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        if (selector == null || backpressure == null || (backpressure == Backpressure.SPILL && spillLog == null)) {
+            throw new NullPointerException();
+        }
+        this.selector = selector;
+        this.backpressure = backpressure;
+        this.maxInFlightPerQueue = maxInFlightPerQueue;
+        this.spillLog = backpressure == Backpressure.SPILL ? spillLog : null;
+        int threads = Math.max(1, Math.min(queues.size(), Runtime.getRuntime().availableProcessors()));
+        AtomicInteger seq = new AtomicInteger();
+        this.senderPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "producer-sender-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.routing = new Routing(List.copyOf(queues), null, null);
+        for (MessageQueue mq : queues) {
+            addSender(mq);
+        }
+    }
+
+    private QueueSender addSender(MessageQueue mq) {
+        ConsumeQueue spill = spillLog == null ? null : spillLog.consumeQueue(mq.getId());
+        QueueSender sender = new QueueSender(mq, spill, maxInFlightPerQueue);
+        senders.put(mq, sender);
+        MessageMetrics m = metrics;
+        if (m != null) {
+            m.registerQueue(mq);
+        }
+        sender.resumeSpilled();
+        return sender;
+    }
+
+    public List<MessageQueue> getQueues() {
+        return routing.queues;
     }
 
+    private DelayStage delayStage() {
+        DelayStage stage = delayStage;
+        if (stage == null) {
+            synchronized (this) {
+                stage = delayStage;
+                if (stage == null) {
+                    // 到期的消息走 sendBatch，沿用当时的路由与重平衡逻辑；不再检查投递时间，避免回到已关闭的延时阶段
+                    stage = new DelayStage(released -> sendBatch(released, false));
+                    delayStage = stage;
+                }
+            }
+        }
+        return stage;
+    }
+
+    /*
+    延时阶段中尚未到期的消息数
+     */
+    public long getDelayedCount() {
+        DelayStage stage = delayStage;
+        return stage == null ? 0 : stage.size();
+    }
+
+    /*
+    延时阶段到期后发送失败而丢失的消息数
+     */
+    public long getDelayedDroppedCount() {
+        DelayStage stage = delayStage;
+        return stage == null ? 0 : stage.getDroppedCount();
+    }
+
+    /*
+    记录每个队列写入的消息数，并登记当前路由的队列以便快照给出队列深度
+     */
+    public void setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            for (MessageQueue mq : routing.queues) {
+                metrics.registerQueue(mq);
+            }
+        }
+    }
+
+    public MessageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+    codec 为 null 时关闭；消费端需要能展开批消息（内置消费者都会自动展开）
+     */
+    public void setCompression(BatchCodec codec) {
+        this.compression = codec;
+    }
+
+    public BatchCodec getCompression() {
+        return compression;
+    }
+
+    /*
+    开启压缩时把写往同一队列的一组消息打包；屏障与已打包的批消息保持原样，把前后的消息隔开
+     */
+    private List<Message> compress(List<Message> messages) {
+        BatchCodec codec = compression;
+        int n = messages.size();
+        if (codec == null || n < 2) {
+            return messages;
+        }
+        List<Message> out = new ArrayList<>(4);
+        int from = 0;
+        for (int i = 0; i <= n; i++) {
+            Message m = i < n ? messages.get(i) : null;
+            if (m != null && (m.getFlags() & (Message.FLAG_BARRIER | Message.FLAG_BATCH)) == 0) {
+                continue;
+            }
+            if (i - from == 1) {
+                out.add(messages.get(from));
+            } else if (i - from > 1) {
+                out.add(MessageBatch.pack(messages.subList(from, i), codec));
+            }
+            if (m != null) {
+                out.add(m);
+            }
+            from = i + 1;
+        }
+        return out;
+    }
+
+    private void recordProduced(MessageQueue mq, Message msg) {
+        MessageMetrics m = metrics;
+        if (m != null) {
+            m.queue(mq.getId()).produced(msg);
+        }
+    }
+
+    private void recordProduced(MessageQueue mq, List<Message> messages) {
+        MessageMetrics m = metrics;
+        if (m != null) {
+            m.queue(mq.getId()).produced(messages);
+        }
+    }
+
+    /*
+    正在换队列的订单在迁移完成前会暂存在生产者内，此时方法直接返回，消息稍后由发送线程写入新队列
+     */
     public void send(long orderId, String content) throws InterruptedException {
-        int queueIndex = (int) (orderId % queues.size());
-        MessageQueue targetQueue = queues.get(queueIndex);
-        Message msg = new Message(orderId, content);
-        targetQueue.put(msg);
-        System.out.println("[Producer] sent message: " + msg + " → Queue-" + targetQueue.getId());
+        send(new Message(orderId, content));
+    }
+
+    public void send(Message msg) throws InterruptedException {
+        if (msg.getDeliverAt() > System.currentTimeMillis()) {
+            delayStage().schedule(msg);
+            return;
+        }
+        long orderId = msg.getOrderId();
+        Lock lock = routingLock.readLock();
+        for (; ; ) {
+            lock.lock();
+            try {
+                Routing r = routing;
+                MessageQueue targetQueue = selector.select(orderId, r.queues);
+                if (hold(r, msg, targetQueue, null)) {
+                    return;
+                }
+                if (targetQueue.offer(msg, PUT_SLICE_NANOS, TimeUnit.NANOSECONDS)) {
+                    recordProduced(targetQueue, msg);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            // 目标队列满：放开读锁让等待中的重平衡进来，之后按当时的路由重新选择
+        }
+    }
+
+    /*
+    按目标队列分组，每组保持原有顺序，用一次 offerAll 放入对应队列
+    某个队列满时放开读锁，剩下的消息（包括该组未放入的部分）按新的路由重新分组，已放入的不受影响
+     */
+    public void sendBatch(List<Message> messages) throws InterruptedException {
+        sendBatch(messages, true);
+    }
+
+    /*
+    delay 为 false 时不检查投递时间，用于延时阶段释放的消息
+     */
+    private void sendBatch(List<Message> messages, boolean delay) throws InterruptedException {
+        Lock lock = routingLock.readLock();
+        List<Message> remaining = messages;
+        boolean checkDelay = delay;
+        while (!remaining.isEmpty()) {
+            List<Message> retry = null;
+            lock.lock();
+            try {
+                Routing r = routing;
+                List<MessageQueue> queues = r.queues;
+                Map<MessageQueue, List<Message>> groups = new LinkedHashMap<>();
+                long now = System.currentTimeMillis();
+                for (Message msg : remaining) {
+                    if (checkDelay && msg.getDeliverAt() > now) {
+                        delayStage().schedule(msg);
+                        continue;
+                    }
+                    MessageQueue target = selector.select(msg.getOrderId(), queues);
+                    if (!hold(r, msg, target, null)) {
+                        groups.computeIfAbsent(target, q -> new ArrayList<>()).add(msg);
+                    }
+                }
+                for (Map.Entry<MessageQueue, List<Message>> e : groups.entrySet()) {
+                    List<Message> group = e.getValue();
+                    if (retry != null) {
+                        retry.addAll(group);
+                        continue;
+                    }
+                    List<Message> packed = compress(group);
+                    int written = e.getKey().offerAll(packed, PUT_SLICE_NANOS, TimeUnit.NANOSECONDS);
+                    int sent = written == packed.size() ? group.size() : sourcesCovered(group, packed, written);
+                    recordProduced(e.getKey(), sent == group.size() ? group : group.subList(0, sent));
+                    if (sent < group.size()) {
+                        retry = new ArrayList<>(group.subList(sent, group.size()));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            remaining = retry == null ? Collections.emptyList() : retry;
+            checkDelay = false;
+        }
+    }
+
+    /*
+    compress 的输出中前 written 条覆盖了 group 的前多少条：原样保留的消息就是 group 中的对象，其余是新打包的批消息
+     */
+    private static int sourcesCovered(List<Message> group, List<Message> packed, int written) {
+        int covered = 0;
+        for (int i = 0; i < written; i++) {
+            Message m = packed.get(i);
+            covered += m == group.get(covered) ? 1 : MessageBatch.count(m);
+        }
+        return covered;
+    }
+
+    public CompletableFuture<SendResult> sendAsync(long orderId, String content) {
+        return sendAsync(new Message(orderId, content));
+    }
+
+    /*
+    异步发送；除 BLOCK 模式外调用线程不会等待队列或消费者
+    future 的回调在发送线程上执行，应当尽量轻量
+     */
+    public CompletableFuture<SendResult> sendAsync(Message msg) {
+        CompletableFuture<SendResult> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("producer is closed"));
+            return future;
+        }
+        if (msg.getDeliverAt() > System.currentTimeMillis()) {
+            delayStage().schedule(msg);
+            future.complete(new SendResult(SendResult.Status.DELAYED, -1));
+            return future;
+        }
+        Lock lock = routingLock.readLock();
+        // BLOCK 模式下在读锁外等到的许可所属的发送器，路由不变时直接使用，否则归还
+        QueueSender reserved = null;
+        try {
+            for (; ; ) {
+                QueueSender blocked;
+                lock.lock();
+                try {
+                    Routing r = routing;
+                    MessageQueue target = selector.select(msg.getOrderId(), r.queues);
+                    QueueSender sender = senders.get(target);
+                    if (reserved != null && reserved != sender) {
+                        reserved.permits.release();
+                        reserved = null;
+                    }
+                    if (hold(r, msg, target, future)) {
+                        return future;
+                    }
+                    if (reserved != null) {
+                        reserved = null;
+                        sender.pending.add(new Pending(msg, future, true));
+                        sender.schedule();
+                        return future;
+                    }
+                    if (enqueue(sender, msg, future)) {
+                        return future;
+                    }
+                    blocked = sender;
+                } finally {
+                    lock.unlock();
+                }
+                // 没有许可：放开读锁让等待中的重平衡进来，限时等待许可后按当时的路由重新选择
+                try {
+                    if (blocked.permits.tryAcquire(PUT_SLICE_NANOS, TimeUnit.NANOSECONDS)) {
+                        reserved = blocked;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                    return future;
+                }
+            }
+        } finally {
+            if (reserved != null) {
+                reserved.permits.release();
+            }
+        }
+    }
+
+    /*
+    按背压策略交给发送器；BLOCK 模式下没有许可时返回 false，由调用方放开读锁后等待
+     */
+    private boolean enqueue(QueueSender sender, Message msg, CompletableFuture<SendResult> future) {
+        // 已有消息溢出时后续消息也必须溢出，保证补发顺序
+        if (sender.spilled.get() > 0 || !sender.permits.tryAcquire()) {
+            switch (backpressure) {
+                case FAIL_FAST:
+                    future.completeExceptionally(new RejectedExecutionException(
+                            "queue " + sender.target.getId() + " has " + sender.maxInFlight + " sends in flight"));
+                    return true;
+                case BLOCK:
+                    return false;
+                case SPILL:
+                    sender.spill(msg, future);
+                    return true;
+            }
+        }
+        sender.pending.add(new Pending(msg, future, true));
+        sender.schedule();
+        return true;
+    }
+
+    public void sendAsync(Message msg, SendCallback callback) {
+        sendAsync(msg).whenComplete((result, e) -> {
+            if (e == null) {
+                callback.onSuccess(result);
+            } else {
+                callback.onException(e);
+            }
+        });
+    }
+
+    /*
+    已接受但还没写入目标队列的异步消息数（包括溢出日志中的）
+     */
+    public long getInFlightCount() {
+        long n = 0;
+        for (QueueSender s : senders.values()) {
+            n += s.maxInFlight - s.permits.availablePermits() + s.spilled.get() + s.unpermitted.get();
+        }
+        Routing r = routing;
+        if (r.migrations != null) {
+            for (Migration m : r.migrations.values()) {
+                synchronized (m) {
+                    n += m.held.size();
+                }
+            }
+        }
+        return n;
+    }
+
+    /*
+    扩容：新队列的消费者应先启动。返回的 future 在所有换队列的订单都放行后完成
+     */
+    public CompletableFuture<Void> addQueue(MessageQueue mq) {
+        return rebalance(mq, true);
+    }
+
+    /*
+    缩容：future 完成后不会再有消息写入 mq，mq 中的消息也已处理完，可以停止它的消费者
+     */
+    public CompletableFuture<Void> removeQueue(MessageQueue mq) {
+        return rebalance(mq, false);
+    }
+
+    /*
+    在线重平衡：
+    1. 持写锁切换到新路由，同时在每个旧队列的发送顺序末尾放入屏障，此后没有消息会按旧路由进入旧队列
+    2. 旧队列屏障到达之前，新旧路由不同（要换队列）的订单的消息暂存在该旧队列的 Migration 中，路由不变的订单照常发送
+    3. 消费者处理完屏障前的全部消息后 arrive，发送线程把暂存的消息按原顺序写入新队列，之后这些订单直接发往新队列
+    同一订单在新队列上的消息一定在它在旧队列上的消息全部处理完之后才被写入，因此订单内顺序不会被打乱
+    旧队列的消费者必须在迁移完成前保持运行，否则暂存的消息不会被放行
+     */
+    private CompletableFuture<Void> rebalance(MessageQueue mq, boolean add) {
+        Lock lock = routingLock.writeLock();
+        lock.lock();
+        try {
+            Routing current = routing;
+            if (current.previous != null) {
+                throw new IllegalStateException("rebalance in progress");
+            }
+            List<MessageQueue> next = new ArrayList<>(current.queues);
+            if (add ? next.contains(mq) : !next.remove(mq)) {
+                throw new IllegalArgumentException("queue " + mq.getId() + (add ? " already routed" : " not routed"));
+            }
+            if (add) {
+                next.add(mq);
+                addSender(mq);
+            } else if (next.isEmpty()) {
+                throw new IllegalArgumentException("cannot remove the last queue");
+            }
+            next = Collections.unmodifiableList(next);
+            Map<MessageQueue, Migration> migrations = new HashMap<>();
+            CompletableFuture<?>[] done = new CompletableFuture<?>[current.queues.size()];
+            int i = 0;
+            for (MessageQueue source : current.queues) {
+                Migration m = new Migration();
+                migrations.put(source, m);
+                done[i++] = m.done;
+            }
+            routing = new Routing(next, current.queues, migrations);
+            for (MessageQueue source : current.queues) {
+                Migration m = migrations.get(source);
+                senders.get(source).enqueueBarrier(RebalanceBarrier.create(() -> senderPool.execute(() -> release(m))));
+            }
+            final List<MessageQueue> finalRouting = next;
+            return CompletableFuture.allOf(done).thenRun(() -> {
+                // 所有 Migration 都已放行，hold 不再拦截任何消息，直接换成稳定路由即可
+                routing = new Routing(finalRouting, null, null);
+                if (!add) {
+                    senders.remove(mq);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    迁移期间新旧路由不同的订单，在旧队列的屏障到达前暂存；返回 false 表示可以直接发往 target
+     */
+    private boolean hold(Routing r, Message msg, MessageQueue target, CompletableFuture<SendResult> future) {
+        if (r.previous == null) {
+            return false;
+        }
+        MessageQueue source = selector.select(msg.getOrderId(), r.previous);
+        if (source == target) {
+            return false;
+        }
+        Migration m = r.migrations.get(source);
+        synchronized (m) {
+            if (m.released) {
+                return false;
+            }
+            m.held.add(new Held(msg, target, future));
+            return true;
+        }
+    }
+
+    /*
+    旧队列的屏障已被消费：按原顺序把暂存的消息写入新队列后放行
+    同步发送的消息直接写入，异步发送的消息交给目标队列的发送缓冲（不占用也不受限于 in-flight 额度）
+     */
+    private void release(Migration m) {
+        synchronized (m) {
+            Map<MessageQueue, List<Message>> direct = new LinkedHashMap<>();
+            for (Held h : m.held) {
+                if (h.future == null) {
+                    direct.computeIfAbsent(h.target, q -> new ArrayList<>()).add(h.message);
+                } else {
+                    QueueSender sender = senders.get(h.target);
+                    sender.unpermitted.incrementAndGet();
+                    sender.pending.add(new Pending(h.message, h.future, false));
+                    sender.schedule();
+                }
+            }
+            try {
+                for (Map.Entry<MessageQueue, List<Message>> e : direct.entrySet()) {
+                    e.getKey().putAll(e.getValue());
+                    recordProduced(e.getKey(), e.getValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("[Producer] interrupted while releasing held messages");
+            }
+            m.held.clear();
+            m.released = true;
+        }
+        m.done.complete(null);
+    }
+
+    /*
+    停止接受异步发送，等待已接受的消息（包括溢出部分）全部写入目标队列后关闭发送线程
+    延时阶段随之关闭，尚未到期的消息被丢弃
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (getInFlightCount() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        DelayStage stage = delayStage;
+        if (stage != null) {
+            stage.close();
+        }
+        senderPool.shutdown();
+        return senderPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 路由快照；previous 与 migrations 只在重平衡期间非空，previous 为旧队列列表，migrations 以旧队列为键
+     */
+    private static final class Routing {
+        final List<MessageQueue> queues;
+        final List<MessageQueue> previous;
+        final Map<MessageQueue, Migration> migrations;
+
+        Routing(List<MessageQueue> queues, List<MessageQueue> previous, Map<MessageQueue, Migration> migrations) {
+            this.queues = queues;
+            this.previous = previous;
+            this.migrations = migrations;
+        }
+    }
+
+    /**
+     * 一个旧队列的迁出状态：屏障到达前从它迁走的订单的消息暂存在 held 中；held/released 在对象锁内修改
+     */
+    private static final class Migration {
+        final List<Held> held = new ArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        boolean released;
+    }
+
+    private static final class Held {
+        final Message message;
+        final MessageQueue target;
+        // 同步发送为 null
+        final CompletableFuture<SendResult> future;
+
+        Held(Message message, MessageQueue target, CompletableFuture<SendResult> future) {
+            this.message = message;
+            this.target = target;
+            this.future = future;
+        }
+    }
+
+    private static final class Pending {
+        final Message message;
+        // 屏障为 null
+        final CompletableFuture<SendResult> future;
+        // 是否占用了 in-flight 额度
+        final boolean permitted;
+
+        Pending(Message message, CompletableFuture<SendResult> future, boolean permitted) {
+            this.message = message;
+            this.future = future;
+            this.permitted = permitted;
+        }
+    }
+
+    /**
+     * 单个目标队列的发送缓冲
+     * 同一时刻最多一个发送线程在处理它（scheduled 标志），因此写入目标队列的顺序就是接受的顺序：
+     * 先写内存缓冲中的消息，再补发溢出日志中的消息（溢出开始后新消息都会进溢出日志）
+     */
+    private final class QueueSender implements Runnable {
+        final MessageQueue target;
+        final ConsumeQueue spill;
+        final int maxInFlight;
+        final Semaphore permits;
+        final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+        final AtomicLong spilled = new AtomicLong();
+        // 不占额度的待发消息（屏障与迁移放行的消息）
+        final AtomicInteger unpermitted = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // 上一次限时写入没写完的部分，排在 pending 之前；只由正在运行的发送任务访问
+        private final ArrayDeque<Pending> carried = new ArrayDeque<>();
+
+        QueueSender(MessageQueue target, ConsumeQueue spill, int maxInFlight) {
+            this.target = target;
+            this.spill = spill;
+            this.maxInFlight = maxInFlight;
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        void resumeSpilled() {
+            if (spill != null && spill.size() > 0) {
+                spilled.set(spill.size());
+                schedule();
+            }
+        }
+
+        /*
+        屏障排在已接受的全部消息之后：有溢出时写入溢出日志末尾，否则进入内存缓冲
+         */
+        void enqueueBarrier(Message barrier) {
+            if (spilled.get() > 0) {
+                spill(barrier, new CompletableFuture<>());
+                return;
+            }
+            unpermitted.incrementAndGet();
+            pending.add(new Pending(barrier, null, false));
+            schedule();
+        }
+
+        void spill(Message msg, CompletableFuture<SendResult> future) {
+            spilled.incrementAndGet();
+            try {
+                spill.put(msg);
+            } catch (InterruptedException | RuntimeException e) {
+                spilled.decrementAndGet();
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                future.completeExceptionally(e);
+                return;
+            }
+            future.complete(new SendResult(SendResult.Status.SPILLED, target.getId()));
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                senderPool.execute(this);
+            }
+        }
+
+        /*
+        每次最多处理若干批就让出线程，避免一个繁忙队列独占发送线程
+        目标队列满时每批只限时等待 PUT_SLICE_NANOS，没写完的部分留在 carried 中，重新排队后再写，
+        发送线程因此不会被一个写满的有界队列占住，其他队列的发送照常进行
+         */
+        @Override
+        public void run() {
+            try {
+                for (int round = 0; round < 16; round++) {
+                    if (!deliverBatch()) {
+                        break;
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // 置位之后再检查一次，避免错过在此期间加入的消息
+                if (!carried.isEmpty() || !pending.isEmpty() || spilled.get() > 0) {
+                    schedule();
+                }
+            }
+        }
+
+        /*
+        写出一批，全部写完返回 true；写了一部分（队列满）或失败时返回 false
+         */
+        private boolean deliverBatch() {
+            List<Pending> taken = new ArrayList<>(Math.min(SEND_BATCH, maxInFlight));
+            Pending p;
+            while (taken.size() < SEND_BATCH && (p = carried.poll()) != null) {
+                taken.add(p);
+            }
+            while (taken.size() < SEND_BATCH && (p = pending.poll()) != null) {
+                taken.add(p);
+            }
+            if (!taken.isEmpty()) {
+                List<Message> batch = new ArrayList<>(taken.size());
+                for (Pending t : taken) {
+                    batch.add(t.message);
+                }
+                Throwable failure = null;
+                int sent;
+                try {
+                    List<Message> packed = compress(batch);
+                    int written = target.offerAll(packed, PUT_SLICE_NANOS, TimeUnit.NANOSECONDS);
+                    sent = written == packed.size() ? batch.size() : sourcesCovered(batch, packed, written);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                    sent = batch.size();
+                } catch (RuntimeException e) {
+                    failure = e;
+                    sent = batch.size();
+                }
+                if (failure == null && sent > 0) {
+                    recordProduced(target, batch.subList(0, sent));
+                }
+                int permitted = 0;
+                SendResult ok = failure == null ? new SendResult(SendResult.Status.SEND_OK, target.getId()) : null;
+                for (int i = 0; i < sent; i++) {
+                    Pending t = taken.get(i);
+                    if (t.permitted) {
+                        permitted++;
+                    }
+                    if (t.future == null) {
+                        continue;
+                    }
+                    if (failure == null) {
+                        t.future.complete(ok);
+                    } else {
+                        t.future.completeExceptionally(failure);
+                    }
+                }
+                permits.release(permitted);
+                unpermitted.addAndGet(permitted - sent);
+                // 没写进去的部分按原顺序放回队首
+                for (int i = taken.size() - 1; i >= sent; i--) {
+                    carried.addFirst(taken.get(i));
+                }
+                return failure == null && sent == taken.size();
+            }
+            if (spill == null || spilled.get() <= 0) {
+                return false;
+            }
+            // 溢出日志只在写入目标队列之后才确认，中断或进程退出时消息仍留在日志中，之后继续补发
+            List<Message> batch = new ArrayList<>(SEND_BATCH);
+            if (spill.peekTo(batch, SEND_BATCH) == 0) {
+                return false;
+            }
+            int sent;
+            try {
+                List<Message> packed = compress(batch);
+                int written = target.offerAll(packed, PUT_SLICE_NANOS, TimeUnit.NANOSECONDS);
+                sent = written == packed.size() ? batch.size() : sourcesCovered(batch, packed, written);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (sent > 0) {
+                spill.skip(sent);
+                recordProduced(target, batch.subList(0, sent));
+                spilled.addAndGet(-sent);
+            }
+            return sent == batch.size();
+        }
     }
 }
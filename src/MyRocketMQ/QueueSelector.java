@@ -0,0 +1,16 @@
+package MyRocketMQ;
+
+import java.util.List;
+
+/**
+ * 生产者的路由策略：为 orderId 从当前队列列表中选一个队列
+ * 对同一个列表，同一 orderId 必须总是选中同一个队列，否则无法保证订单内顺序
+ */
+public interface QueueSelector {
+    /*
+    按 orderId 取模；队列数变化时几乎所有订单都会换队列
+     */
+    QueueSelector MODULO = (orderId, queues) -> queues.get((int) Math.floorMod(orderId, (long) queues.size()));
+
+    MessageQueue select(long orderId, List<MessageQueue> queues);
+}
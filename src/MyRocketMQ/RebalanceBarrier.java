@@ -0,0 +1,37 @@
+package MyRocketMQ;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 队列重平衡时放入旧队列的屏障消息
+ * 消费者处理完屏障之前的全部消息后调用 arrive，生产者据此放行迁往新队列的订单；屏障本身不交给业务回调
+ * 屏障只在本进程内登记，持久化队列重启后遗留的屏障没有登记者，arrive 时直接忽略
+ */
+final class RebalanceBarrier {
+    static final String HEADER = "rebalance-barrier";
+
+    private static final ConcurrentHashMap<String, Runnable> WAITING = new ConcurrentHashMap<>();
+
+    private RebalanceBarrier() {
+    }
+
+    static Message create(Runnable onArrive) {
+        String id = UUID.randomUUID().toString();
+        WAITING.put(id, onArrive);
+        return new Message(-1L, (String) null, System.currentTimeMillis(), Message.FLAG_BARRIER,
+                Collections.singletonMap(HEADER, id));
+    }
+
+    static boolean isBarrier(Message msg) {
+        return (msg.getFlags() & Message.FLAG_BARRIER) != 0 && msg.getHeader(HEADER) != null;
+    }
+
+    static void arrive(Message msg) {
+        Runnable onArrive = WAITING.remove(msg.getHeader(HEADER));
+        if (onArrive != null) {
+            onArrive.run();
+        }
+    }
+}
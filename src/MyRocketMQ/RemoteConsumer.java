@@ -0,0 +1,179 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 远程顺序消费者：从另一个进程中的 Broker 拉取指定队列的消息，每个队列一个线程，按队列顺序批量回调
+ * 每次拉取都是长轮询：队列为空时请求挂在 Broker 上，有消息写入立即返回，不需要频繁轮询
+ * 至多一次语义：Broker 上拉取即出队，没有确认与偏移。为了不放大丢失，一批处理完才发起下一次拉取（不预取），
+ * 因此消费者进程退出或连接断开时丢失的最多是正在处理的那一批；需要至少一次时改用基于 CommitLog 的消费组
+ * 回调抛出异常时，enableRetry 之后按重试策略在消费线程上重试整批（阻塞该队列以保持顺序），用尽后整批移入死信队列；
+ * 未开启重试时该批计入 getFailedCount()
+ * 一个队列同一时刻只应由一个消费者拉取；shutdown 后会把已拉到的消息处理完再退出
+ * setMetrics 后记录回调指标；端到端延迟按本机时钟计算，与 Broker、生产者不在同一台机器时包含时钟偏差
+ */
+public class RemoteConsumer {
+    public static final int DEFAULT_LONG_POLL_MILLIS = 1000;
+
+    private final BrokerClient client;
+    private final List<Integer> queueIds;
+    private final OrderlyConsumer.BatchMessageListener listener;
+    private final int batchSize;
+    private final int longPollMillis;
+    private final ExecutorService executor;
+    private volatile boolean running;
+    private final LongAdder failed = new LongAdder();
+    // 回调指标，未设置时为 null；重试策略与死信队列未开启时为 null；都只在 start 之前设置
+    private MessageMetrics metrics;
+    private OrderlyConsumer.RetryPolicy retryPolicy;
+    private DeadLetterQueue deadLetters;
+
+    public RemoteConsumer(InetSocketAddress broker, List<Integer> queueIds,
+                          OrderlyConsumer.BatchMessageListener listener, int batchSize) throws IOException {
+        this(broker, queueIds, listener, batchSize, DEFAULT_LONG_POLL_MILLIS);
+    }
+
+    public RemoteConsumer(InetSocketAddress broker, List<Integer> queueIds,
+                          OrderlyConsumer.BatchMessageListener listener, int batchSize, int longPollMillis)
+            throws IOException {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (queueIds.isEmpty() || batchSize <= 0 || longPollMillis <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.queueIds = List.copyOf(queueIds);
+        this.listener = listener;
+        this.batchSize = batchSize;
+        this.longPollMillis = longPollMillis;
+        this.client = new BrokerClient(broker);
+        this.executor = Executors.newFixedThreadPool(queueIds.size());
+    }
+
+    /*
+    逐条回调的便捷形式
+     */
+    public RemoteConsumer(InetSocketAddress broker, List<Integer> queueIds, OrderlyConsumer.MessageListener listener)
+            throws IOException {
+        this(broker, queueIds, (queueId, messages) -> {
+            for (Message m : messages) {
+                listener.consume(queueId, m);
+            }
+        }, 256);
+    }
+
+    public RemoteConsumer setMetrics(MessageMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /*
+    开启失败重试，必须在 start 之前调用
+     */
+    public RemoteConsumer enableRetry(OrderlyConsumer.RetryPolicy policy, DeadLetterQueue deadLetters) {
+        if (policy == null || deadLetters == null) {
+            throw new NullPointerException();
+        }
+        this.retryPolicy = policy;
+        this.deadLetters = deadLetters;
+        return this;
+    }
+
+    /*
+    未开启重试时回调失败而丢弃的消息数
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public void start() {
+        running = true;
+        for (int queueId : queueIds) {
+            executor.submit(() -> consume(queueId));
+        }
+    }
+
+    private void consume(int queueId) {
+        MessageBatch.Reader reader = new MessageBatch.Reader();
+        while (running) {
+            List<Message> batch;
+            try {
+                batch = RemoteProducer.await(client.pull(queueId, batchSize, longPollMillis));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("[RemoteConsumer][Queue-" + queueId + "] pull failed: " + e);
+                }
+                return;
+            }
+            if (!batch.isEmpty()) {
+                process(queueId, MessageBatch.expand(batch, reader));
+            }
+        }
+    }
+
+    /*
+    回调一批消息；失败时按重试策略退避后重试整批，用尽后移入死信队列，未开启重试时计入 failed
+     */
+    private void process(int queueId, List<Message> batch) {
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                if (metrics == null) {
+                    listener.consume(queueId, batch);
+                } else {
+                    metrics.consume(listener, queueId, batch);
+                }
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (retryPolicy == null) {
+                    failed.add(batch.size());
+                    return;
+                }
+                if (attempts >= retryPolicy.getMaxAttempts()) {
+                    deadLetter(queueId, batch, attempts, e);
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(retryPolicy.backoffNanos(attempts));
+                } catch (InterruptedException ie) {
+                    // 等待重试期间被中断：不再重试，整批移入死信队列
+                    deadLetter(queueId, batch, attempts, e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deadLetter(int queueId, List<Message> batch, int attempts, Exception e) {
+        for (Message m : batch) {
+            deadLetters.add(new DeadLetterQueue.DeadLetter(m, queueId, attempts, e.toString()));
+        }
+    }
+
+    /*
+    停止发起新的拉取；在途的拉取（最多一个长轮询周期）返回后处理完再退出
+     */
+    public void shutdown() {
+        running = false;
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean done = executor.awaitTermination(timeout, unit);
+        if (done) {
+            client.close();
+        }
+        return done;
+    }
+}
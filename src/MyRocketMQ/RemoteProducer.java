@@ -0,0 +1,117 @@
+package MyRocketMQ;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 远程生产者：把消息发送到另一个进程中的 Broker
+ * 路由规则与 Producer 相同（QueueSelector），连接建立时从 Broker 获取队列数
+ * sendAsync 不等待响应，连续调用的消息在连接上合并成批量帧流水线发送；send 逐条等待 Broker 确认
+ * 同一线程对同一 orderId 的发送保持顺序
+ * setCompression 后 sendBatch 把同一队列的一组消息打包为一条压缩的批消息，Broker 原样保存与转发，由消费者展开
+ */
+public class RemoteProducer implements AutoCloseable {
+    private final BrokerClient client;
+    private final QueueSelector selector;
+    // 只用于路由计算，不存放消息
+    private final List<MessageQueue> routes;
+    private volatile BatchCodec compression;
+
+    public RemoteProducer(InetSocketAddress broker) throws IOException {
+        this(broker, QueueSelector.MODULO);
+    }
+
+    public RemoteProducer(InetSocketAddress broker, QueueSelector selector) throws IOException {
+        if (selector == null) {
+            throw new NullPointerException();
+        }
+        this.selector = selector;
+        this.client = new BrokerClient(broker);
+        int queueCount;
+        try {
+            queueCount = await(client.queueCount());
+        } catch (InterruptedException e) {
+            client.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while connecting", e);
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        List<MessageQueue> routes = new ArrayList<>(queueCount);
+        for (int i = 0; i < queueCount; i++) {
+            routes.add(new MessageQueue(i));
+        }
+        this.routes = Collections.unmodifiableList(routes);
+    }
+
+    public int getQueueCount() {
+        return routes.size();
+    }
+
+    /*
+    codec 为 null 时关闭
+     */
+    public void setCompression(BatchCodec codec) {
+        this.compression = codec;
+    }
+
+    public CompletableFuture<Void> sendAsync(Message msg) {
+        return client.send(selector.select(msg.getOrderId(), routes).getId(), msg);
+    }
+
+    public CompletableFuture<Void> sendAsync(long orderId, String content) {
+        return sendAsync(new Message(orderId, content));
+    }
+
+    /*
+    等待 Broker 确认后返回；每条消息一个往返，吞吐量远低于 sendAsync/sendBatch
+     */
+    public void send(long orderId, String content) throws InterruptedException, IOException {
+        await(sendAsync(orderId, content));
+    }
+
+    /*
+    整批提交后统一等待，同一队列的消息在一个帧内发送
+     */
+    public void sendBatch(List<Message> messages) throws InterruptedException, IOException {
+        BatchCodec codec = compression;
+        if (codec != null && messages.size() > 1) {
+            Map<Integer, List<Message>> groups = new LinkedHashMap<>();
+            for (Message m : messages) {
+                groups.computeIfAbsent(selector.select(m.getOrderId(), routes).getId(), q -> new ArrayList<>()).add(m);
+            }
+            List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+            for (Map.Entry<Integer, List<Message>> e : groups.entrySet()) {
+                List<Message> group = e.getValue();
+                futures.add(client.send(e.getKey(), group.size() == 1 ? group.get(0) : MessageBatch.pack(group, codec)));
+            }
+            await(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+            return;
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[messages.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = sendAsync(messages.get(i));
+        }
+        await(CompletableFuture.allOf(futures));
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package MyRocketMQ;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 生产者/消费者与 Broker 之间的帧格式，整数均为大端序：
+ * <pre>
+ * length(4)     本字段之后的字节数
+ * type(1)
+ * requestId(8)  由请求方分配，响应原样带回
+ * body
+ * </pre>
+ * 同一连接上可以连续发送多个请求而不等待响应（流水线），响应按 requestId 对应，长轮询的响应可能晚于后发的请求
+ * 请求：
+ * <pre>
+ * SEND      queueId(4) count(4) 后接 count 条 MessageCodec 编码的消息，一个帧携带一批消息
+ * PULL      queueId(4) maxMessages(4) timeoutMillis(4)，队列为空时 Broker 挂起请求直到有消息或超时（长轮询）
+ * QUEUES    无 body
+ * </pre>
+ * 响应：
+ * <pre>
+ * OK        SEND 无 body，QUEUES 为 queueCount(4)
+ * MESSAGES  count(4) 后接 count 条编码的消息，超时时为0条
+ * ERROR     UTF-8 错误信息
+ * </pre>
+ */
+final class RemotingProtocol {
+    static final byte SEND = 1;
+    static final byte PULL = 2;
+    static final byte QUEUES = 3;
+
+    static final byte OK = (byte) 0x81;
+    static final byte MESSAGES = (byte) 0x82;
+    static final byte ERROR = (byte) 0x8F;
+
+    // length + type + requestId
+    static final int FRAME_HEADER = 13;
+    static final int MAX_FRAME = 16 << 20;
+    // 一次 PULL 最多返回的条数
+    static final int MAX_PULL = 4096;
+    // 一次 PULL 返回的消息编码后的总长上限，保证 MESSAGES 帧不超过 MAX_FRAME
+    static final int MAX_PULL_BYTES = MAX_FRAME - FRAME_HEADER - 4;
+    // 一个 SEND 帧中消息编码后的总长上限
+    static final int MAX_SEND_BYTES = MAX_FRAME - FRAME_HEADER - 8;
+
+    private RemotingProtocol() {
+    }
+
+    static void writeHeader(ByteBuffer buf, int bodyLength, byte type, long requestId) {
+        buf.putInt(bodyLength + 9);
+        buf.put(type);
+        buf.putLong(requestId);
+    }
+
+    /*
+    从 position 处依次写入编码后的消息并移动 position
+     */
+    static void writeMessages(ByteBuffer buf, List<Message> messages) {
+        for (Message m : messages) {
+            int n = MessageCodec.encode(m, buf, buf.position());
+            buf.position(buf.position() + n);
+        }
+    }
+
+    static int messagesSize(List<Message> messages) {
+        int size = 0;
+        for (Message m : messages) {
+            size += MessageCodec.encodedSize(m);
+        }
+        return size;
+    }
+
+    /*
+    从 body 的 offset 处解码 count 条消息
+     */
+    static List<Message> readMessages(ByteBuffer body, int offset, int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(MessageCodec.decode(body, offset));
+            offset += body.getInt(offset + MessageCodec.POS_LENGTH);
+        }
+        return messages;
+    }
+
+    /**
+     * 从读缓冲区中切分完整的帧；不完整的帧留在缓冲区中等下一次读取
+     */
+    interface FrameHandler {
+        void onFrame(byte type, long requestId, ByteBuffer body);
+    }
+
+    /*
+    in 处于写模式；处理其中所有完整的帧后 compact，返回容纳下一个帧所需的缓冲区（可能是放大后的新缓冲区）
+    帧长度非法时抛出 IllegalStateException
+     */
+    static ByteBuffer readFrames(ByteBuffer in, FrameHandler handler) {
+        in.flip();
+        int need = 0;
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt(start);
+            if (length < 9 || length > MAX_FRAME) {
+                throw new IllegalStateException("bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                need = 4 + length;
+                break;
+            }
+            byte type = in.get(start + 4);
+            long requestId = in.getLong(start + 5);
+            ByteBuffer body = in.slice(start + FRAME_HEADER, length - 9);
+            in.position(start + 4 + length);
+            handler.onFrame(type, requestId, body);
+        }
+        in.compact();
+        if (need > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(need);
+            in.flip();
+            bigger.put(in);
+            return bigger;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,346 @@
+package MyRocketMQ;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于预分配环形数组的无锁队列存储（有界，容量为2的幂）
+ * 每个槽位带一个序号：生产者只在 seq == pos 时写入，写完置为 pos+1；消费者只在 seq == pos+1 时读取，读完置为 pos+capacity
+ * 生产者、消费者之间只通过槽位序号交接，不需要锁，也不会为每条消息分配链表节点
+ * 多生产者模式用 CAS 抢占写位置，单生产者模式直接递增；消费端始终用 CAS，允许多个线程同时 take
+ * 队列满或空时的等待方式由 WaitStrategy 决定
+ */
+public class RingBufferStorage implements MessageQueue.Storage {
+    public enum ProducerType {
+        SINGLE,
+        MULTI
+    }
+
+    public enum WaitStrategy {
+        /*
+        一直自旋，延迟最低，但等待期间独占一个CPU
+         */
+        BUSY_SPIN,
+        /*
+        自旋一段时间后让出CPU
+         */
+        YIELD,
+        /*
+        自旋、让出后仍未就绪则阻塞，由对端按需唤醒
+         */
+        PARK
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+
+    // head/tail 放在同一数组中相距128字节的位置，避免生产者和消费者的计数器伪共享
+    private static final int HEAD = 7;
+    private static final int TAIL = 23;
+
+    private final Message[] buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray counters = new AtomicLongArray(32);
+    private final int mask;
+    private final ProducerType producerType;
+    private final WaitStrategy waitStrategy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile int waiters;
+
+    public RingBufferStorage(int capacity) {
+        this(capacity, ProducerType.MULTI, WaitStrategy.PARK);
+    }
+
+    public RingBufferStorage(int capacity, ProducerType producerType, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        if (producerType == null || waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.buffer = new Message[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.producerType = producerType;
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public void put(Message message) throws InterruptedException {
+        offer(message, 0L);
+    }
+
+    /*
+    限时等待空位，超时返回 false，此时不占用任何槽位
+     */
+    @Override
+    public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(message, deadline(timeout, unit));
+    }
+
+    private boolean offer(Message message, long deadline) throws InterruptedException {
+        if (message == null) {
+            throw new NullPointerException();
+        }
+        long pos;
+        int tries = 0;
+        if (producerType == ProducerType.SINGLE) {
+            pos = counters.get(TAIL);
+            while (sequences.get((int) pos & mask) != pos) {
+                if (expired(deadline)) {
+                    return false;
+                }
+                idle(tries++, true, deadline);
+            }
+            counters.lazySet(TAIL, pos + 1);
+        } else {
+            for (; ; ) {
+                pos = counters.get(TAIL);
+                long seq = sequences.get((int) pos & mask);
+                if (seq == pos) {
+                    if (counters.compareAndSet(TAIL, pos, pos + 1)) {
+                        break;
+                    }
+                } else if (seq < pos) {
+                    // 槽位还没被消费，队列已满
+                    if (expired(deadline)) {
+                        return false;
+                    }
+                    idle(tries++, true, deadline);
+                }
+            }
+        }
+        int index = (int) pos & mask;
+        buffer[index] = message;
+        publish(index, pos + 1);
+        return true;
+    }
+
+    /*
+    单生产者逐条写入；多生产者一次 CAS 抢占一段连续的空闲槽位，空间不足时分多段写入
+     */
+    @Override
+    public void putAll(List<Message> messages) throws InterruptedException {
+        offerAll(messages, 0L);
+    }
+
+    @Override
+    public int offerAll(List<Message> messages, long timeout, TimeUnit unit) throws InterruptedException {
+        return offerAll(messages, deadline(timeout, unit));
+    }
+
+    private int offerAll(List<Message> messages, long deadline) throws InterruptedException {
+        int size = messages.size();
+        if (producerType == ProducerType.SINGLE) {
+            for (int i = 0; i < size; i++) {
+                if (!offer(messages.get(i), deadline)) {
+                    return i;
+                }
+            }
+            return size;
+        }
+        // 先检查，避免抢占槽位后才发现空元素导致槽位永远不被发布
+        for (Message message : messages) {
+            if (message == null) {
+                throw new NullPointerException();
+            }
+        }
+        int done = 0;
+        int tries = 0;
+        while (done < size) {
+            long tail = counters.get(TAIL);
+            int n = 0;
+            while (done + n < size && sequences.get((int) (tail + n) & mask) == tail + n) {
+                n++;
+            }
+            if (n == 0) {
+                if (sequences.get((int) tail & mask) < tail) {
+                    if (expired(deadline)) {
+                        return done;
+                    }
+                    idle(tries++, true, deadline);
+                }
+                continue;
+            }
+            if (counters.compareAndSet(TAIL, tail, tail + n)) {
+                for (int i = 0; i < n; i++) {
+                    int index = (int) (tail + i) & mask;
+                    buffer[index] = messages.get(done + i);
+                    publish(index, tail + i + 1);
+                }
+                done += n;
+                tries = 0;
+            }
+        }
+        return size;
+    }
+
+    /*
+    deadline 为0表示不限时，这里保证限时等待的 deadline 不会恰好为0
+     */
+    private static long deadline(long timeout, TimeUnit unit) {
+        return System.nanoTime() + Math.max(0, unit.toNanos(timeout)) | 1L;
+    }
+
+    private static boolean expired(long deadline) {
+        return deadline != 0L && deadline - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public Message take() throws InterruptedException {
+        return poll(0L);
+    }
+
+    @Override
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(deadline(timeout, unit));
+    }
+
+    private Message poll(long deadline) throws InterruptedException {
+        long pos;
+        int tries = 0;
+        for (; ; ) {
+            pos = counters.get(HEAD);
+            long seq = sequences.get((int) pos & mask);
+            if (seq == pos + 1) {
+                if (counters.compareAndSet(HEAD, pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos + 1) {
+                if (expired(deadline)) {
+                    return null;
+                }
+                idle(tries++, false, deadline);
+            }
+        }
+        int index = (int) pos & mask;
+        Message message = buffer[index];
+        buffer[index] = null;
+        publish(index, pos + buffer.length);
+        return message;
+    }
+
+    /*
+    非阻塞地一次取走连续已发布的若干条消息，只做一次 CAS
+     */
+    @Override
+    public int drainTo(Collection<? super Message> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        for (; ; ) {
+            long head = counters.get(HEAD);
+            int n = 0;
+            while (n < maxElements && sequences.get((int) (head + n) & mask) == head + n + 1) {
+                n++;
+            }
+            if (n == 0) {
+                return 0;
+            }
+            if (counters.compareAndSet(HEAD, head, head + n)) {
+                for (int i = 0; i < n; i++) {
+                    int index = (int) (head + i) & mask;
+                    c.add(buffer[index]);
+                    buffer[index] = null;
+                    publish(index, head + i + buffer.length);
+                }
+                return n;
+            }
+        }
+    }
+
+    /*
+    只在单个消费者时可靠：多个消费者并发时返回的消息可能已被其他线程取走
+     */
+    @Override
+    public Message peek() {
+        long head = counters.get(HEAD);
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Message message = buffer[index];
+        // 读取期间槽位被消费则视为已取走
+        return sequences.get(index) == head + 1 ? message : null;
+    }
+
+    @Override
+    public long size() {
+        long size = counters.get(TAIL) - counters.get(HEAD);
+        return Math.max(0, Math.min(size, buffer.length));
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /*
+    发布槽位的新序号；PARK 模式下需要完整的 volatile 写，保证随后读到的 waiters 不会早于这次写入
+     */
+    private void publish(int index, long seq) {
+        if (waitStrategy == WaitStrategy.PARK) {
+            sequences.set(index, seq);
+            if (waiters > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else {
+            sequences.lazySet(index, seq);
+        }
+    }
+
+    private boolean blocked(boolean producer) {
+        if (producer) {
+            long tail = counters.get(TAIL);
+            return sequences.get((int) tail & mask) < tail;
+        }
+        long head = counters.get(HEAD);
+        return sequences.get((int) head & mask) < head + 1;
+    }
+
+    /*
+    deadline 为0时不限时等待，否则最晚在 deadline 返回
+     */
+    private void idle(int tries, boolean producer, long deadline) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (waitStrategy == WaitStrategy.YIELD || tries < YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            lock.lockInterruptibly();
+            try {
+                waiters++;
+                try {
+                    // 登记等待之后再检查一次，避免错过对端在登记之前的发布
+                    if (blocked(producer)) {
+                        if (deadline == 0L) {
+                            changed.await();
+                        } else {
+                            changed.awaitNanos(deadline - System.nanoTime());
+                        }
+                    }
+                } finally {
+                    waiters--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -9,7 +9,9 @@ public class RocketMQOrderlyDemo {
             queues.add(new MessageQueue(i));
         }
         Producer producer = new Producer(queues);
-        OrderlyConsumer consumer = new OrderlyConsumer(queues);
+        MessageMetrics metrics = new MessageMetrics();
+        producer.setMetrics(metrics);
+        OrderlyConsumer consumer = new OrderlyConsumer(queues).setMetrics(metrics);
         consumer.start();
 
         // 模拟发送消息（乱序发送，但同 orderId 消息路由到同一队列）
@@ -25,5 +27,6 @@ public class RocketMQOrderlyDemo {
 
         Thread.sleep(3000);
         consumer.shutdown();
+        System.out.println(metrics.getSnapshot());
     }
 }
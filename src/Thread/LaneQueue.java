@@ -0,0 +1,409 @@
+package Thread;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多通道任务队列，可直接作为 MyThreadPool 的 workQueue 使用
+ * 任务按 LaneTask.lane() 进入各自通道，每个通道有独立容量上限与拒绝策略；
+ * 出队采用加权差额轮询（Deficit Round Robin）：每轮按权重给通道发放额度，
+ * 一个任务消耗一个额度，积压的批量通道无法挤占高权重通道的份额。
+ *
+ * 通道满时 offer 返回 false，线程池随后调用该通道的拒绝策略（未设置时使用线程池的拒绝策略）。
+ * 线程池使用本队列时不会因通道满而创建非核心线程，工作线程数不超过核心线程数，所有任务都经过差额轮询出队。
+ */
+public class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    public static final String DEFAULT_LANE = "default";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Map<String, Lane> laneByName = new HashMap<>();
+    private final Lane defaultLane;
+    private int count; // 所有通道任务总数
+    private int cursor; // 当前轮询到的通道
+
+    private static final class Lane {
+        final String name;
+        final int weight;
+        final int capacity;
+        final MyThreadPool.RejectedExecutionHandler handler;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        int deficit;
+
+        Lane(String name, int weight, int capacity, MyThreadPool.RejectedExecutionHandler handler) {
+            this.name = name;
+            this.weight = weight;
+            this.capacity = capacity;
+            this.handler = handler;
+        }
+    }
+
+    /*
+    带通道标签的Runnable
+     */
+    private static final class LaneRunnable implements Runnable, LaneTask {
+        private final String lane;
+        private final Runnable task;
+
+        LaneRunnable(String lane, Runnable task) {
+            this.lane = lane;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public String lane() {
+            return lane;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + lane + "] " + task;
+        }
+    }
+
+    /*
+    带通道标签的Callable
+     */
+    private static final class LaneCallable<V> implements Callable<V>, LaneTask {
+        private final String lane;
+        private final Callable<V> task;
+
+        LaneCallable(String lane, Callable<V> task) {
+            this.lane = lane;
+            this.task = task;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return task.call();
+        }
+
+        @Override
+        public String lane() {
+            return lane;
+        }
+    }
+
+    /*
+    创建队列，默认通道无容量上限、权重为1
+     */
+    public LaneQueue() {
+        this(1, Integer.MAX_VALUE, null);
+    }
+
+    public LaneQueue(int defaultWeight, int defaultCapacity, MyThreadPool.RejectedExecutionHandler defaultHandler) {
+        defaultLane = newLane(DEFAULT_LANE, defaultWeight, defaultCapacity, defaultHandler);
+        lanes.add(defaultLane);
+        laneByName.put(DEFAULT_LANE, defaultLane);
+    }
+
+    private static Lane newLane(String name, int weight, int capacity, MyThreadPool.RejectedExecutionHandler handler) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        if (weight <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return new Lane(name, weight, capacity, handler);
+    }
+
+    /*
+    注册通道，handler为null时使用线程池的拒绝策略
+     */
+    public LaneQueue addLane(String name, int weight, int capacity, MyThreadPool.RejectedExecutionHandler handler) {
+        Lane lane = newLane(name, weight, capacity, handler);
+        lock.lock();
+        try {
+            if (laneByName.containsKey(name)) {
+                throw new IllegalArgumentException("通道已存在: " + name);
+            }
+            lanes.add(lane);
+            laneByName.put(name, lane);
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /*
+    给任务打上通道标签
+     */
+    public static Runnable tag(String lane, Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        return new LaneRunnable(lane, task);
+    }
+
+    public static <V> Callable<V> tag(String lane, Callable<V> task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        return new LaneCallable<>(lane, task);
+    }
+
+    /*
+    调用方需持有锁
+     */
+    private Lane laneOf(Object task) {
+        if (task instanceof LaneTask) {
+            String name = ((LaneTask) task).lane();
+            if (name != null) {
+                Lane lane = laneByName.get(name);
+                if (lane != null) {
+                    return lane;
+                }
+            }
+        }
+        return defaultLane;
+    }
+
+    /*
+    任务所在通道的拒绝策略，未设置时返回null
+     */
+    MyThreadPool.RejectedExecutionHandler handlerFor(Runnable task) {
+        lock.lock();
+        try {
+            return laneOf(task).handler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    丢弃与task同一通道中最旧的任务
+     */
+    Runnable pollOldest(Runnable task) {
+        lock.lock();
+        try {
+            Runnable r = laneOf(task).tasks.pollFirst();
+            if (r != null) {
+                count--;
+            }
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    按差额轮询选出下一个任务，调用方需持有锁且count>0
+     */
+    private Runnable dequeue() {
+        for (; ; ) {
+            Lane lane = lanes.get(cursor);
+            if (lane.tasks.isEmpty()) {
+                // 空通道不累积额度
+                lane.deficit = 0;
+            } else if (lane.deficit > 0) {
+                lane.deficit--;
+                count--;
+                return lane.tasks.pollFirst();
+            }
+            cursor = cursor + 1 == lanes.size() ? 0 : cursor + 1;
+            Lane next = lanes.get(cursor);
+            if (!next.tasks.isEmpty()) {
+                next.deficit += next.weight;
+            }
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            Lane lane = laneOf(task);
+            if (lane.tasks.size() >= lane.capacity) {
+                return false;
+            }
+            if (lane.tasks.isEmpty() && lane != lanes.get(cursor)) {
+                lane.deficit = 0;
+            }
+            lane.tasks.addLast(task);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        // 通道满时不等待，交由拒绝策略处理
+        return offer(task);
+    }
+
+    @Override
+    public void put(Runnable task) {
+        if (!offer(task)) {
+            throw new IllegalStateException("通道已满");
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (int i = 0; i < lanes.size(); i++) {
+                Runnable r = lanes.get((cursor + i) % lanes.size()).tasks.peekFirst();
+                if (r != null) {
+                    return r;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    指定通道当前积压的任务数
+     */
+    public int size(String lane) {
+        lock.lock();
+        try {
+            Lane l = laneByName.get(lane);
+            return l == null ? 0 : l.tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            long remaining = 0;
+            for (Lane lane : lanes) {
+                remaining += lane.capacity - lane.tasks.size();
+            }
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (laneOf(o).tasks.removeFirstOccurrence(o)) {
+                count--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /*
+    批量出队同样遵循差额轮询的顺序
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    返回当前任务的快照，不支持通过迭代器删除
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(count);
+            for (Lane lane : lanes) {
+                snapshot.addAll(lane.tasks);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package Thread;
+
+/**
+ * 带调度通道标签的任务，配合 LaneQueue 使用
+ * 通道可以代表优先级（如 interactive / batch）或租户
+ */
+public interface LaneTask {
+    /*
+    任务所属通道名，null 或未注册的通道进入默认通道
+     */
+    String lane();
+}
@@ -0,0 +1,98 @@
+package Thread;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按2的幂分桶的耗时直方图（纳秒），固定64个桶，记录时不分配内存
+ * 桶i统计 [2^(i-1), 2^i) 区间的样本，百分位返回所在桶的上界，误差在2倍以内
+ *
+ * record 仅允许单个线程写入（工作线程各自持有一份），用lazySet代替CAS；
+ * add 可多线程并发调用，用于把各工作线程的直方图合并到汇总直方图中。
+ * 同一个实例不要混用两种写法。
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucketOf(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value));
+    }
+
+    /*
+    单写者记录一个样本
+     */
+    void record(long value) {
+        int i = bucketOf(value);
+        counts.lazySet(i, counts.get(i) + 1);
+        total.lazySet(total.get() + 1);
+        sum.lazySet(sum.get() + value);
+        if (value > max.get()) {
+            max.lazySet(value);
+        }
+    }
+
+    /*
+    把other的样本并入本直方图，可并发调用
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /*
+    返回第p百分位（0~100）所在桶的上界
+     */
+    public long percentile(double p) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min(1L << i, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.0fns, p50=%dns, p99=%dns, max=%dns",
+                count(), mean(), percentile(50), percentile(99), max());
+    }
+}
@@ -0,0 +1,397 @@
+package Thread;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 支持延时与周期任务的线程池，定时由分层哈希时间轮实现（而不是基于堆的延时队列）
+ * 时间轮共 LEVELS 层，每层 WHEEL_SIZE 个槽，第 i 层每个槽覆盖 WHEEL_SIZE^i 个 tick。
+ * 任务以双向链表挂在槽上，添加、取消都是 O(1)；低层转完一圈时把高层对应槽的任务下放（cascade）。
+ * 到期任务交给父类的工作线程执行。
+ *
+ * 时间轮只由一个定时线程读写：其他线程新增和取消的任务先放入无锁队列，定时线程每个 tick 批量处理。
+ */
+public class MyScheduledThreadPool extends MyThreadPool {
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4; // 覆盖 2^32 个 tick，1ms 的 tick 约为 49 天
+    private static final int MAX_TRANSFER_PER_TICK = 100_000; // 每个 tick 最多转入时间轮的新任务数
+
+    private final long tickNanos;
+    private final long startTime = System.nanoTime();
+    private final ScheduledTask<?>[][] wheel = new ScheduledTask<?>[LEVELS][WHEEL_SIZE];
+    private final Queue<ScheduledTask<?>> pendingTasks = new ConcurrentLinkedQueue<>(); // 待加入时间轮
+    private final Queue<ScheduledTask<?>> cancelledTasks = new ConcurrentLinkedQueue<>(); // 待从时间轮移除
+    private final Thread timer;
+
+    // 以下状态只由定时线程读写
+    private long currentTick; // 已处理到的 tick
+    private volatile long wheelSize; // 挂在时间轮上的任务数，只有定时线程写入
+
+    private volatile boolean timerIdle; // 时间轮为空时定时线程挂起，新增任务需唤醒它
+    private volatile boolean timerStopped;
+
+    private static final CancellationException CANCELLED = new CancellationException("任务已取消") {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    };
+
+    /**
+     * 延时/周期任务，同时作为 CompletableFuture 返回给调用方
+     * 周期任务只会在被取消或执行抛出异常时完成
+     */
+    public static final class ScheduledTask<V> extends CompletableFuture<V> implements ScheduledFuture<V>, Runnable {
+        private final MyScheduledThreadPool pool;
+        private final Callable<V> callable;
+        private final long period; // >0 固定频率，<0 固定延时，0 单次
+        private volatile long deadline; // 下次执行的 nanoTime
+
+        // 以下字段只由定时线程读写
+        private ScheduledTask<?> prev;
+        private ScheduledTask<?> next;
+        private int level = -1; // 所在层，-1 表示不在时间轮上
+        private int slot;
+
+        ScheduledTask(MyScheduledThreadPool pool, Callable<V> callable, long deadline, long period) {
+            this.pool = pool;
+            this.callable = callable;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // 大量超时任务会在到期前被取消，复用无栈信息的异常实例，避免每次取消都填充异常栈
+            boolean cancelled = completeExceptionally(CANCELLED);
+            if (cancelled) {
+                pool.cancelledTasks.offer(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            V result;
+            try {
+                result = callable.call();
+            } catch (Throwable x) {
+                completeExceptionally(x);
+                return;
+            }
+            if (period == 0) {
+                complete(result);
+                return;
+            }
+            // 周期任务执行完毕后才计算下一次时间，同一任务不会并发执行
+            deadline = period > 0 ? deadline + period : System.nanoTime() - period;
+            if (!isDone()) {
+                try {
+                    pool.enqueue(this);
+                } catch (RejectedExecutionException e) {
+                    // 线程池已关闭，enqueue已取消本任务
+                }
+            }
+        }
+    }
+
+    public MyScheduledThreadPool(int corePoolSize) {
+        this(corePoolSize, new DefaultThreadFactory(), new AbortPolicy(), 1, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    tickDuration 为时间轮精度：任务最多比预定时间晚一个 tick 执行
+     */
+    public MyScheduledThreadPool(int corePoolSize,
+                                 ThreadFactory threadFactory,
+                                 RejectedExecutionHandler handler,
+                                 long tickDuration,
+                                 TimeUnit unit) {
+        super(Math.max(1, corePoolSize), Math.max(1, corePoolSize), 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory, handler);
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.timer = new Thread(this::runTimer, "scheduled-pool-timer");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    /*
+    延时执行一次
+     */
+    public ScheduledTask<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        return schedule(() -> {
+            command.run();
+            return null;
+        }, delay, unit);
+    }
+
+    public <V> ScheduledTask<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (callable == null || unit == null) {
+            throw new NullPointerException();
+        }
+        return enqueue(new ScheduledTask<>(this, callable, triggerTime(delay, unit), 0));
+    }
+
+    /*
+    固定频率执行：第 n 次执行时间为 initialDelay + n * period，上一次未结束时顺延
+     */
+    public ScheduledTask<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return enqueue(new ScheduledTask<>(this, () -> {
+            command.run();
+            return null;
+        }, triggerTime(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    /*
+    固定延时执行：上一次执行结束后间隔 delay 再执行下一次
+     */
+    public ScheduledTask<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (delay <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return enqueue(new ScheduledTask<>(this, () -> {
+            command.run();
+            return null;
+        }, triggerTime(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    private static long triggerTime(long delay, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(Math.max(0, delay));
+    }
+
+    private <V> ScheduledTask<V> enqueue(ScheduledTask<V> task) {
+        if (isShutdown()) {
+            task.cancel(false);
+            throw new RejectedExecutionException("线程池已关闭");
+        }
+        pendingTasks.offer(task);
+        if (timerIdle) {
+            LockSupport.unpark(timer);
+        }
+        return task;
+    }
+
+    /*
+    关闭线程池：取消所有未到期的延时与周期任务，已交给工作线程的任务继续执行
+     */
+    @Override
+    public void shutdown() {
+        stopTimer();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopTimer();
+        return super.shutdownNow();
+    }
+
+    private void stopTimer() {
+        timerStopped = true;
+        LockSupport.unpark(timer);
+    }
+
+    /*
+    定时线程主循环
+     */
+    private void runTimer() {
+        while (!timerStopped) {
+            long nowTick = (System.nanoTime() - startTime) / tickNanos;
+            if (wheelSize == 0) {
+                // 时间轮为空，直接跳到当前 tick，新任务以此为基准放置
+                currentTick = nowTick;
+            }
+            transferPendingTasks();
+            processCancelledTasks();
+            while (currentTick < nowTick) {
+                advance(++currentTick);
+            }
+            waitForNextTick();
+        }
+        // 关闭后取消剩余任务
+        ScheduledTask<?> t;
+        while ((t = pendingTasks.poll()) != null) {
+            t.cancel(false);
+        }
+        for (ScheduledTask<?>[] level : wheel) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                for (ScheduledTask<?> e = level[i]; e != null; e = e.next) {
+                    e.cancel(false);
+                }
+                level[i] = null;
+            }
+        }
+        cancelledTasks.clear();
+    }
+
+    private void waitForNextTick() {
+        if (wheelSize == 0 && pendingTasks.isEmpty()) {
+            timerIdle = true;
+            // 先发布空闲标记再复查，与 enqueue 中先入队再读标记配对
+            if (pendingTasks.isEmpty() && !timerStopped) {
+                LockSupport.park(this);
+            }
+            timerIdle = false;
+            return;
+        }
+        long next = startTime + (currentTick + 1) * tickNanos;
+        long sleep = next - System.nanoTime();
+        if (sleep > 0) {
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transferPendingTasks() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            ScheduledTask<?> task = pendingTasks.poll();
+            if (task == null) {
+                break;
+            }
+            if (!task.isDone()) {
+                place(task);
+            }
+        }
+    }
+
+    private void processCancelledTasks() {
+        ScheduledTask<?> task;
+        while ((task = cancelledTasks.poll()) != null) {
+            if (task.level >= 0) {
+                unlink(task);
+            }
+        }
+    }
+
+    /*
+    按到期 tick 与当前 tick 的距离选择层，槽号取到期 tick 在该层的位
+     */
+    private void place(ScheduledTask<?> task) {
+        long deadlineTick = Math.max(0, task.deadline - startTime + tickNanos - 1) / tickNanos;
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            dispatch(task);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == LEVELS - 1 && delta >= 1L << (WHEEL_BITS * LEVELS)) {
+            // 超出时间轮范围：先挂在最高层最远的槽上，下放时再重新计算
+            deadlineTick = currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        ScheduledTask<?> head = wheel[level][slot];
+        task.prev = null;
+        task.next = head;
+        if (head != null) {
+            head.prev = task;
+        }
+        wheel[level][slot] = task;
+        task.level = level;
+        task.slot = slot;
+        wheelSize++;
+    }
+
+    private void unlink(ScheduledTask<?> task) {
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            wheel[task.level][task.slot] = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = null;
+        task.next = null;
+        task.level = -1;
+        wheelSize--;
+    }
+
+    /*
+    推进到 tick：先把高层到期的槽下放，再执行第 0 层当前槽的全部任务
+     */
+    private void advance(long tick) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            long lowerBits = tick & ((1L << (WHEEL_BITS * level)) - 1);
+            if (lowerBits == 0) {
+                cascade(level, (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+            }
+        }
+        int slot = (int) (tick & WHEEL_MASK);
+        ScheduledTask<?> e = wheel[0][slot];
+        while (e != null) {
+            ScheduledTask<?> next = e.next;
+            unlink(e);
+            dispatch(e);
+            e = next;
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        ScheduledTask<?> e = wheel[level][slot];
+        while (e != null) {
+            ScheduledTask<?> next = e.next;
+            unlink(e);
+            place(e);
+            e = next;
+        }
+    }
+
+    private void dispatch(ScheduledTask<?> task) {
+        if (task.isDone()) {
+            return;
+        }
+        try {
+            execute(task);
+        } catch (RejectedExecutionException e) {
+            task.completeExceptionally(e);
+        }
+    }
+
+    /*
+    挂在时间轮上尚未到期的任务数（不含最近一个 tick 内新提交、尚未转入时间轮的任务）
+     */
+    public long getScheduledTaskCount() {
+        return wheelSize;
+    }
+}
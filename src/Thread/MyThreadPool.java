@@ -4,32 +4,69 @@ package Thread;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class MyThreadPool {
+    /*
+    ctl 将线程池状态与工作线程数打包进同一个原子整数：高3位为运行状态，低29位为工作线程数，
+    状态与线程数的读取和修改只需一次CAS，热点路径上无需任何全局锁
+     */
+    private static final int COUNT_BITS = Integer.SIZE - 3;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+
     private static final int RUNNING = 0; // 运行中
-    private static final int SHUTDOWN = 1; // 已关闭，不再接受新任务，会执行已经提交的任务
-    private static final int STOP = 2; // 停止，不再接受新任务，中断正在执行的任务
-    private static final int TERMINATED = 3; // 终止，所有任务已完成
+    private static final int SHUTDOWN = 1 << COUNT_BITS; // 已关闭，不再接受新任务，会执行已经提交的任务
+    private static final int STOP = 2 << COUNT_BITS; // 停止，不再接受新任务，中断正在执行的任务
+    private static final int TERMINATED = 3 << COUNT_BITS; // 终止，所有任务已完成
+
+    // Worker空闲状态：只有空闲（未在执行任务）的线程才会被interruptIdleWorkers中断
+    private static final int WORKER_BUSY = 0;
+    private static final int WORKER_IDLE = 1;
+    private static final int WORKER_INTERRUPTING = 2;
 
-    private final int corePoolSize;
-    private final int maximumPoolSize;
+    private volatile int corePoolSize; // 运行中可通过setCorePoolSize调整
+    private volatile int maximumPoolSize; // 运行中可通过setMaximumPoolSize调整
     private final long keepAliveTime;
     private final TimeUnit unit;
     private final BlockingQueue<Runnable> workQueue;
     private final ThreadFactory threadFactory;
     private final RejectedExecutionHandler handler;
+    private final boolean workStealing; // 工作窃取模式：每个工作线程持有本地双端队列
+    private final Permits permits; // 虚拟线程模式下的并发许可，平台线程模式为null
 
-    private final Set<Worker> workers = new HashSet<>(); // 工作线程集合
-    private volatile int runState = RUNNING; // 线程池状态
-    private final AtomicInteger completedTaskCount = new AtomicInteger(); // 已完成任务数
-    private final AtomicInteger taskCount = new AtomicInteger(); // 总任务数
+    private final AtomicInteger ctl = new AtomicInteger(ctlOf(RUNNING, 0)); // 线程池状态 + 工作线程数
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet(); // 工作线程集合（无锁并发集合）
+    private final AtomicLong completedTaskCount = new AtomicLong(); // 已退出工作线程完成的任务数
+    private final CountDownLatch termination = new CountDownLatch(1); // 进入TERMINATED时释放
+    private volatile int drainBatchSize = 1; // 工作线程每次出队最多取走的任务数，1表示不批量出队
+    private final AtomicInteger peakPoolSize = new AtomicInteger(); // 历史最大工作线程数
+
+    // 指标采集：关闭时热点路径上只多一次volatile读
+    static final int QUEUE_WAIT_SAMPLE_RATE = 16; // 普通Runnable的排队耗时抽样比例，须为2的幂
+    private volatile boolean metricsEnabled;
+    private final LatencyHistogram retiredQueueWait = new LatencyHistogram(); // 已退出线程的排队耗时
+    private final LatencyHistogram retiredExecutionTime = new LatencyHistogram(); // 已退出线程的执行耗时
+    private final AtomicLong retiredBusyNanos = new AtomicLong();
+    private final AtomicLong retiredIdleNanos = new AtomicLong();
+    private final ConcurrentHashMap<String, LongAdder> rejections = new ConcurrentHashMap<>(); // 按拒绝策略计数
+
+    // 以下仅在工作窃取模式下使用
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<>(); // 当前线程对应的Worker
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>(); // 已挂起等待任务的Worker
 
     /*
-    拒绝策略接口
+    拒绝策略接口；getName 为拒绝指标中的计数键，内置策略返回固定名称，
+    lambda 等自定义策略默认都计入 "custom"，需要单独统计时覆盖该方法
      */
     @FunctionalInterface
     public interface RejectedExecutionHandler {
         void rejectedExecution(Runnable r, MyThreadPool executor);
+
+        default String getName() {
+            return "custom";
+        }
     }
 
     /*
@@ -37,11 +74,22 @@ public class MyThreadPool {
      */
     private final class Worker implements Runnable {
         final Thread thread;
+        final Deque<Runnable> localQueue; // 本地任务队列：本线程从头部存取，其他线程从尾部窃取
+        volatile BlockingQueue<Runnable> batch; // 批量出队时从workQueue一次取走、待本线程执行的任务
         Runnable firstTask;
         volatile long completedTasks;
 
+        // 以下指标只由本线程写入，开启指标采集后才会初始化直方图
+        volatile LatencyHistogram executionTime;
+        volatile LatencyHistogram queueWait; // 晚于executionTime赋值，读到非null即两者都已初始化
+        volatile long busyNanos;
+        volatile long idleNanos;
+        long lastFinish; // 上一个任务结束时间，0表示上一个任务未计时
+        final AtomicInteger idleState = new AtomicInteger(WORKER_IDLE);
+
         public Worker(Runnable firstTask) {
             this.firstTask = firstTask;
+            this.localQueue = workStealing ? new ConcurrentLinkedDeque<>() : null;
             this.thread = threadFactory.newThread(this);
         }
 
@@ -49,6 +97,137 @@ public class MyThreadPool {
         public void run() {
             runWorker(this);
         }
+
+        /*
+        开始执行任务前调用：若其他线程正在中断本线程，等其完成后再进入忙碌状态
+         */
+        void markBusy() {
+            while (!idleState.compareAndSet(WORKER_IDLE, WORKER_BUSY)) {
+                Thread.onSpinWait();
+            }
+        }
+
+        void markIdle() {
+            idleState.set(WORKER_IDLE);
+        }
+
+        /*
+        仅当线程空闲时中断它，避免打断正在执行的任务
+         */
+        void interruptIfIdle() {
+            if (idleState.compareAndSet(WORKER_IDLE, WORKER_INTERRUPTING)) {
+                try {
+                    if (!thread.isInterrupted()) {
+                        thread.interrupt();
+                    }
+                } finally {
+                    idleState.set(WORKER_IDLE);
+                }
+            }
+        }
+    }
+
+    /*
+    可缩减的信号量，用于运行中调整虚拟线程模式的并发上限
+     */
+    private static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /*
+    开启指标采集时，execute提交的普通任务按 1/QUEUE_WAIT_SAMPLE_RATE 抽样包装以记录入队时间，
+    其余任务不分配对象、保持原样入队；submit提交的任务自带入队时间，全部记录
+     */
+    private static final class TimedTask implements Runnable, LaneTask {
+        final Runnable task;
+        final long enqueuedAt;
+
+        TimedTask(Runnable task, long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public String lane() {
+            return laneOf(task);
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    private static String laneOf(Object task) {
+        return task instanceof LaneTask ? ((LaneTask) task).lane() : null;
+    }
+
+    /*
+    submit提交的任务：执行结果或异常直接写入自身（CompletableFuture）
+    cancel(true)会中断正在执行该任务的线程，中断只会在任务执行期间送达，不会落到工作线程的下一个任务上
+     */
+    private static final class SubmittedTask<T> extends CompletableFuture<T> implements Runnable, LaneTask {
+        private final Callable<T> callable;
+        private final String lane; // 提交的任务带有通道标签时保留该标签
+        long enqueuedAt; // 开启指标采集时的入队时间，自带字段无需额外包装
+        private volatile Thread runner; // 正在执行任务的线程
+
+        SubmittedTask(Callable<T> callable, String lane) {
+            this.callable = callable;
+            this.lane = lane;
+        }
+
+        @Override
+        public String lane() {
+            return lane;
+        }
+
+        @Override
+        public void run() {
+            // 先登记执行线程再检查状态，之后的cancel(true)一定能看到runner
+            runner = Thread.currentThread();
+            try {
+                // 已被取消或已完成的任务不再执行
+                if (isDone()) {
+                    return;
+                }
+                complete(callable.call());
+            } catch (Throwable x) {
+                completeExceptionally(x);
+            } finally {
+                // 与cancel互斥：正在进行的中断完成后才清除runner
+                synchronized (this) {
+                    runner = null;
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning && runner != null) {
+                synchronized (this) {
+                    Thread t = runner;
+                    if (t != null) {
+                        t.interrupt();
+                    }
+                }
+            }
+            return cancelled;
+        }
     }
 
     /*
@@ -61,15 +240,35 @@ public class MyThreadPool {
                         BlockingQueue<Runnable> workQueue,
                         ThreadFactory threadFactory,
                         RejectedExecutionHandler handler) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler, false);
+    }
+
+    /*
+    构造函数，workStealing为true时开启工作窃取模式：
+    工作线程内部提交的任务进入该线程的本地队列，空闲线程从其他线程的本地队列窃取任务，
+    外部提交的任务仍进入workQueue
+     */
+    public MyThreadPool(int corePoolSize,
+                        int maximumPoolSize,
+                        long keepAliveTime,
+                        TimeUnit unit,
+                        BlockingQueue<Runnable> workQueue,
+                        ThreadFactory threadFactory,
+                        RejectedExecutionHandler handler,
+                        boolean workStealing) {
         if (corePoolSize < 0 ||
                 maximumPoolSize <= 0 ||
                 maximumPoolSize < corePoolSize ||
+                maximumPoolSize > COUNT_MASK ||
                 keepAliveTime < 0) {
             throw new IllegalArgumentException();
         }
         if (workQueue == null || threadFactory == null || handler == null) {
             throw new NullPointerException();
         }
+        if (workStealing && threadFactory instanceof VirtualThreadFactory) {
+            throw new IllegalArgumentException("工作窃取模式不支持虚拟线程");
+        }
         this.corePoolSize = corePoolSize;
         this.maximumPoolSize = maximumPoolSize;
         this.workQueue = workQueue;
@@ -77,47 +276,130 @@ public class MyThreadPool {
         this.unit = unit;
         this.handler = handler;
         this.threadFactory = threadFactory;
+        this.workStealing = workStealing;
+        // 虚拟线程廉价，无需常驻：每个许可对应一个按需创建、队列空即退出的虚拟线程
+        this.permits = threadFactory instanceof VirtualThreadFactory ?
+                new Permits(maximumPoolSize) : null;
+    }
+
+    /*
+    ctl 打包与拆包
+     */
+    private static int runStateOf(int c) {
+        return c & ~COUNT_MASK;
+    }
+
+    private static int workerCountOf(int c) {
+        return c & COUNT_MASK;
+    }
+
+    private static int ctlOf(int rs, int wc) {
+        return rs | wc;
+    }
+
+    private static boolean runStateLessThan(int c, int s) {
+        return c < s;
+    }
+
+    private static boolean runStateAtLeast(int c, int s) {
+        return c >= s;
     }
 
     /*
     检查线程池是否处于运行状态
      */
-    private boolean isRunning(int state) {
-        return state == RUNNING;
+    private static boolean isRunning(int c) {
+        return c < SHUTDOWN;
+    }
+
+    private boolean compareAndIncrementWorkerCount(int expect) {
+        return ctl.compareAndSet(expect, expect + 1);
+    }
+
+    private boolean compareAndDecrementWorkerCount(int expect) {
+        return ctl.compareAndSet(expect, expect - 1);
+    }
+
+    private void decrementWorkerCount() {
+        ctl.addAndGet(-1);
     }
 
     /*
-    添加工作线程
+    将运行状态推进到目标状态（只进不退），工作线程数保持不变
      */
-    private boolean addWorker(Runnable firstTask, boolean core) {
-        retry:
+    private void advanceRunState(int targetState) {
         for (; ; ) {
-            int c = runState;
-            if (c >= SHUTDOWN) {
-                if (c == SHUTDOWN && firstTask == null) {
-                    //线程池已关闭，但允许添加空任务线程来处理剩余任务
-                } else {
-                    return false;
-                }
+            int c = ctl.get();
+            if (runStateAtLeast(c, targetState) ||
+                    ctl.compareAndSet(c, ctlOf(targetState, workerCountOf(c)))) {
+                break;
+            }
+        }
+    }
+
+    /*
+    获取并发许可（仅虚拟线程模式），core为true时占用数不得超过核心数
+     */
+    private boolean tryAcquirePermit(boolean core) {
+        if (core && maximumPoolSize - permits.availablePermits() >= corePoolSize) {
+            return false;
+        }
+        return permits.tryAcquire();
+    }
+
+    private void releasePermit() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /*
+    在状态允许时CAS递增工作线程数
+     */
+    private boolean incrementWorkerCount(Runnable firstTask, boolean core) {
+        retry:
+        for (int c = ctl.get(); ; ) {
+            // 线程池已关闭时，仅允许添加空任务线程来处理队列中剩余的任务
+            if (runStateAtLeast(c, SHUTDOWN) &&
+                    (runStateAtLeast(c, STOP) || firstTask != null || isQueueEmpty())) {
+                return false;
             }
             for (; ; ) {
-                // 获取工作线程数量
-                int wc = workers.size();
                 // 如果工作线程数量大于等于（核心线程数量：最大线程数量）
-                if (wc >= (core ? corePoolSize : maximumPoolSize)) {
+                if (permits == null && workerCountOf(c) >= (core ? corePoolSize : maximumPoolSize)) {
                     return false;
                 }
-                // CAS原子递增任务计数（CAS确保并发安全）
-                if (taskCount.compareAndSet(c, c + 1)) {
-                    break retry;
+                // CAS原子递增工作线程数，状态与线程数同在ctl中，状态变化会使CAS失败
+                if (compareAndIncrementWorkerCount(c)) {
+                    return true;
                 }
                 //CAS失败，重新检查
-                c = runState;
-                if (c != RUNNING) {
+                c = ctl.get();
+                if (runStateAtLeast(c, SHUTDOWN)) {
                     continue retry;
                 }
             }
         }
+    }
+
+    /*
+    添加工作线程
+     */
+    private boolean addWorker(Runnable firstTask, boolean core) {
+        // 虚拟线程模式下并发上限由许可控制，而不是由工作线程计数控制
+        if (permits != null && !tryAcquirePermit(core)) {
+            return false;
+        }
+        if (!incrementWorkerCount(firstTask, core)) {
+            releasePermit();
+            return false;
+        }
+        int wc = workerCountOf(ctl.get());
+        for (int peak; wc > (peak = peakPoolSize.get()); ) {
+            if (peakPoolSize.compareAndSet(peak, wc)) {
+                break;
+            }
+        }
 
         boolean workerStarted = false;
         boolean workerAdded = false;
@@ -127,79 +409,205 @@ public class MyThreadPool {
             w = new Worker(firstTask);
             final Thread t = w.thread;
             if (t != null) {
-                synchronized (workers) {
-                    int c = runState;
-                    if (isRunning(c) || (c == SHUTDOWN && firstTask == null)) {
-                        if (t.isAlive()) {
-                            throw new IllegalThreadStateException();
-                        }
-                        workers.add(w);
-                        workerAdded = true;
-                    }
+                if (t.isAlive()) {
+                    throw new IllegalThreadStateException();
                 }
-                if (workerAdded) {
+                // 先登记再启动：shutdown先推进状态再遍历workers，
+                // 新线程要么被遍历到而中断，要么在getTask中看到新状态
+                workers.add(w);
+                workerAdded = true;
+                int c = ctl.get();
+                if (isRunning(c) || (runStateLessThan(c, STOP) && firstTask == null)) {
                     t.start();
                     workerStarted = true;
                 }
             }
         } finally {
             if (!workerStarted) {
-                if (workerAdded) {
-                    synchronized (workers) {
-                        workers.remove(w);
-                    }
-                }
-                taskCount.decrementAndGet();
+                addWorkerFailed(w, workerAdded);
             }
         }
         return workerStarted;
     }
 
+    /*
+    回滚添加失败的工作线程
+     */
+    private void addWorkerFailed(Worker w, boolean workerAdded) {
+        if (workerAdded) {
+            workers.remove(w);
+        }
+        decrementWorkerCount();
+        releasePermit();
+        tryTerminate();
+    }
+
     /*
     工作线程执行任务核心方法
      */
     private void runWorker(Worker w) {
-        Thread wt = Thread.currentThread();
         Runnable task = w.firstTask;
         w.firstTask = null;
-        while (task != null || (task = getTask()) != null) {
+        if (workStealing) {
+            currentWorker.set(w);
+        }
+        Thread wt = Thread.currentThread();
+        while (task != null || (task = pollBatch(w)) != null || (task = getTask(w)) != null) {
+            w.markBusy();
+            // 线程池进入STOP时保证线程处于中断状态，否则清除空闲期间残留的中断
+            if ((runStateAtLeast(ctl.get(), STOP) ||
+                    (Thread.interrupted() && runStateAtLeast(ctl.get(), STOP))) &&
+                    !wt.isInterrupted()) {
+                wt.interrupt();
+            }
+            final boolean timing = metricsEnabled;
+            long start = 0L;
+            if (timing) {
+                start = beforeExecute(w, task);
+            }
             try {
                 task.run();
             } catch (Throwable x) {
-                System.err.println("Exception in task " + x.getMessage());
+                // submit提交的任务异常已由Future承载，这里只会收到execute提交任务的异常，
+                // 交给线程的异常处理器，工作线程本身继续运行
+                wt.getUncaughtExceptionHandler().uncaughtException(wt, x);
             } finally {
+                // 只有本线程写入，无需原子操作
                 w.completedTasks++;
-                completedTaskCount.incrementAndGet();
+                if (timing) {
+                    afterExecute(w, start);
+                } else {
+                    w.lastFinish = 0L;
+                }
                 task = null;
+                w.markIdle();
             }
         }
+        if (workStealing) {
+            currentWorker.remove();
+        }
         processWorkerExit(w, false);
     }
 
+    /*
+    记录排队耗时与空闲时间，返回任务开始时间
+     */
+    private long beforeExecute(Worker w, Runnable task) {
+        long start = System.nanoTime();
+        if (w.queueWait == null) {
+            w.executionTime = new LatencyHistogram();
+            w.queueWait = new LatencyHistogram();
+        }
+        if (w.lastFinish != 0L) {
+            w.idleNanos += start - w.lastFinish;
+        }
+        long enqueuedAt = enqueuedAt(task);
+        if (enqueuedAt != 0L) {
+            w.queueWait.record(start - enqueuedAt);
+        }
+        return start;
+    }
+
+    /*
+    记录执行耗时与忙碌时间
+     */
+    private void afterExecute(Worker w, long start) {
+        long end = System.nanoTime();
+        w.executionTime.record(end - start);
+        w.busyNanos += end - start;
+        w.lastFinish = end;
+    }
+
+    private static long enqueuedAt(Runnable task) {
+        if (task instanceof TimedTask) {
+            return ((TimedTask) task).enqueuedAt;
+        }
+        if (task instanceof SubmittedTask) {
+            return ((SubmittedTask<?>) task).enqueuedAt;
+        }
+        return 0L;
+    }
+
+    /*
+    开启指标采集时为任务打上入队时间：SubmittedTask直接写入自身字段，
+    普通Runnable只有抽中的才包装，排队耗时直方图的均值与分位数不受抽样影响，计数约为实际的1/16
+     */
+    private Runnable stamp(Runnable command) {
+        if (!metricsEnabled) {
+            return command;
+        }
+        if (command instanceof SubmittedTask) {
+            ((SubmittedTask<?>) command).enqueuedAt = System.nanoTime();
+            return command;
+        }
+        if (command instanceof TimedTask ||
+                (ThreadLocalRandom.current().nextInt() & (QUEUE_WAIT_SAMPLE_RATE - 1)) != 0) {
+            return command;
+        }
+        return new TimedTask(command, System.nanoTime());
+    }
+
+    private static Runnable unwrap(Runnable command) {
+        return command instanceof TimedTask ? ((TimedTask) command).task : command;
+    }
+
+    /*
+    调用拒绝策略，开启指标采集时按策略名称（getName）计数
+     */
+    private void reject(Runnable command) {
+        RejectedExecutionHandler h = handler;
+        if (workQueue instanceof LaneQueue) {
+            // 多通道队列下优先使用任务所在通道的拒绝策略
+            RejectedExecutionHandler laneHandler = ((LaneQueue) workQueue).handlerFor(command);
+            if (laneHandler != null) {
+                h = laneHandler;
+            }
+        }
+        if (metricsEnabled) {
+            countRejection(h);
+        }
+        h.rejectedExecution(unwrap(command), this);
+    }
+
+    private void countRejection(RejectedExecutionHandler h) {
+        rejections.computeIfAbsent(h.getName(), k -> new LongAdder()).increment();
+    }
+
     /*
     从任务队列获取任务
      */
-    private Runnable getTask() {
+    private Runnable getTask(Worker w) {
         boolean timedOut = false;
         for (; ; ) {
-            int c = runState;
-            if (c >= SHUTDOWN && (c >= STOP || workQueue.isEmpty())) {
-                taskCount.decrementAndGet();
+            int c = ctl.get();
+            if (runStateAtLeast(c, SHUTDOWN) && (runStateAtLeast(c, STOP) || isQueueEmpty())) {
+                decrementWorkerCount();
                 return null;
             }
-            int wc = workers.size();
-            boolean timed = wc > corePoolSize;
-            if ((wc > maximumPoolSize || (timed && timedOut)) && (wc > 1 || workQueue.isEmpty())) {
-                if (taskCount.compareAndSet(c, c - 1)) {
+            int wc = workerCountOf(c);
+            // 虚拟线程模式下所有工作线程都在队列为空时退出
+            boolean timed = permits != null || wc > corePoolSize;
+            if ((wc > maximumPoolSize || (timed && timedOut)) && (wc > 1 || isQueueEmpty())) {
+                if (compareAndDecrementWorkerCount(c)) {
                     return null;
                 }
                 continue;
             }
             try {
-                Runnable r = timed ?
-                        workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
-                        workQueue.take();
+                Runnable r;
+                if (permits != null) {
+                    r = workQueue.poll();
+                } else if (workStealing) {
+                    r = takeOrSteal(w, timed);
+                } else {
+                    r = timed ?
+                            workQueue.poll(keepAliveTime, unit) :
+                            workQueue.take();
+                }
                 if (r != null) {
+                    if (!workStealing) {
+                        drainBatch(w);
+                    }
                     return r;
                 }
                 timedOut = true;
@@ -209,25 +617,150 @@ public class MyThreadPool {
         }
     }
 
+    /*
+    批量出队：取到一个任务后再用一次drainTo从workQueue取走至多drainBatchSize-1个任务，
+    放入本线程的批次缓冲区，随后在本线程内依次执行
+     */
+    private void drainBatch(Worker w) {
+        int max = drainBatchSize - 1;
+        if (max <= 0) {
+            return;
+        }
+        BlockingQueue<Runnable> b = w.batch;
+        // 只有批次为空时才会出队，此时可以安全地按新的批量大小替换缓冲区
+        if (b == null || b.remainingCapacity() < max) {
+            w.batch = b = new ArrayBlockingQueue<>(max);
+        }
+        workQueue.drainTo(b, max);
+    }
+
+    private Runnable pollBatch(Worker w) {
+        BlockingQueue<Runnable> b = w.batch;
+        return b == null ? null : b.poll();
+    }
+
+    /*
+    工作窃取模式下获取任务：本地队列 -> 共享队列 -> 窃取，均为空时挂起等待唤醒，
+    超时（timed）或线程池关闭时返回null
+     */
+    private Runnable takeOrSteal(Worker w, boolean timed) throws InterruptedException {
+        long nanos = timed ? unit.toNanos(keepAliveTime) : 0L;
+        final long deadline = System.nanoTime() + nanos;
+        for (; ; ) {
+            Runnable r = findTask(w);
+            if (r != null) {
+                return r;
+            }
+            // 先登记为空闲再复查：提交方先入队再唤醒，两者至少有一方能看到对方
+            idleWorkers.add(w);
+            try {
+                r = findTask(w);
+                if (r != null) {
+                    return r;
+                }
+                if (!isRunning(ctl.get())) {
+                    return null;
+                }
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            } finally {
+                idleWorkers.remove(w);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /*
+    依次从本地队列头部、共享队列、其他工作线程本地队列尾部查找任务
+     */
+    private Runnable findTask(Worker w) {
+        Runnable r = w.localQueue.pollFirst();
+        if (r != null) {
+            return r;
+        }
+        r = workQueue.poll();
+        if (r != null) {
+            return r;
+        }
+        for (Worker victim : workers) {
+            if (victim != w && (r = victim.localQueue.pollLast()) != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /*
+    唤醒一个挂起的空闲工作线程
+     */
+    private void signalWork() {
+        Worker idle = idleWorkers.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /*
+    唤醒至多n个挂起的空闲工作线程
+     */
+    private void signalWork(int n) {
+        Worker idle;
+        while (n-- > 0 && (idle = idleWorkers.poll()) != null) {
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /*
+    所有任务队列（共享队列及工作窃取模式下的本地队列）是否为空
+     */
+    private boolean isQueueEmpty() {
+        if (!workQueue.isEmpty()) {
+            return false;
+        }
+        if (workStealing) {
+            for (Worker w : workers) {
+                if (!w.localQueue.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /*
     处理工作线程退出
      */
     private void processWorkerExit(Worker w, boolean completedAbruptly) {
         if (completedAbruptly) {
-            taskCount.decrementAndGet();
+            decrementWorkerCount();
         }
-        synchronized (workers) {
-            workers.remove(w);
+        completedTaskCount.addAndGet(w.completedTasks);
+        if (w.queueWait != null) {
+            retiredQueueWait.add(w.queueWait);
+            retiredExecutionTime.add(w.executionTime);
         }
+        retiredBusyNanos.addAndGet(w.busyNanos);
+        retiredIdleNanos.addAndGet(w.idleNanos);
+        workers.remove(w);
+        releasePermit();
         tryTerminate();
-        int c = runState;
-        if (c == RUNNING || c == SHUTDOWN) {
+        int c = ctl.get();
+        if (runStateLessThan(c, STOP)) {
             if (!completedAbruptly) {
-                int min = corePoolSize;
-                if (min == 0 && !workQueue.isEmpty()) {
+                int min = permits != null ? 0 : corePoolSize;
+                if (min == 0 && !isQueueEmpty()) {
                     min = 1;
                 }
-                if (workers.size() >= min) {
+                if (workerCountOf(c) >= min) {
                     return;
                 }
             }
@@ -240,21 +773,19 @@ public class MyThreadPool {
      */
     private void tryTerminate() {
         for (; ; ) {
-            int c = runState;
+            int c = ctl.get();
             if (isRunning(c) ||
-                    c == TERMINATED ||
-                    (c == SHUTDOWN && !workQueue.isEmpty())) {
+                    runStateAtLeast(c, TERMINATED) ||
+                    (runStateLessThan(c, STOP) && !isQueueEmpty())) {
                 return;
             }
-            if (workers.size() > 0) {
+            if (workerCountOf(c) != 0) {
                 interruptIdleWorkers();
                 return;
             }
-            synchronized (this) {
-                if (runState == SHUTDOWN) {
-                    runState = TERMINATED;
-                    return;
-                }
+            if (ctl.compareAndSet(c, ctlOf(TERMINATED, 0))) {
+                termination.countDown(); // 唤醒awaitTermination的等待者
+                return;
             }
         }
     }
@@ -263,12 +794,19 @@ public class MyThreadPool {
     中断空闲的工作线程
      */
     private void interruptIdleWorkers() {
-        synchronized (workers) {
-            for (Worker w : workers) {
-                Thread t = w.thread;
-                if (!t.isInterrupted()) {
-                    t.interrupt();
-                }
+        for (Worker w : workers) {
+            w.interruptIfIdle();
+        }
+    }
+
+    /*
+    中断所有工作线程，包括正在执行任务的线程
+     */
+    private void interruptWorkers() {
+        for (Worker w : workers) {
+            Thread t = w.thread;
+            if (!t.isInterrupted()) {
+                t.interrupt();
             }
         }
     }
@@ -280,37 +818,223 @@ public class MyThreadPool {
         if (command == null) {
             throw new NullPointerException();
         }
+        command = stamp(command);
 
-        int c = taskCount.get();
-        if (isRunning(runState) && workers.size() < corePoolSize) {
+        int c = ctl.get();
+        if (workerCountOf(c) < corePoolSize) {
             if (addWorker(command, true)) {
                 return;
             }
-            c = taskCount.get();
+            c = ctl.get();
+        }
+        if (workStealing && isRunning(c)) {
+            Worker w = currentWorker.get();
+            if (w != null) {
+                // 工作线程内部提交的子任务进入本地队列，由本线程或窃取者执行
+                w.localQueue.addFirst(command);
+                if (!isRunning(ctl.get()) && w.localQueue.remove(command)) {
+                    reject(command);
+                } else {
+                    signalWork();
+                }
+                return;
+            }
         }
-        if (isRunning(runState) && workQueue.offer(command)) {
-            int recheck = taskCount.incrementAndGet();
+        if (isRunning(c) && workQueue.offer(command)) {
+            int recheck = ctl.get();
             if (!isRunning(recheck) && remove(command)) {
-                handler.rejectedExecution(command, this);
-            } else if (workers.size() == 0) {
+                reject(command);
+            } else if (workerCountOf(recheck) == 0) {
                 addWorker(null, false);
+            } else if (workStealing) {
+                signalWork();
             }
-        } else if (!addWorker(command, false)) {
-            handler.rejectedExecution(command, this);
+        } else if (workQueue instanceof LaneQueue || !addWorker(command, false)) {
+            // 多通道队列的某个通道满时不创建非核心线程，否则饱和的通道会直接占用新线程、绕过差额轮询
+            reject(command);
         }
     }
 
     /*
-    关闭线程池，不再接受新任务，但会执行已提交的任务
+    批量提交任务：整批只做一次状态检查与复查，先用任务直接补足核心线程，
+    其余任务一次性入队，只唤醒需要的空闲线程；队列放不下的任务按execute的规则逐个处理
      */
-    public void shutdown() {
-        synchronized (this) {
-            if (runState != RUNNING) {
+    public void executeAll(Collection<? extends Runnable> commands) {
+        List<Runnable> batch = new ArrayList<>(commands);
+        for (int j = 0; j < batch.size(); j++) {
+            Runnable command = batch.get(j);
+            if (command == null) {
+                throw new NullPointerException();
+            }
+            batch.set(j, stamp(command));
+        }
+        int n = batch.size();
+        int i = 0;
+        int c = ctl.get();
+        while (i < n && workerCountOf(c) < corePoolSize && addWorker(batch.get(i), true)) {
+            i++;
+            c = ctl.get();
+        }
+        if (i == n) {
+            return;
+        }
+        if (workStealing && isRunning(c)) {
+            Worker w = currentWorker.get();
+            if (w != null) {
+                // 工作线程内部批量提交：整批进入本地队列，按空闲线程数唤醒窃取者
+                for (int j = i; j < n; j++) {
+                    w.localQueue.addFirst(batch.get(j));
+                }
+                if (!isRunning(ctl.get())) {
+                    for (int j = i; j < n; j++) {
+                        if (w.localQueue.remove(batch.get(j))) {
+                            reject(batch.get(j));
+                        }
+                    }
+                } else {
+                    signalWork(n - i);
+                }
                 return;
             }
-            runState = SHUTDOWN; //改状态
-            interruptIdleWorkers(); //中断空闲线程
         }
+        int first = i;
+        if (isRunning(c)) {
+            while (i < n && workQueue.offer(batch.get(i))) {
+                i++;
+            }
+        }
+        int enqueued = i - first;
+        if (enqueued > 0) {
+            int recheck = ctl.get();
+            if (!isRunning(recheck)) {
+                for (int j = first; j < i; j++) {
+                    if (remove(batch.get(j))) {
+                        reject(batch.get(j));
+                    }
+                }
+            } else if (workerCountOf(recheck) == 0) {
+                addWorker(null, false);
+            } else if (workStealing) {
+                signalWork(enqueued);
+            }
+        }
+        for (; i < n; i++) {
+            execute(batch.get(i));
+        }
+    }
+
+    /*
+    设置批量出队大小，运行中可随时调整，对工作线程的下一次出队生效
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        if (drainBatchSize < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.drainBatchSize = drainBatchSize;
+    }
+
+    public int getDrainBatchSize() {
+        return drainBatchSize;
+    }
+
+    /*
+    提交有返回值的任务，结果和异常都通过返回的Future传递
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        SubmittedTask<T> f = new SubmittedTask<>(task, laneOf(task));
+        execute(f);
+        return f;
+    }
+
+    /*
+    提交无返回值的任务，正常完成时Future结果为null
+     */
+    public CompletableFuture<Void> submit(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        SubmittedTask<Void> f = new SubmittedTask<>(() -> {
+            task.run();
+            return null;
+        }, laneOf(task));
+        execute(f);
+        return f;
+    }
+
+    /*
+    提交一组任务并等待全部完成（正常或异常），被中断时取消未完成的任务
+     */
+    public <T> List<CompletableFuture<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+            throws InterruptedException {
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        boolean done = false;
+        try {
+            for (Callable<T> t : tasks) {
+                futures.add(submit(t));
+            }
+            for (CompletableFuture<T> f : futures) {
+                if (!f.isDone()) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException | CancellationException ignore) {
+                    }
+                }
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                for (CompletableFuture<T> f : futures) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+    /*
+    提交一组任务，返回最先成功完成的结果并取消其余任务；全部失败时抛出最后一个异常
+     */
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+            throws InterruptedException, ExecutionException {
+        if (tasks.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        CompletableFuture<T> any = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        int n = tasks.size();
+        List<CompletableFuture<T>> futures = new ArrayList<>(n);
+        try {
+            for (Callable<T> t : tasks) {
+                CompletableFuture<T> f = submit(t);
+                futures.add(f);
+                f.whenComplete((v, x) -> {
+                    if (x == null) {
+                        any.complete(v);
+                    } else if (failures.incrementAndGet() == n) {
+                        any.completeExceptionally(x);
+                    }
+                });
+                if (any.isDone()) {
+                    break;
+                }
+            }
+            return any.get();
+        } finally {
+            for (CompletableFuture<T> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /*
+    关闭线程池，不再接受新任务，但会执行已提交的任务
+     */
+    public void shutdown() {
+        advanceRunState(SHUTDOWN); //改状态
+        interruptIdleWorkers(); //中断空闲线程
         tryTerminate(); //尝试终止线程池
     }
 
@@ -319,67 +1043,205 @@ public class MyThreadPool {
      */
     public List<Runnable> shutdownNow() {
         List<Runnable> tasks = new ArrayList<>();
-        synchronized (this) {
-            if (runState != RUNNING && runState != SHUTDOWN) {
-                return tasks;
+        advanceRunState(STOP);
+        interruptWorkers();
+        workQueue.drainTo(tasks);
+        for (Worker w : workers) {
+            BlockingQueue<Runnable> b = w.batch;
+            if (b != null) {
+                b.drainTo(tasks);
             }
-            runState = STOP;
-            interruptIdleWorkers();
-            workQueue.drainTo(tasks);
         }
+        if (workStealing) {
+            for (Worker w : workers) {
+                Runnable r;
+                while ((r = w.localQueue.pollFirst()) != null) {
+                    tasks.add(r);
+                }
+            }
+        }
+        tasks.replaceAll(MyThreadPool::unwrap);
         tryTerminate();
         return tasks;
     }
+
     /*
     从队列中移除任务
      */
     private boolean remove(Runnable task) {
         boolean removed = workQueue.remove(task);
-        if (removed) {
-            taskCount.decrementAndGet();
-        }
+        tryTerminate();
         return removed;
     }
+
+    public boolean isShutdown() {
+        return !isRunning(ctl.get());
+    }
+
+    public boolean isTerminated() {
+        return runStateAtLeast(ctl.get(), TERMINATED);
+    }
+
     /*
-    获取已完成的任务数
+    获取已完成的任务数：已退出线程的累计值 + 存活线程各自的计数
      */
     public int getCompletedTaskCount() {
-        return completedTaskCount.get();
+        long n = completedTaskCount.get();
+        for (Worker w : workers) {
+            n += w.completedTasks;
+        }
+        return (int) n;
     }
+
     /*
     获取当前活跃的线程数
      */
     public int getActiveCount() {
-        synchronized (workers) {
-            return workers.size();
+        return workerCountOf(ctl.get());
+    }
+
+    /*
+    获取已登记的工作线程数（与ctl中的计数在线程池静止时应一致）
+     */
+    public int getPoolSize() {
+        return workers.size();
+    }
+
+    /*
+    运行中调整核心线程数：调大时若队列中有积压立即补充线程，
+    调小时中断空闲线程，多出的线程空闲超过keepAliveTime后退出
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        int delta;
+        synchronized (this) {
+            if (corePoolSize < 0 || corePoolSize > maximumPoolSize) {
+                throw new IllegalArgumentException();
+            }
+            delta = corePoolSize - this.corePoolSize;
+            this.corePoolSize = corePoolSize;
+        }
+        if (delta < 0) {
+            // 唤醒空闲线程重新判断是否超出核心数，超出的线程改为限时等待
+            interruptIdleWorkers();
+        } else if (delta > 0 && isRunning(ctl.get())) {
+            // 不必一次补足，按积压任务数补充，队列清空即停止
+            int k = Math.min(delta, workQueue.size());
+            while (k-- > 0 && addWorker(null, true)) {
+                if (workQueue.isEmpty()) {
+                    break;
+                }
+            }
         }
     }
 
+    /*
+    运行中调整最大线程数，不得小于当前核心线程数；
+    调小时空闲线程立即退出，忙碌线程在完成当前任务后退出
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        boolean shrink;
+        synchronized (this) {
+            if (maximumPoolSize <= 0 || maximumPoolSize < corePoolSize || maximumPoolSize > COUNT_MASK) {
+                throw new IllegalArgumentException();
+            }
+            int delta = maximumPoolSize - this.maximumPoolSize;
+            this.maximumPoolSize = maximumPoolSize;
+            if (permits != null) {
+                if (delta > 0) {
+                    permits.release(delta);
+                } else if (delta < 0) {
+                    permits.reduce(-delta);
+                }
+            }
+            shrink = delta < 0;
+        }
+        if (shrink) {
+            interruptIdleWorkers();
+        }
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    /*
+    开启或关闭指标采集，运行中可随时切换
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        this.metricsEnabled = enabled;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public int getPeakPoolSize() {
+        return peakPoolSize.get();
+    }
+
+    /*
+    生成指标快照：汇总已退出线程与存活线程的直方图，适合按秒抓取
+     */
+    public ThreadPoolMetrics getMetrics() {
+        LatencyHistogram queueWait = new LatencyHistogram();
+        LatencyHistogram executionTime = new LatencyHistogram();
+        queueWait.add(retiredQueueWait);
+        executionTime.add(retiredExecutionTime);
+        long completed = completedTaskCount.get();
+        List<ThreadPoolMetrics.WorkerMetrics> workerMetrics = new ArrayList<>();
+        for (Worker w : workers) {
+            LatencyHistogram qw = w.queueWait;
+            if (qw != null) {
+                queueWait.add(qw);
+                executionTime.add(w.executionTime);
+            }
+            completed += w.completedTasks;
+            workerMetrics.add(new ThreadPoolMetrics.WorkerMetrics(
+                    w.thread.getName(), w.completedTasks, w.busyNanos, w.idleNanos));
+        }
+        Map<String, Long> rejected = new HashMap<>();
+        rejections.forEach((k, v) -> rejected.put(k, v.sum()));
+        return new ThreadPoolMetrics(System.currentTimeMillis(), workerCountOf(ctl.get()),
+                peakPoolSize.get(), getQueueSize(), completed, queueWait, executionTime,
+                rejected, workerMetrics);
+    }
+
     public int getQueueSize() {
-        return workQueue.size();
+        int size = workQueue.size();
+        for (Worker w : workers) {
+            BlockingQueue<Runnable> b = w.batch;
+            if (b != null) {
+                size += b.size();
+            }
+        }
+        if (workStealing) {
+            for (Worker w : workers) {
+                size += w.localQueue.size();
+            }
+        }
+        return size;
     }
+
     /*
     等待线程池终止
      */
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        long nanos = unit.toNanos(timeout);
-        long lastTime = System.nanoTime();
-        while (runState!= TERMINATED) {
-            if (nanos <= 0) {
-                return false;
-            }
-            TimeUnit.NANOSECONDS.sleep(Math.min(nanos, 1000000));
-            long now = System.nanoTime();
-            nanos -= now - lastTime;
-            lastTime = now;
-        }
-        return true;
+        return termination.await(timeout, unit);
     }
 
     /**
      * 直接抛出异常的拒绝策略
      */
     public static class AbortPolicy implements RejectedExecutionHandler {
+        @Override
+        public String getName() {
+            return "AbortPolicy";
+        }
+
         @Override
         public void rejectedExecution(Runnable r, MyThreadPool executor) {
             throw new RejectedExecutionException("任务 " + r + " 被拒绝，线程池已达承载上限");
@@ -390,9 +1252,14 @@ public class MyThreadPool {
      * 让提交任务的线程执行任务的拒绝策略
      */
     public static class CallerRunsPolicy implements RejectedExecutionHandler {
+        @Override
+        public String getName() {
+            return "CallerRunsPolicy";
+        }
+
         @Override
         public void rejectedExecution(Runnable r, MyThreadPool executor) {
-            if (!executor.isRunning(executor.runState)) {
+            if (!executor.isShutdown()) {
                 r.run();
             }
         }
@@ -402,18 +1269,51 @@ public class MyThreadPool {
      * 丢弃最旧任务的拒绝策略
      */
     public static class DiscardOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public String getName() {
+            return "DiscardOldestPolicy";
+        }
+
         @Override
         public void rejectedExecution(Runnable r, MyThreadPool executor) {
-            if (!executor.isRunning(executor.runState)) {
-                Runnable oldest = executor.workQueue.poll();
-                if (oldest != null) {
-                    executor.taskCount.decrementAndGet();
+            if (!executor.isShutdown()) {
+                if (executor.workQueue instanceof LaneQueue) {
+                    // 多通道队列只丢弃同一通道中最旧的任务
+                    ((LaneQueue) executor.workQueue).pollOldest(r);
+                } else {
+                    executor.workQueue.poll();
                 }
-                executor.workQueue.offer(r);
-                executor.taskCount.incrementAndGet();
+                executor.execute(r);
             }
         }
     }
+    /**
+     * 虚拟线程工厂，线程池使用该工厂时切换为虚拟线程模式（需要 JDK 21+）
+     * 通过反射获取 Thread.ofVirtual()，使源码在较低版本的 JDK 上仍可编译
+     */
+    public static class VirtualThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final ThreadFactory factory;
+
+        public VirtualThreadFactory() {
+            String namePrefix = "custom-vpool-" + poolNumber.getAndIncrement() + "-thread-";
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class, long.class)
+                        .invoke(builder, namePrefix, 1L);
+                factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("当前JDK不支持虚拟线程", e);
+            }
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return factory.newThread(r);
+        }
+    }
+
     /**
      *
      */
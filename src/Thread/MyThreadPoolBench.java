@@ -0,0 +1,501 @@
+package Thread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MyThreadPool 的压测与并发正确性验证
+ * 用法: java Thread.MyThreadPoolBench [contention|fanout|blocking|batch|timers|lanes|cancel]
+ */
+public class MyThreadPoolBench {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "contention";
+        switch (mode) {
+            case "contention":
+                contention();
+                break;
+            case "fanout":
+                fanout();
+                break;
+            case "blocking":
+                blocking();
+                break;
+            case "batch":
+                batch();
+                break;
+            case "timers":
+                timers();
+                break;
+            case "lanes":
+                lanes();
+                break;
+            case "cancel":
+                cancel();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode: " + mode);
+        }
+    }
+
+    /*
+    64个线程成批并发提交任务，验证工作线程既不丢失也不重复计数：
+    核心线程数为0、keepAlive为0，队列放满时创建非核心线程，队列一空线程立即退出，
+    每一批都会反复创建和回收工作线程，使addWorker与processWorkerExit并发交错；
+    每批结束后等待线程全部退出，检查ctl中的计数与workers登记数一致
+     */
+    static void contention() throws Exception {
+        final int submitters = 64;
+        final int bursts = 40;
+        final int tasksPerBurst = 500; // 每个提交线程每批提交的任务数
+        final int max = 16;
+        AtomicLong executed = new AtomicLong();
+        AtomicInteger callerRuns = new AtomicInteger();
+        AtomicInteger created = new AtomicInteger();
+        MyThreadPool.DefaultThreadFactory factory = new MyThreadPool.DefaultThreadFactory();
+        MyThreadPool pool = new MyThreadPool(0, max, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4096), r -> {
+                    created.incrementAndGet();
+                    return factory.newThread(r);
+                },
+                (r, executor) -> {
+                    callerRuns.incrementAndGet();
+                    r.run();
+                });
+        pool.setMetricsEnabled(true);
+
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger inconsistent = new AtomicInteger();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                int wc = pool.getActiveCount();
+                if (wc > max) {
+                    inconsistent.incrementAndGet();
+                }
+                peak.accumulateAndGet(wc, Math::max);
+                Thread.onSpinWait();
+            }
+        });
+        sampler.start();
+
+        int mismatchedBursts = 0;
+        long begin = System.nanoTime();
+        for (int b = 0; b < bursts; b++) {
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[submitters];
+            for (int i = 0; i < submitters; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < tasksPerBurst; j++) {
+                        pool.execute(executed::incrementAndGet);
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            // 队列清空后keepAlive为0的线程全部退出，此时两个计数都应回到0
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while ((pool.getActiveCount() != 0 || pool.getPoolSize() != 0) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            if (pool.getActiveCount() != pool.getPoolSize() || pool.getActiveCount() != 0) {
+                mismatchedBursts++;
+                System.out.println("burst " + b + ": ctl=" + pool.getActiveCount()
+                        + ", registry=" + pool.getPoolSize());
+            }
+        }
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(30, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - begin;
+        sampler.interrupt();
+        sampler.join();
+
+        long expected = (long) submitters * tasksPerBurst * bursts;
+        long ranInPool = pool.getCompletedTaskCount();
+        System.out.println("terminated       : " + terminated);
+        System.out.println("submitted        : " + expected + " in " + bursts + " bursts");
+        System.out.println("executed         : " + executed.get());
+        System.out.printf("completed in pool: %d (+ caller runs %d, %.1f%%)%n",
+                ranInPool, callerRuns.get(), 100.0 * callerRuns.get() / expected);
+        System.out.println("workers created  : " + created.get());
+        System.out.println("peak workers     : " + peak.get() + " (max " + max + ")");
+        System.out.println("bursts mismatched: " + mismatchedBursts);
+        System.out.println("leftover workers : ctl=" + pool.getActiveCount() + ", registry=" + pool.getPoolSize());
+        System.out.printf("throughput       : %.0f tasks/s%n", expected * 1e9 / elapsed);
+        System.out.println("metrics          : " + pool.getMetrics());
+        Map<String, Long> rejections = pool.getMetrics().getRejections();
+        boolean ok = terminated
+                && executed.get() == expected
+                && ranInPool + callerRuns.get() == expected
+                && inconsistent.get() == 0
+                && mismatchedBursts == 0
+                && created.get() > bursts
+                && pool.getActiveCount() == 0
+                && pool.getPeakPoolSize() <= max
+                && pool.getMetrics().getExecutionTime().count() == ranInPool
+                // lambda 拒绝策略只计入一个固定的 "custom" 键
+                && rejections.getOrDefault("custom", 0L) == callerRuns.get()
+                && rejections.size() == (callerRuns.get() > 0 ? 1 : 0)
+                && pool.getPoolSize() == 0;
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    任务内部递归拆分出大量小任务，对比共享队列与工作窃取模式在不同线程数下的耗时
+     */
+    static void fanout() throws Exception {
+        final int depth = 16; // 2^16 个叶子任务
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads <<= 1) {
+            long shared = runFanout(threads, false, depth);
+            long stealing = runFanout(threads, true, depth);
+            System.out.printf("threads=%-3d shared=%6d ms  stealing=%6d ms%n",
+                    threads, shared / 1_000_000, stealing / 1_000_000);
+        }
+    }
+
+    private static long runFanout(int threads, boolean workStealing, int depth) throws Exception {
+        MyThreadPool pool = new MyThreadPool(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new MyThreadPool.DefaultThreadFactory(),
+                new MyThreadPool.AbortPolicy(), workStealing);
+        int leaves = 1 << depth;
+        CountDownLatch done = new CountDownLatch(leaves);
+        long begin = System.nanoTime();
+        pool.execute(() -> split(pool, depth, done));
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return elapsed;
+    }
+
+    private static void split(MyThreadPool pool, int depth, CountDownLatch done) {
+        if (depth == 0) {
+            burn(20_000);
+            done.countDown();
+            return;
+        }
+        pool.execute(() -> split(pool, depth - 1, done));
+        pool.execute(() -> split(pool, depth - 1, done));
+    }
+
+    private static volatile long sink;
+
+    private static void burn(int iterations) {
+        long x = iterations;
+        for (int i = 0; i < iterations; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        sink = x;
+    }
+
+    /*
+    1万个阻塞任务（模拟I/O）：平台线程池需按线程数限流，虚拟线程模式可让并发上限覆盖全部任务
+     */
+    static void blocking() throws Exception {
+        final int tasks = 10_000;
+        final long blockMillis = 50;
+        long platform = runBlocking(tasks, blockMillis, 200, new MyThreadPool.DefaultThreadFactory());
+        System.out.printf("platform (200 threads)   : %6d ms%n", platform / 1_000_000);
+        ThreadFactory virtualFactory;
+        try {
+            virtualFactory = new MyThreadPool.VirtualThreadFactory();
+        } catch (UnsupportedOperationException e) {
+            System.out.println("virtual                  : skipped, " + e.getMessage());
+            return;
+        }
+        long virtual = runBlocking(tasks, blockMillis, tasks, virtualFactory);
+        System.out.printf("virtual  (%d permits) : %6d ms%n", tasks, virtual / 1_000_000);
+    }
+
+    private static long runBlocking(int tasks, long blockMillis, int concurrency,
+                                    ThreadFactory threadFactory) throws Exception {
+        MyThreadPool pool = new MyThreadPool(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory, new MyThreadPool.AbortPolicy());
+        CountDownLatch done = new CountDownLatch(tasks);
+        long begin = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return elapsed;
+    }
+
+    /*
+    逐个提交与批量提交、单个出队与批量出队的吞吐量对比（任务/秒）
+     */
+    static void batch() throws Exception {
+        final int tasks = 2_000_000;
+        final int submitBatch = 1_000;
+        for (int drain : new int[]{1, 32}) {
+            for (int round = 0; round < 3; round++) {
+                double single = runBatch(tasks, 1, drain);
+                double batched = runBatch(tasks, submitBatch, drain);
+                System.out.printf("drainBatch=%-3d execute: %,12.0f tasks/s   executeAll(%d): %,12.0f tasks/s%n",
+                        drain, single, submitBatch, batched);
+            }
+        }
+    }
+
+    private static double runBatch(int tasks, int submitBatch, int drainBatchSize) throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        MyThreadPool pool = new MyThreadPool(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new MyThreadPool.DefaultThreadFactory(),
+                new MyThreadPool.AbortPolicy());
+        pool.setDrainBatchSize(drainBatchSize);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger remaining = new AtomicInteger(tasks);
+        Runnable task = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        };
+        List<Runnable> chunk = new ArrayList<>(submitBatch);
+        for (int i = 0; i < submitBatch; i++) {
+            chunk.add(task);
+        }
+        long begin = System.nanoTime();
+        if (submitBatch == 1) {
+            for (int i = 0; i < tasks; i++) {
+                pool.execute(task);
+            }
+        } else {
+            for (int i = 0; i < tasks; i += submitBatch) {
+                pool.executeAll(chunk);
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        return tasks * 1e9 / elapsed;
+    }
+
+    /*
+    100万个超时任务，其中99%在到期前被取消：时间轮与JDK基于堆的ScheduledThreadPoolExecutor对比
+     */
+    static void timers() throws Exception {
+        final int timeouts = 1_000_000;
+        for (int round = 0; round < 2; round++) {
+            MyScheduledThreadPool wheel = new MyScheduledThreadPool(2);
+            runTimers("timing wheel", timeouts,
+                    (r, delay) -> wheel.schedule(r, delay, TimeUnit.MILLISECONDS));
+            wheel.shutdown();
+
+            ScheduledThreadPoolExecutor heap = new ScheduledThreadPoolExecutor(2);
+            heap.setRemoveOnCancelPolicy(true);
+            runTimers("jdk heap    ", timeouts,
+                    (r, delay) -> heap.schedule(r, delay, TimeUnit.MILLISECONDS));
+            heap.shutdown();
+        }
+    }
+
+    private interface Scheduler {
+        Future<?> schedule(Runnable r, long delayMillis);
+    }
+
+    private static void runTimers(String name, int timeouts, Scheduler scheduler) throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        Runnable timeout = fired::incrementAndGet;
+        Future<?>[] handles = new Future<?>[timeouts];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long begin = System.nanoTime();
+        for (int i = 0; i < timeouts; i++) {
+            handles[i] = scheduler.schedule(timeout, 3_000 + random.nextInt(1_000));
+        }
+        long scheduled = System.nanoTime();
+        int expected = 0;
+        for (int i = 0; i < timeouts; i++) {
+            if (i % 100 == 0) {
+                expected++;
+            } else {
+                handles[i].cancel(false);
+            }
+        }
+        long cancelled = System.nanoTime();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fired.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.printf("%s schedule: %6d ms (%,.0f ops/s)  cancel: %6d ms (%,.0f ops/s)  fired %d/%d%n",
+                name,
+                (scheduled - begin) / 1_000_000, timeouts * 1e9 / (scheduled - begin),
+                (cancelled - scheduled) / 1_000_000, (timeouts - expected) * 1e9 / (cancelled - scheduled),
+                fired.get(), expected);
+    }
+
+    /*
+    批量通道持续饱和时交互任务的排队延迟：单一FIFO队列与多通道加权轮询队列对比
+    要求多通道下交互任务的p99不超过LANES_P99_BOUND_MS且远低于FIFO，
+    并且饱和的批量通道不会创建超过核心数的线程（最大线程数设为核心数的4倍）
+     */
+    private static final double LANES_P99_BOUND_MS = 50;
+
+    static void lanes() throws Exception {
+        MyThreadPool.RejectedExecutionHandler discard = (r, executor) -> {
+        };
+        final int workers = 2;
+        BlockingQueue<Runnable> fifo = new LinkedBlockingQueue<>(10_000);
+        MyThreadPool fifoPool = new MyThreadPool(workers, workers, 0, TimeUnit.MILLISECONDS,
+                fifo, new MyThreadPool.DefaultThreadFactory(), discard);
+        double fifoP99 = runLanes("fifo ", fifoPool);
+        LaneQueue lanes = new LaneQueue()
+                .addLane("interactive", 16, 10_000, null)
+                // 容量低于灌入线程的让步阈值，批量通道持续处于满的状态；被拒绝时让出CPU，避免灌入线程空转
+                .addLane("batch", 1, 8_000, (r, executor) -> Thread.yield());
+        MyThreadPool lanePool = new MyThreadPool(workers, workers * 4, 0, TimeUnit.MILLISECONDS,
+                lanes, new MyThreadPool.DefaultThreadFactory(), discard);
+        double lanesP99 = runLanes("lanes", lanePool);
+        System.out.println("lanes peak workers: " + lanePool.getPeakPoolSize() + " (core " + workers
+                + ", max " + workers * 4 + ")");
+        boolean ok = lanesP99 <= LANES_P99_BOUND_MS
+                && lanesP99 * 10 <= fifoP99
+                && lanePool.getPeakPoolSize() == workers;
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /*
+    返回交互任务排队延迟的p99（毫秒），未能全部完成时返回正无穷
+     */
+    private static double runLanes(String name, MyThreadPool pool) throws Exception {
+        final int interactive = 1_000;
+        // 批量任务持续灌满队列
+        Thread flood = new Thread(() -> {
+            Runnable batchTask = LaneQueue.tag("batch", () -> burn(20_000));
+            while (!Thread.currentThread().isInterrupted() && !pool.isShutdown()) {
+                pool.execute(batchTask);
+                if (pool.getQueueSize() >= 9_000) {
+                    Thread.yield();
+                }
+            }
+        });
+        flood.setDaemon(true);
+        flood.start();
+        Thread.sleep(200);
+
+        long[] latencies = new long[interactive];
+        CountDownLatch done = new CountDownLatch(interactive);
+        for (int i = 0; i < interactive; i++) {
+            final int id = i;
+            final long submitted = System.nanoTime();
+            pool.execute(LaneQueue.tag("interactive", () -> {
+                latencies[id] = System.nanoTime() - submitted;
+                done.countDown();
+            }));
+            Thread.sleep(2);
+        }
+        boolean finished = done.await(30, TimeUnit.SECONDS);
+        flood.interrupt();
+        pool.shutdownNow();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        if (!finished) {
+            System.out.println(name + " interactive tasks did not finish in 30s (" + done.getCount() + " left)");
+            return Double.POSITIVE_INFINITY;
+        }
+        Arrays.sort(latencies);
+        double p99 = latencies[interactive * 99 / 100] / 1e6;
+        System.out.printf("%s interactive queue latency p50=%6.2f ms  p99=%7.2f ms  max=%7.2f ms%n", name,
+                latencies[interactive / 2] / 1e6, p99, latencies[interactive - 1] / 1e6);
+        return p99;
+    }
+
+    /*
+    invokeAny 拿到最快的结果后中断其余仍在执行的任务；
+    被取消任务的中断不会落到同一工作线程随后执行的任务上
+     */
+    static void cancel() throws Exception {
+        MyThreadPool pool = new MyThreadPool(4, 4, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new MyThreadPool.DefaultThreadFactory(),
+                new MyThreadPool.AbortPolicy());
+        AtomicInteger interrupted = new AtomicInteger();
+        CountDownLatch losersStarted = new CountDownLatch(3);
+        List<Callable<String>> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            losersStarted.await();
+            return "fast";
+        });
+        for (int i = 0; i < 3; i++) {
+            tasks.add(() -> {
+                losersStarted.countDown();
+                try {
+                    Thread.sleep(10_000);
+                    return "slow";
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                    throw e;
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        String result = pool.invokeAny(tasks);
+        // 失败的任务在中断后很快结束，线程随即空闲，后续任务不应看到残留的中断
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (interrupted.get() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - begin;
+        AtomicInteger leaked = new AtomicInteger();
+        List<Callable<Void>> probes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            probes.add(() -> {
+                if (Thread.currentThread().isInterrupted()) {
+                    leaked.incrementAndGet();
+                }
+                return null;
+            });
+        }
+        pool.invokeAll(probes);
+
+        // 大量提交后立即取消，检查中断不会串到其他任务
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            futures.add(pool.submit(() -> {
+                if (Thread.currentThread().isInterrupted()) {
+                    leaked.incrementAndGet();
+                }
+            }));
+            if (i % 2 == 1) {
+                futures.get(i - 1).cancel(true);
+            }
+        }
+        pool.shutdown();
+        boolean terminated = pool.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.println("invokeAny result : " + result + " after " + elapsed / 1_000_000 + " ms");
+        System.out.println("losers interrupted: " + interrupted.get() + " of 3");
+        System.out.println("leaked interrupts: " + leaked.get());
+        boolean ok = terminated && "fast".equals(result) && interrupted.get() == 3 && leaked.get() == 0
+                && elapsed < TimeUnit.SECONDS.toNanos(5);
+        System.out.println(ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+}
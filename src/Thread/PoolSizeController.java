@@ -0,0 +1,141 @@
+package Thread;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyThreadPool 的自适应核心线程数控制器（爬山法）
+ * 每个采样周期读取一次线程池指标，根据本周期的吞吐量与平均排队耗时，在 [minCore, maxCore] 内调整核心线程数：
+ * 排队耗时超过目标且队列有积压时扩容；否则沿上一次调整方向继续试探，吞吐量下降则反向；
+ * 队列空闲且吞吐量没有提升时缩容，释放多余线程
+ * 核心线程数超过线程池最大线程数时临时调高最大线程数，缩容后恢复为启动时的最大线程数
+ */
+public class PoolSizeController {
+    private static final double TOLERANCE = 0.05; // 吞吐量变化在5%以内视为持平
+
+    private final MyThreadPool pool;
+    private final int minCore;
+    private final int maxCore;
+    private final int step;
+    private final long intervalNanos;
+    private final long targetQueueWaitNanos;
+
+    private volatile Thread thread;
+
+    // 以下状态只由控制线程读写（baseMaximum在启动控制线程前写入）
+    private int baseMaximum; // 启动时线程池的最大线程数
+    private int raisedMaximum; // 控制器调高后的最大线程数，0表示未调高
+    private long lastCompleted;
+    private long lastWaitCount;
+    private long lastWaitSum;
+    private long lastTime;
+    private double lastThroughput;
+    private int direction = 1;
+
+    public PoolSizeController(MyThreadPool pool, int minCore, int maxCore, int step,
+                              long interval, long targetQueueWait, TimeUnit unit) {
+        if (minCore < 0 || maxCore < minCore || step <= 0 || interval <= 0 || targetQueueWait < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (pool == null || unit == null) {
+            throw new NullPointerException();
+        }
+        this.pool = pool;
+        this.minCore = minCore;
+        this.maxCore = maxCore;
+        this.step = step;
+        this.intervalNanos = unit.toNanos(interval);
+        this.targetQueueWaitNanos = unit.toNanos(targetQueueWait);
+    }
+
+    /*
+    启动控制线程（守护线程），同时开启线程池的指标采集
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        pool.setMetricsEnabled(true);
+        baseMaximum = pool.getMaximumPoolSize();
+        raisedMaximum = 0;
+        reset(pool.getMetrics());
+        Thread t = new Thread(this::run, "pool-size-controller");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t != null) {
+            thread = null;
+            t.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (thread == Thread.currentThread() && !pool.isShutdown()) {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                tick(pool.getMetrics());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reset(ThreadPoolMetrics m) {
+        lastCompleted = m.getCompletedTaskCount();
+        lastWaitCount = m.getQueueWait().count();
+        lastWaitSum = m.getQueueWait().sum();
+        lastTime = System.nanoTime();
+        lastThroughput = 0;
+    }
+
+    /*
+    一次采样与调整
+     */
+    void tick(ThreadPoolMetrics m) {
+        long now = System.nanoTime();
+        long completed = m.getCompletedTaskCount();
+        long waitCount = m.getQueueWait().count();
+        long waitSum = m.getQueueWait().sum();
+        double throughput = Math.max(0, completed - lastCompleted) * 1e9 / Math.max(1, now - lastTime);
+        long dCount = waitCount - lastWaitCount;
+        long meanWait = dCount > 0 ? Math.max(0, waitSum - lastWaitSum) / dCount : 0;
+
+        boolean backlog = m.getQueueSize() > 0;
+        if (backlog && meanWait > targetQueueWaitNanos) {
+            // 排队过久：无论吞吐量如何都先扩容
+            direction = 1;
+        } else if (throughput < lastThroughput * (1 - TOLERANCE)) {
+            // 上一步让吞吐量变差，反向
+            direction = -direction;
+        } else if (throughput <= lastThroughput * (1 + TOLERANCE) && !backlog) {
+            // 吞吐量没有提升且无积压，收缩线程
+            direction = -1;
+        }
+
+        int core = pool.getCorePoolSize();
+        int target = Math.max(minCore, Math.min(maxCore, core + direction * step));
+        if (target != core) {
+            if (target > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(target);
+                raisedMaximum = target;
+            }
+            pool.setCorePoolSize(target);
+            // 之前为扩容调高过最大线程数：先降核心数，再把最大线程数降回 max(启动时的值, 新核心数)
+            // 最大线程数被外部改过时不再干预
+            if (raisedMaximum != 0 && pool.getMaximumPoolSize() == raisedMaximum && target < raisedMaximum) {
+                int maximum = Math.max(baseMaximum, target);
+                pool.setMaximumPoolSize(maximum);
+                raisedMaximum = maximum > baseMaximum ? maximum : 0;
+            }
+        }
+
+        lastCompleted = completed;
+        lastWaitCount = waitCount;
+        lastWaitSum = waitSum;
+        lastTime = now;
+        lastThroughput = throughput;
+    }
+}
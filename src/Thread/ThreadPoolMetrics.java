@@ -0,0 +1,141 @@
+package Thread;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MyThreadPool 的指标快照，由 MyThreadPool.getMetrics() 生成，生成后不再变化
+ * 耗时类指标仅在开启 setMetricsEnabled(true) 期间采集
+ */
+public final class ThreadPoolMetrics {
+    private final long timestamp;
+    private final int poolSize;
+    private final int peakPoolSize;
+    private final int queueSize;
+    private final long completedTaskCount;
+    private final LatencyHistogram queueWait;
+    private final LatencyHistogram executionTime;
+    private final Map<String, Long> rejections;
+    private final List<WorkerMetrics> workers;
+
+    /**
+     * 单个存活工作线程的指标
+     */
+    public static final class WorkerMetrics {
+        private final String name;
+        private final long completedTasks;
+        private final long busyNanos;
+        private final long idleNanos;
+
+        WorkerMetrics(String name, long completedTasks, long busyNanos, long idleNanos) {
+            this.name = name;
+            this.completedTasks = completedTasks;
+            this.busyNanos = busyNanos;
+            this.idleNanos = idleNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public long getIdleNanos() {
+            return idleNanos;
+        }
+
+        /*
+        忙碌时间占比
+         */
+        public double getUtilization() {
+            long total = busyNanos + idleNanos;
+            return total == 0 ? 0 : (double) busyNanos / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s completed=%d, busy=%dms, idle=%dms, util=%.2f]",
+                    name, completedTasks, busyNanos / 1_000_000, idleNanos / 1_000_000, getUtilization());
+        }
+    }
+
+    ThreadPoolMetrics(long timestamp, int poolSize, int peakPoolSize, int queueSize,
+                      long completedTaskCount, LatencyHistogram queueWait, LatencyHistogram executionTime,
+                      Map<String, Long> rejections, List<WorkerMetrics> workers) {
+        this.timestamp = timestamp;
+        this.poolSize = poolSize;
+        this.peakPoolSize = peakPoolSize;
+        this.queueSize = queueSize;
+        this.completedTaskCount = completedTaskCount;
+        this.queueWait = queueWait;
+        this.executionTime = executionTime;
+        this.rejections = Collections.unmodifiableMap(rejections);
+        this.workers = Collections.unmodifiableList(workers);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getPeakPoolSize() {
+        return peakPoolSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount;
+    }
+
+    /*
+    任务在队列中的等待时间（纳秒）；execute提交的普通任务是抽样记录的，计数少于完成数
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /*
+    任务执行时间（纳秒）
+     */
+    public LatencyHistogram getExecutionTime() {
+        return executionTime;
+    }
+
+    /*
+    各拒绝策略（按 RejectedExecutionHandler.getName，自定义策略默认为 "custom"）触发的次数
+     */
+    public Map<String, Long> getRejections() {
+        return rejections;
+    }
+
+    public List<WorkerMetrics> getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadPoolMetrics{" +
+                "poolSize=" + poolSize +
+                ", peakPoolSize=" + peakPoolSize +
+                ", queueSize=" + queueSize +
+                ", completed=" + completedTaskCount +
+                ", queueWait={" + queueWait + "}" +
+                ", executionTime={" + executionTime + "}" +
+                ", rejections=" + rejections +
+                ", workers=" + workers +
+                '}';
+    }
+}